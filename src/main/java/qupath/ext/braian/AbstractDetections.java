@@ -5,19 +5,31 @@
 package qupath.ext.braian;
 
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
 import qupath.ext.braian.utils.BraiAn;
 import qupath.lib.classifiers.object.ObjectClassifier;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.*;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+import qupath.lib.projects.ProjectImageEntry;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.GeometryTools;
 import qupath.lib.roi.interfaces.ROI;
 
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This abstract class defines the interface to handle groups of different cell detections groups.
@@ -25,7 +37,8 @@ import java.util.stream.Stream;
  * By default, {@link AbstractDetections} allows to classify its detections by applying {@link PartialClassifier}s.
  */
 public abstract class AbstractDetections {
-    private static final int BBH_MAX_DEPTH = 6;
+    static final int BBH_MAX_DEPTH = 32;
+    static final int BBH_LEAF_SIZE = 8;
 
     /**
      * returns the detections inside the given annotation
@@ -59,11 +72,21 @@ public abstract class AbstractDetections {
     private final PathObjectHierarchy hierarchy;
     private final List<PathClass> detectionClasses;
     private List<PathAnnotationObject> containers = new ArrayList<>();
-    private BoundingBoxHierarchy bbh;
+    // the detections of each container, excluding the discarded ones, in the order they were found in the hierarchy.
+    // PathObjects are equal only to themselves, so each set is still an identity set
+    private final Map<PathObject, Set<PathDetectionObject>> containersDetections = new IdentityHashMap<>();
+    private SpatialIndexStrategy indexStrategy = SpatialIndexStrategy.getDefault();
+    private SpatialIndex index; // null until queried, or when invalidated
+    private ProjectImageEntry<?> indexEntry = null; // where to load a previously saved index from
+    private Snapshot snapshot;  // null until listed, or when the detections change
+    private boolean scanned = false;
+    private final HierarchyChanges changes;
 
     /**
      * Constructs an object that groups together detections of the same kind.
-     * To do so, it searches for container annotations of detections having a name compatible with {@link #getContainersName()}
+     * To do so, it searches for container annotations of detections having a name compatible with {@link #getContainersName()}.
+     * The detections are then searched with the {@link SpatialIndexStrategy#getDefault() current} {@link SpatialIndexStrategy},
+     * unless {@link #setSpatialIndex(SpatialIndexStrategy) changed}
      * @param id identification of this group of detections
      * @param detectionClasses classifications used to identify the detections
      * @param hierarchy where to find the detections
@@ -77,6 +100,7 @@ public abstract class AbstractDetections {
         this.detectionClasses = detectionClasses.stream().toList();
         for (PathClass classification: this.detectionClasses)
             BraiAn.populatePathClassGUI(classification);
+        this.changes = HierarchyChanges.listen(this, hierarchy);
         this.fireUpdate();
     }
 
@@ -86,68 +110,387 @@ public abstract class AbstractDetections {
      * Additionally, it makes sure that the newer containers don't overlap with the old ones.
      * <br>
      * If container annotations or detections are touched outside of BraiAn, it's better to call this method.
+     * <br>
+     * The changes notified by the hierarchy since the last update are applied incrementally, costing in proportion to
+     * the changed objects. If any of them cannot be tracked, or they are too many, all the containers and their
+     * detections are searched again.
      * @throws NoCellContainersFoundException if there is no compatible container in the hierarchy
      */
     public void fireUpdate() throws NoCellContainersFoundException {
+        List<PathObjectHierarchyEvent> events = this.changes.drain();
+        if (!this.scanned || events == null || !this.applyChanges(events))
+            this.rescan();
+    }
+
+    /**
+     * @return the index of the detections. It is built only when first needed after an invalidation, so that the
+     * instances that are never queried never build it
+     */
+    private synchronized SpatialIndex getIndex() {
+        if (this.index == null)
+            this.index = this.indexStrategy.loadOrBuild(this.indexEntry, this.getContainersName(), Arrays.asList(this.getSnapshot().detections()));
+        return this.index;
+    }
+
+    /**
+     * Changes the kind of index used to search the detections. The current index, if built, is dropped
+     * @param strategy the strategy building the index
+     */
+    public synchronized void setSpatialIndex(SpatialIndexStrategy strategy) {
+        this.indexStrategy = Objects.requireNonNull(strategy);
+        this.index = null;
+    }
+
+    /**
+     * Lets the index of the detections be loaded from the given project entry, if it was previously
+     * {@link #saveIndex(ProjectImageEntry) saved} there for the same detections. Otherwise, it is built as usual.
+     * @param entry the project entry owning the hierarchy of the detections
+     */
+    public synchronized void useSavedIndex(ProjectImageEntry<?> entry) {
+        this.indexEntry = entry;
+    }
+
+    /**
+     * Saves the index of the detections in the given project entry, so that the next runs on the same detections can
+     * {@link #useSavedIndex(ProjectImageEntry) load} it instead of building it again.
+     * Only the indexes of {@link SpatialIndexStrategy#BVH} can be saved.
+     * @param entry the project entry owning the hierarchy of the detections
+     * @return true if the index was saved
+     */
+    public synchronized boolean saveIndex(ProjectImageEntry<?> entry) {
+        return this.indexStrategy.save(entry, this.getContainersName(), this.getIndex());
+    }
+
+    /**
+     * @return all the detections, grouped by container. It is built only when first needed after the detections changed
+     */
+    private synchronized Snapshot getSnapshot() {
+        if (this.snapshot == null)
+            this.snapshot = Snapshot.of(this.containers, this.containersDetections);
+        return this.snapshot;
+    }
+
+    private synchronized void invalidateIndex() {
+        this.index = null;
+        this.snapshot = null;
+    }
+
+    /**
+     * adds a detection to the index, if it is built
+     */
+    private synchronized void index(PathDetectionObject detection) {
+        this.snapshot = null;
+        if (this.index != null)
+            this.index.insert(detection);
+    }
+
+    /**
+     * removes a detection from the index, if it is built
+     */
+    private synchronized void unindex(PathDetectionObject detection) {
+        this.snapshot = null;
+        if (this.index != null)
+            this.index.remove(detection);
+    }
+
+    private void rescan() throws NoCellContainersFoundException {
+        Set<PathAnnotationObject> known = Collections.newSetFromMap(new IdentityHashMap<>());
+        known.addAll(this.containers);
         List<PathAnnotationObject> allContainers = this.searchContainers();
+        this.containersDetections.clear();
+        this.invalidateIndex();
+        this.scanned = true;
         if (allContainers.isEmpty()) {
             this.containers = allContainers;
-            this.bbh = new BoundingBoxHierarchy(new ArrayList<>(), BBH_MAX_DEPTH);
             return;
         }
         List<PathAnnotationObject> oldContainers = allContainers.stream()
-                .filter(c -> this.containers.contains(c)).toList();
+                .filter(known::contains).toList();
         List<PathAnnotationObject> newContainers = allContainers.stream()
-                .filter(c -> !this.containers.contains(c)).toList();
-        for (PathAnnotationObject oldContainer: oldContainers)
-            updateContainer(oldContainer, newContainers); // may shrink the overlapping newContainers
-        this.removeEmptyContainers(allContainers);
+                .filter(c -> !known.contains(c)).toList();
+        HierarchyBatch batch = new HierarchyBatch(this.hierarchy);
+        this.reconcileContainers(oldContainers, newContainers, new HashSet<>(), batch); // may shrink the overlapping newContainers
+        this.removeEmptyContainers(allContainers, batch);
+        batch.commit(this);
         this.containers = allContainers;
         List<PathDetectionObject> cells = this.getContainersDetections(false); // throw NoCellContainersFoundException
-        this.bbh = new BoundingBoxHierarchy(cells, BBH_MAX_DEPTH);
-    }
-
-    private void updateContainer(PathAnnotationObject oldContainer, List<PathAnnotationObject> newContainers) {
-        ROI oldROI = oldContainer.getROI();
-        Geometry oldGeom = oldROI.getGeometry();
-        ImagePlane oldPlane = oldROI.getImagePlane();
-        for (PathAnnotationObject newContainer: newContainers) {
-            Geometry newGeom = newContainer.getROI().getGeometry();
-            if (oldGeom.intersects(newGeom)) {
-                ROI intersection = GeometryTools.geometryToROI(oldGeom.intersection(newGeom), oldPlane);
-                List<PathDetectionObject> newDetections = getChildrenDetections(newContainer).toList(); //collect(Collectors.toSet());
-                this.removeOldDetections(intersection, newDetections);
-                this.addUpdatedDetections(oldContainer, newDetections);
-                ROI newDiffOld = GeometryTools.geometryToROI(newGeom.difference(oldGeom), oldPlane);
-                newContainer.setROI(newDiffOld);
+        for (PathAnnotationObject container: this.containers)
+            this.containersDetections.put(container, new LinkedHashSet<>());
+        for (PathDetectionObject cell: cells)
+            this.containersDetections.get(cell.getParent()).add(cell);
+    }
+
+    /**
+     * applies to the containers and to the index the changes notified by the hierarchy
+     * @return false if some changes cannot be applied incrementally, and all the containers must be searched again
+     */
+    private boolean applyChanges(List<PathObjectHierarchyEvent> events) {
+        Set<PathObject> added = new LinkedHashSet<>();
+        Set<PathObject> removed = new LinkedHashSet<>();
+        Set<PathObject> toRescan = new LinkedHashSet<>();
+        Set<PathObject> subtrees = new LinkedHashSet<>();
+        // the detections that were added, removed or reclassified, with the parent they were removed from
+        Map<PathDetectionObject, PathObject> touched = new LinkedHashMap<>();
+        for (PathObjectHierarchyEvent event: events) {
+            switch (event.getEventType()) {
+                case OTHER_STRUCTURE_CHANGE -> {
+                    // the descendants of the parent object changed, without knowing how
+                    PathObject parent = event.getParentObject();
+                    if (this.containersDetections.containsKey(parent))
+                        toRescan.add(parent);
+                    else if (parent == null || parent.isRootObject())
+                        return false;
+                    else if (!added.contains(parent))
+                        subtrees.add(parent);
+                }
+                case ADDED, REMOVED -> {
+                    boolean isAdded = event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.ADDED;
+                    for (PathObject object: event.getChangedObjects()) {
+                        if (object instanceof PathDetectionObject detection) {
+                            PathObject parent = isAdded ? null : event.getParentObject();
+                            if (touched.get(detection) == null)
+                                touched.put(detection, parent);
+                        } else if (isAdded && this.isContainer(object)) {
+                            added.add(object);
+                        } else if (!isAdded && (this.containersDetections.containsKey(object) || added.contains(object))) {
+                            if (!added.remove(object))
+                                removed.add(object);
+                        } else if (object.hasChildObjects()) {
+                            // it may bring, or take away, some containers with it
+                            return false;
+                        }
+                    }
+                }
+                case CHANGE_CLASSIFICATION -> {
+                    for (PathObject object: event.getChangedObjects())
+                        if (object instanceof PathDetectionObject detection)
+                            touched.putIfAbsent(detection, null);
+                }
+                case CHANGE_OTHER -> {
+                    // e.g. an annotation was renamed, and it may have become a container or stopped being one
+                    for (PathObject object: event.getChangedObjects())
+                        if (object.isAnnotation() && this.isContainer(object) != (this.containersDetections.containsKey(object) || added.contains(object)))
+                            return false;
+                }
+                default -> {}
+            }
+        }
+        if (!subtrees.isEmpty()) {
+            // any container below the changed objects may have been added, removed or changed
+            for (PathObject subtree: subtrees)
+                this.searchContainers(subtree, added, toRescan);
+            for (PathObject container: this.containersDetections.keySet())
+                if (!this.isInHierarchy(container))
+                    removed.add(container);
+        }
+        for (PathObject container: removed) {
+            this.containers.remove(container);
+            this.containersDetections.remove(container).forEach(this::unindex);
+        }
+        List<PathAnnotationObject> newContainers = added.stream()
+                .filter(c -> this.isInHierarchy(c) && this.isContainer(c) && !this.containersDetections.containsKey(c))
+                .map(c -> (PathAnnotationObject) c)
+                .collect(Collectors.toList());  // mutable list
+        if (!newContainers.isEmpty()) {
+            HierarchyBatch batch = new HierarchyBatch(this.hierarchy);
+            this.reconcileContainers(this.containers, newContainers, toRescan, batch); // may shrink the overlapping newContainers
+            this.removeEmptyContainers(newContainers, batch);
+            batch.commit(this);
+            for (PathAnnotationObject container: newContainers) {
+                this.containers.add(container);
+                this.containersDetections.put(container, new LinkedHashSet<>());
+                toRescan.add(container);
             }
         }
+        for (PathObject container: toRescan)
+            if (this.containersDetections.containsKey(container))
+                this.rescanContainer((PathAnnotationObject) container);
+        touched.forEach(this::updateDetection);
+        return true;
+    }
+
+    /**
+     * searches the annotations below <code>parent</code> for the containers that were already known and those that
+     * were not, without looking inside the containers
+     */
+    private void searchContainers(PathObject parent, Set<PathObject> newContainers, Set<PathObject> knownContainers) {
+        for (PathObject child: parent.getChildObjects()) {
+            if (!child.isAnnotation())
+                continue;
+            if (this.containersDetections.containsKey(child))
+                knownContainers.add(child);
+            else if (this.isContainer(child))
+                newContainers.add(child);
+            else
+                this.searchContainers(child, newContainers, knownContainers);
+        }
+    }
+
+    private boolean isInHierarchy(PathObject object) {
+        PathObject ancestor = object;
+        while (ancestor.getParent() != null)
+            ancestor = ancestor.getParent();
+        return ancestor == this.hierarchy.getRootObject();
+    }
+
+    /**
+     * updates the detections of the given container, and the index, with the current children of the container
+     */
+    private void rescanContainer(PathAnnotationObject container) {
+        Set<PathDetectionObject> detections = this.containersDetections.get(container);
+        Set<PathDetectionObject> current = new LinkedHashSet<>();
+        getChildrenDetections(container)
+                .filter(object -> this.isChannelDetection(object, false))
+                .forEach(current::add);
+        for (PathDetectionObject detection: detections)
+            if (!current.contains(detection))
+                this.unindex(detection);
+        for (PathDetectionObject detection: current)
+            if (!detections.contains(detection))
+                this.index(detection);
+        this.containersDetections.put(container, current);
+    }
+
+    /**
+     * updates the index with the current state of a detection that was added, removed or reclassified
+     * @param oldParent the parent from which the detection was removed, if it was
+     */
+    private void updateDetection(PathDetectionObject detection, PathObject oldParent) {
+        PathObject parent = detection.getParent();
+        if (oldParent != null && oldParent != parent) {
+            Set<PathDetectionObject> detections = this.containersDetections.get(oldParent);
+            if (detections != null && detections.remove(detection))
+                this.unindex(detection);
+        }
+        Set<PathDetectionObject> detections = parent == null ? null : this.containersDetections.get(parent);
+        if (detections == null)
+            return;
+        if (this.isChannelDetection(detection, false)) {
+            if (detections.add(detection))
+                this.index(detection);
+        } else if (detections.remove(detection)) {
+            this.unindex(detection);
+        }
+    }
+
+    /**
+     * The changes to the hierarchy needed to make a new container not overlap with the old ones
+     * @param newContainer the new container
+     * @param newROI the ROI of the new container, once the old containers are taken away from it. null if unchanged
+     * @param moved the detections of the new container to move into each old container
+     * @param removed the old detections replaced by those of the new container
+     */
+    private record Reconciliation(PathAnnotationObject newContainer, ROI newROI,
+                                  Map<PathAnnotationObject, List<PathDetectionObject>> moved,
+                                  List<PathDetectionObject> removed) {}
+
+    /**
+     * Makes sure that the new containers don't overlap with the old ones.
+     * Where they do, the detections of the new container replace the old ones and are moved into the old container,
+     * while the new container is shrunk.
+     * <br>
+     * The overlapping pairs are found with an {@link STRtree} of the new containers' envelopes and tested with
+     * {@link PreparedGeometry prepared geometries}. Each new container is then reconciled in parallel, as it only
+     * depends on the old containers overlapping it, and all the changes are collected in <code>batch</code>.
+     * @param changedContainers where to collect the containers whose detections changed
+     */
+    private void reconcileContainers(List<PathAnnotationObject> oldContainers, List<PathAnnotationObject> newContainers,
+                                     Set<PathObject> changedContainers, HierarchyBatch batch) {
+        if (oldContainers.isEmpty() || newContainers.isEmpty())
+            return;
+        STRtree tree = new STRtree();
+        for (PathAnnotationObject newContainer: newContainers)
+            tree.insert(newContainer.getROI().getGeometry().getEnvelopeInternal(), newContainer);
+        // for each new container, the old ones whose envelopes intersect it, in the same order as oldContainers
+        Map<PathAnnotationObject, List<PathAnnotationObject>> candidates = new LinkedHashMap<>();
+        Map<PathAnnotationObject, PreparedGeometry> oldGeometries = new IdentityHashMap<>();
+        for (PathAnnotationObject oldContainer: oldContainers) {
+            Geometry oldGeom = oldContainer.getROI().getGeometry();
+            List<?> overlapping = tree.query(oldGeom.getEnvelopeInternal());
+            if (overlapping.isEmpty())
+                continue;
+            oldGeometries.put(oldContainer, PreparedGeometryFactory.prepare(oldGeom));
+            for (Object newContainer: overlapping)
+                candidates.computeIfAbsent((PathAnnotationObject) newContainer, c -> new ArrayList<>()).add(oldContainer);
+        }
+        // the hierarchy is only read while reconciling
+        List<Reconciliation> reconciliations = candidates.entrySet().parallelStream()
+                .map(e -> this.reconcileContainer(e.getKey(), e.getValue(), oldGeometries))
+                .filter(Objects::nonNull)
+                .toList();
+        Set<PathDetectionObject> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Reconciliation reconciliation: reconciliations)
+            removed.addAll(reconciliation.removed());
+        removed.forEach(oldDetection -> changedContainers.add(oldDetection.getParent()));
+        batch.removeAll(removed);
+        for (Reconciliation reconciliation: reconciliations) {
+            reconciliation.moved().forEach((oldContainer, newDetections) -> {
+                for (PathDetectionObject newDetection: newDetections)
+                    if (!removed.contains(newDetection))
+                        batch.add(oldContainer, newDetection);
+                changedContainers.add(oldContainer);
+            });
+            reconciliation.newContainer().setROI(reconciliation.newROI());
+        }
     }
 
-    private void addUpdatedDetections(PathAnnotationObject container, List<PathDetectionObject> newDetections) {
-        newDetections.stream()
-                .filter( newDetection -> container.getROI().contains(newDetection.getROI().getCentroidX(), newDetection.getROI().getCentroidY()))
-                .forEach( newDetection -> this.hierarchy.addObjectBelowParent(container, newDetection, false) );
+    /**
+     * computes the changes needed to make <code>newContainer</code> not overlap with <code>oldContainers</code>,
+     * without applying them
+     * @return null if <code>newContainer</code> does not overlap with any of the old containers
+     */
+    private Reconciliation reconcileContainer(PathAnnotationObject newContainer, List<PathAnnotationObject> oldContainers,
+                                              Map<PathAnnotationObject, PreparedGeometry> oldGeometries) {
+        Geometry newGeom = newContainer.getROI().getGeometry();
+        ImagePlane plane = null;
+        List<PathDetectionObject> newDetections = getChildrenDetections(newContainer).toList();
+        List<PathDetectionObject> remaining = new ArrayList<>(newDetections);
+        BoundingBox newDetectionsBBH = null;
+        Map<PathAnnotationObject, List<PathDetectionObject>> moved = new LinkedHashMap<>();
+        List<PathDetectionObject> removed = new ArrayList<>();
+        for (PathAnnotationObject oldContainer: oldContainers) {
+            PreparedGeometry oldGeom = oldGeometries.get(oldContainer);
+            if (!oldGeom.intersects(newGeom))
+                continue;
+            ROI oldROI = oldContainer.getROI();
+            plane = oldROI.getImagePlane();
+            ROI intersection = GeometryTools.geometryToROI(oldGeom.getGeometry().intersection(newGeom), plane);
+            if (newDetectionsBBH == null)
+                newDetectionsBBH = this.indexStrategy.build(newDetections);
+            removed.addAll(this.getOldDetections(intersection, newDetectionsBBH));
+            List<PathDetectionObject> inOldContainer = new ArrayList<>();
+            remaining.removeIf(newDetection -> {
+                ROI roi = newDetection.getROI();
+                return oldROI.contains(roi.getCentroidX(), roi.getCentroidY()) && inOldContainer.add(newDetection);
+            });
+            moved.put(oldContainer, inOldContainer);
+            newGeom = newGeom.difference(oldGeom.getGeometry());
+        }
+        if (plane == null)
+            return null;
+        return new Reconciliation(newContainer, GeometryTools.geometryToROI(newGeom, plane), moved, removed);
     }
 
-    private void removeOldDetections(ROI area, List<PathDetectionObject> newDetections) {
-        BoundingBoxHierarchy newDetectionsBBH = new BoundingBoxHierarchy(newDetections, BBH_MAX_DEPTH);
-        List<PathDetectionObject> oldDetections = AbstractDetections.getDetectionsInside(area, hierarchy)   // it's a detection inside a new container
-                .filter(oldDetection -> this.isChannelDetection(oldDetection, true) && !newDetectionsBBH.contains(oldDetection))
+    private List<PathDetectionObject> getOldDetections(ROI area, BoundingBox newDetectionsBBH) {
+        List<PathDetectionObject> candidates = AbstractDetections.getDetectionsInside(area, hierarchy)   // it's a detection inside a new container
+                .filter(oldDetection -> this.isChannelDetection(oldDetection, true))
+                .toList();
+        boolean[] isNew = newDetectionsBBH.contains(candidates);
+        return IntStream.range(0, candidates.size())
+                .filter(i -> !isNew[i])
+                .mapToObj(candidates::get)
                 .toList();
-        hierarchy.removeObjects(oldDetections, false);
     }
 
-    private void removeEmptyContainers(List<PathAnnotationObject> containers) {
+    private void removeEmptyContainers(List<PathAnnotationObject> containers, HierarchyBatch batch) {
         ListIterator<PathAnnotationObject> iterator = containers.listIterator();
         while (iterator.hasNext()) {
             PathAnnotationObject c = iterator.next();
             if (c.getROI().isEmpty()) {
-                this.hierarchy.removeObject(c, false);
+                batch.remove(c);
                 iterator.remove();
             }
         }
-        this.hierarchy.fireHierarchyChangedEvent(this);
     }
 
     /**
@@ -158,11 +501,31 @@ public abstract class AbstractDetections {
      * @see #fireUpdate()
      */
     public boolean isEmpty() {
-        try {
-            return this.containers.isEmpty() || this.getContainersDetections(false).isEmpty();
-        } catch (NoCellContainersFoundException e) {
-            return true;
-        }
+        return this.containersDetections.values().stream().allMatch(Set::isEmpty);
+    }
+
+    /**
+     * Counts the detections inside a container.
+     * <br>
+     * If the state was changed outside of this extension, you might need to call {@link #fireUpdate()} first.
+     * @param container one of the {@link #getContainers() containers} of the detections
+     * @return the number of detections in the container, excluding the discarded ones.
+     * 0 if the given annotation is not one of the containers
+     * @see #getDiscardedDetectionsPathClass()
+     */
+    public int countDetections(PathAnnotationObject container) {
+        Set<PathDetectionObject> detections = this.containersDetections.get(container);
+        return detections == null ? 0 : detections.size();
+    }
+
+    /**
+     * @param container one of the {@link #getContainers() containers} of the detections
+     * @return the detections in the container, excluding the discarded ones, in the same order as {@link #toStream()}.
+     * Empty if the given annotation is not one of the containers
+     */
+    Collection<PathDetectionObject> getDetections(PathAnnotationObject container) {
+        Set<PathDetectionObject> detections = this.containersDetections.get(container);
+        return detections == null ? List.of() : Collections.unmodifiableSet(detections);
     }
 
     // TODO: allow to search for containers WITHIN a list of given annotations (useful with 'classForDetections' from ProjectsConfig)
@@ -193,10 +556,29 @@ public abstract class AbstractDetections {
     }
 
     /**
-     * @return a stream of the given detections, in no particular order
+     * The returned stream knows its size and, if made {@link Stream#parallel() parallel}, it splits evenly along the
+     * containers. It does not need to build the spatial index of the detections.
+     * @return a stream of the given detections, grouped by container. Within each container, the detections follow the
+     * order of the hierarchy, with those added since the container was last searched coming last
      */
     public Stream<PathDetectionObject> toStream() {
-        return this.bbh.toStream().map(o -> (PathDetectionObject) o);
+        Snapshot snapshot = this.getSnapshot();
+        return StreamSupport.stream(new DetectionsSpliterator(snapshot, 0, snapshot.detections().length), false);
+    }
+
+    /**
+     * Applies an action to each detection, in parallel.
+     * <br>
+     * If the state was changed outside of this extension, you might need to call {@link #fireUpdate()} first.
+     * @param action the action to apply to each detection and its index, from 0 to the number of detections.
+     *               Indices follow the same order as {@link #toStream()}.
+     *               It may be called concurrently from different threads
+     */
+    public void forEachDetection(ObjIntConsumer<PathDetectionObject> action) {
+        PathDetectionObject[] detections = this.getSnapshot().detections();
+        IntStream.range(0, detections.length)
+                .parallel()
+                .forEach(i -> action.accept(detections[i], i));
     }
 
     /**
@@ -205,7 +587,37 @@ public abstract class AbstractDetections {
      * @see BoundingBoxHierarchy#getOverlappingObjectIfPresent(PathObject)
      */
     public Optional<PathObject> getOverlappingObjectIfPresent(PathObject o) {
-        return this.bbh.getOverlappingObjectIfPresent(o);
+        return this.getIndex().getOverlappingObjectIfPresent(o);
+    }
+
+    /**
+     * Searches, for each of the given objects, the detection that overlaps it.
+     * It is faster than calling {@link #getOverlappingObjectIfPresent(PathObject)} on each object.
+     * @param objects the objects to search an overlapping detection for
+     * @return an array, as long as <code>objects</code>, with the detection overlapping each object, or <code>null</code>
+     * @see PackedBoundingBoxHierarchy#getOverlappingObjects(List)
+     */
+    public PathObject[] getOverlappingObjects(List<? extends PathObject> objects) {
+        return this.getIndex().getOverlappingObjects(objects);
+    }
+
+    /**
+     * Returns an index of the detections in the given containers, built with the
+     * {@link #setSpatialIndex(SpatialIndexStrategy) strategy} of the instance.
+     * If the index of all the detections was already built, or it may be {@link #useSavedIndex(ProjectImageEntry) loaded},
+     * it is returned instead. Otherwise, only the detections in <code>containers</code> are indexed, and the new index
+     * is not kept.
+     * @param containers the containers whose detections must be in the index
+     * @return an index of, at least, all the detections in <code>containers</code>
+     */
+    synchronized SpatialIndex getIndex(Collection<PathAnnotationObject> containers) {
+        if (this.index != null || this.indexEntry != null || containers.containsAll(this.containers))
+            return this.getIndex();
+        List<PathDetectionObject> detections = new ArrayList<>();
+        for (PathAnnotationObject container: this.containers)
+            if (containers.contains(container))
+                detections.addAll(this.containersDetections.get(container));
+        return this.indexStrategy.build(detections);
     }
 
     /**
@@ -277,6 +689,20 @@ public abstract class AbstractDetections {
                 && containerParent.getROI().getGeometry().equals(object.getROI().getGeometry());
     }
 
+    /**
+     * @param containerParent the annotation used as a model for the container
+     * @return the first container previously created from <code>containerParent</code>, if any
+     * @see #createContainer(PathAnnotationObject, boolean)
+     */
+    protected Optional<PathAnnotationObject> getDerivedContainer(PathAnnotationObject containerParent) {
+        String name = this.getContainersName();
+        PathClass classification = this.getContainersPathClass();
+        return containerParent.getChildObjects().stream()
+                .filter(o -> isDerivedContainer(o, containerParent, classification, name))
+                .map(o -> (PathAnnotationObject) o)
+                .findFirst();
+    }
+
     /**
      * Creates a duplicate child annotation to be used as container
      * @param containerParent the annotation to use as a model for the container
@@ -284,23 +710,36 @@ public abstract class AbstractDetections {
      * @return the new container, as child of <code>containerParent</code>
      */
     protected PathAnnotationObject createContainer(PathAnnotationObject containerParent, boolean overwrite) {
+        HierarchyBatch batch = new HierarchyBatch(this.hierarchy);
+        PathAnnotationObject container = this.createContainer(containerParent, overwrite, batch);
+        batch.commit();
+        return container;
+    }
+
+    /**
+     * Creates a duplicate child annotation to be used as container, without changing the hierarchy until
+     * <code>batch</code> is committed
+     * @param containerParent the annotation to use as a model for the container
+     * @param overwrite if true, deletes all previously created containers, if any
+     * @param batch where to collect the changes to the hierarchy
+     * @return the new container, that will be a child of <code>containerParent</code>
+     * @see #createContainer(PathAnnotationObject, boolean)
+     */
+    protected PathAnnotationObject createContainer(PathAnnotationObject containerParent, boolean overwrite, HierarchyBatch batch) {
         String name = this.getContainersName();
         PathClass classification = this.getContainersPathClass();
         if(overwrite) {
-            Optional<PathAnnotationObject> oldContainer = containerParent.getChildObjects().stream()
-                    .filter(o -> isDerivedContainer(o, containerParent, classification, name))
-                    .map(o -> (PathAnnotationObject) o)
-                    .findFirst(); // TODO: overwring the first one without warning may cause disruptive behaviours
+            Optional<PathAnnotationObject> oldContainer = this.getDerivedContainer(containerParent); // TODO: overwring the first one without warning may cause disruptive behaviours
             if (oldContainer.isPresent()) {
                 PathAnnotationObject container = oldContainer.get();
-                this.hierarchy.removeObjects(container.getChildObjects(), false);
+                batch.removeAll(List.copyOf(container.getChildObjects()));
                 return container;
             }
         }
         PathAnnotationObject duplicate = (PathAnnotationObject) PathObjectTools.transformObject(containerParent,null, true, true);
         duplicate.setName(name);
         duplicate.setPathClass(classification);
-        this.hierarchy.addObjectBelowParent(containerParent, duplicate, true);
+        batch.add(containerParent, duplicate);
         duplicate.setLocked(true);
         return duplicate;
     }
@@ -317,24 +756,43 @@ public abstract class AbstractDetections {
      */
     public <T> void applyClassifiers(List<PartialClassifier<T>> classifiers, ImageData<T> imageData) {
         classifiers = removeUselessClassifiers(classifiers);
-        List<PathDetectionObject> cells = new ArrayList<>();
         try {
             for (PartialClassifier<T> partialClassifier : classifiers) {
                 ObjectClassifier<T> classifier = partialClassifier.classifier();
                 Collection<PathAnnotationObject> toClassify = partialClassifier.annotations();
                 try {
-                    cells.addAll(this.classifyInside(classifier, toClassify, imageData));
+                    List<PathDetectionObject> cells = this.classifyInside(classifier, toClassify, imageData);
+                    this.updateClassifiedDetections(cells);
                 } catch (IncompatibleClassifier e) {
                     BraiAnExtension.logger.warn("Skipping {}...\n\t{}", classifier, e.getMessage().replace("\n", "\n\t"));
                     return;
                 }
             }
-            this.bbh = new BoundingBoxHierarchy(cells, BBH_MAX_DEPTH);
         } catch (NoCellContainersFoundException e) {
             BraiAnExtension.getLogger().warn("No containers of '{}' detections found. No classification made", getContainersName());
         }
     }
 
+    /**
+     * inserts in, or removes from, the internal hierarchy the given detections, depending on whether they
+     * were classified as detections of the instance kind or as discarded.
+     * It costs in proportion to the given detections, not to all the detections of the instance.
+     */
+    private void updateClassifiedDetections(List<PathDetectionObject> cells) {
+        for (PathDetectionObject cell: cells) {
+            Set<PathDetectionObject> containerDetections = this.containersDetections.get(cell.getParent());
+            // only the detections directly inside a container are tracked
+            if (containerDetections == null)
+                continue;
+            if (this.hasDetectionClass(cell, false)) {
+                if (containerDetections.add(cell))
+                    this.index(cell);
+            } else if (containerDetections.remove(cell)) {
+                this.unindex(cell);
+            }
+        }
+    }
+
     private static <T> List<PartialClassifier<T>> removeUselessClassifiers(List<PartialClassifier<T>> partialClassifiers) {
         int lastFullClassifier = -1;
         int n = partialClassifiers.size();
@@ -364,11 +822,12 @@ public abstract class AbstractDetections {
                     .flatMap(a -> AbstractDetections.getDetectionsInside(a, this.hierarchy))
                     .filter(detection -> this.hasDetectionClass(detection, true))
                     .toList();
+        // fired by this instance, so that it does not record the changes it applies itself with updateClassifiedDetections()
         if (classifier.classifyObjects(imageData, cells, true) > 0)
-            imageData.getHierarchy().fireObjectClassificationsChangedEvent(classifier, cells);
+            imageData.getHierarchy().fireObjectClassificationsChangedEvent(this, cells);
         PathClass discardedPC = this.getDiscardedDetectionsPathClass();
         BraiAn.populatePathClassGUI(discardedPC);
-        return cells.stream().filter(d -> this.hasDetectionClass(d, false)).toList();
+        return cells;
     }
 
     protected <T> boolean isCompatibleClassifier(ObjectClassifier<T> classifier) {
@@ -412,6 +871,163 @@ public abstract class AbstractDetections {
     }
 }
 
+/**
+ * Records the changes of a {@link PathObjectHierarchy} that may affect an {@link AbstractDetections}, so that it can
+ * {@link AbstractDetections#fireUpdate() update} itself incrementally.
+ * <p>
+ * The detections are referenced weakly: once they are garbage collected, the listener is removed from the hierarchy.
+ * The changes fired by the detections themselves are ignored, as they already keep their state up to date.
+ */
+final class HierarchyChanges implements PathObjectHierarchyListener {
+    private static final Cleaner CLEANER = Cleaner.create();
+    // past these, the changes are forgotten and the detections search all their containers again
+    static final int MAX_EVENTS = 1 << 10;
+    static final int MAX_CHANGED_OBJECTS = 1 << 16;
+
+    private final WeakReference<AbstractDetections> detections;
+    private final List<PathObjectHierarchyEvent> events = new ArrayList<>();
+    private int nChangedObjects = 0;
+    private boolean needsRescan = false;
+
+    private HierarchyChanges(AbstractDetections detections) {
+        this.detections = new WeakReference<>(detections);
+    }
+
+    static HierarchyChanges listen(AbstractDetections detections, PathObjectHierarchy hierarchy) {
+        HierarchyChanges changes = new HierarchyChanges(detections);
+        hierarchy.addListener(changes);
+        CLEANER.register(detections, () -> hierarchy.removeListener(changes));
+        return changes;
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        AbstractDetections detections = this.detections.get();
+        if (detections == null || event.getSource() == detections || event.isChanging()
+                || event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.CHANGE_MEASUREMENTS)
+            return;
+        synchronized (this.events) {
+            if (this.needsRescan)
+                return;
+            this.nChangedObjects += event.getChangedObjects().size();
+            if (isRootStructureChange(event) || this.events.size() >= MAX_EVENTS || this.nChangedObjects > MAX_CHANGED_OBJECTS) {
+                // the changes would cost more to keep, and to apply, than searching everything again
+                this.events.clear();
+                this.nChangedObjects = 0;
+                this.needsRescan = true;
+                return;
+            }
+            this.events.add(event);
+        }
+    }
+
+    private static boolean isRootStructureChange(PathObjectHierarchyEvent event) {
+        PathObject parent = event.getParentObject();
+        return event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.OTHER_STRUCTURE_CHANGE
+                && (parent == null || parent.isRootObject());
+    }
+
+    /**
+     * @return all the changes recorded since the last call, in the order they happened. null if they were too many to
+     * be recorded, or if the whole hierarchy changed: in both cases, all the containers have to be searched again
+     */
+    List<PathObjectHierarchyEvent> drain() {
+        synchronized (this.events) {
+            List<PathObjectHierarchyEvent> events = this.needsRescan ? null : List.copyOf(this.events);
+            this.events.clear();
+            this.nChangedObjects = 0;
+            this.needsRescan = false;
+            return events;
+        }
+    }
+}
+
+/**
+ * All the detections of an {@link AbstractDetections}, as they were at a given moment
+ * @param detections the detections, grouped by container
+ * @param starts the index in <code>detections</code> of the first detection of each container, in increasing order
+ */
+record Snapshot(PathDetectionObject[] detections, int[] starts) {
+    static Snapshot of(List<PathAnnotationObject> containers, Map<PathObject, Set<PathDetectionObject>> containersDetections) {
+        int[] starts = new int[containers.size()];
+        int n = 0;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = n;
+            n += containersDetections.get(containers.get(i)).size();
+        }
+        PathDetectionObject[] detections = new PathDetectionObject[n];
+        int i = 0;
+        for (PathAnnotationObject container: containers)
+            for (PathDetectionObject detection: containersDetections.get(container))
+                detections[i++] = detection;
+        return new Snapshot(detections, starts);
+    }
+}
+
+/**
+ * A {@link Spliterator} over a range of a {@link Snapshot}. When split, it prefers to cut the range where a container
+ * starts, as long as the two halves are not too unbalanced.
+ */
+final class DetectionsSpliterator implements Spliterator<PathDetectionObject> {
+    private final Snapshot snapshot;
+    private int from;
+    private final int to;
+
+    DetectionsSpliterator(Snapshot snapshot, int from, int to) {
+        this.snapshot = snapshot;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super PathDetectionObject> action) {
+        if (this.from >= this.to)
+            return false;
+        action.accept(this.snapshot.detections()[this.from++]);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super PathDetectionObject> action) {
+        PathDetectionObject[] detections = this.snapshot.detections();
+        for (int i = this.from; i < this.to; i++)
+            action.accept(detections[i]);
+        this.from = this.to;
+    }
+
+    @Override
+    public Spliterator<PathDetectionObject> trySplit() {
+        int size = this.to - this.from;
+        if (size < 2)
+            return null;
+        int middle = this.from + size/2;
+        int[] starts = this.snapshot.starts();
+        int i = Arrays.binarySearch(starts, middle);
+        if (i < 0) {
+            // the container boundary closest to the middle
+            int after = -i-1;
+            i = after == starts.length
+                    || (after > 0 && middle-starts[after-1] <= starts[after]-middle) ? after-1 : after;
+        }
+        int split = i >= 0 ? starts[i] : middle;
+        if (split < this.from + size/4 || split > this.to - size/4)
+            split = middle;
+        Spliterator<PathDetectionObject> prefix = new DetectionsSpliterator(this.snapshot, this.from, split);
+        this.from = split;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.to - this.from;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
+
 class IncompatibleClassifier extends Exception {
     public IncompatibleClassifier(Collection<PathClass> classifierOutputs, List<PathClass> detectionClasses, PathClass discardedChannelClass) {
         super("The provided classifier is incompatibile.\n" +
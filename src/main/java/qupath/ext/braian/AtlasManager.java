@@ -4,6 +4,7 @@
 
 package qupath.ext.braian;
 
+import org.locationtech.jts.geom.Geometry;
 import qupath.ext.braian.utils.BraiAn;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.measure.ObservableMeasurementTableData;
@@ -14,6 +15,7 @@ import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.scripting.QP;
 
 import ij.measure.ResultsTable;
@@ -57,6 +59,7 @@ public class AtlasManager {
     public final static PathClass EXCLUDE_CLASSIFICATION = PathClass.fromString("Exclude");
     public final static PathClass ABBA_LEFT = PathClass.fromString("Left");
     public final static PathClass ABBA_RIGHT = PathClass.fromString("Right");
+    private final static String ATLAS_INDEX_NAME = "atlas-annotations";
 
     /**
      * Checks whether at least one ABBA atlas was previously imported.
@@ -112,6 +115,69 @@ public class AtlasManager {
         return Stream.concat(genericMeasurements, detectionsMeasurements).toList();
     }
 
+    private static String getNearestNeighbourMeasurement(PathClass classification, String statistic) {
+        return "NN distance "+classification.getName()+" "+um+": "+statistic;
+    }
+
+    /**
+     * Computes, for each classification of the given detections, the distance between each detection and its
+     * nearest neighbour of the same classification. The distances are then summarised for each ancestor of the detections.
+     * @return for each classification and annotation: the number of detections, the mean distance, and the sum of
+     * squared differences from the mean (see Welford's algorithm)
+     */
+    private static Map<PathClass, Map<PathObject, double[]>> getNearestNeighbourStatistics(List<AbstractDetections> detections,
+                                                                                          double pixelSize) {
+        Map<PathClass, Map<PathObject, double[]>> statistics = new LinkedHashMap<>();
+        for (AbstractDetections d: detections) {
+            Map<PathClass, List<PathObject>> cellsByClass = d.toStream()
+                    .filter(cell -> cell.getPathClass() != null)
+                    .collect(Collectors.groupingBy(PathObject::getPathClass, Collectors.toList()));
+            for (PathClass classification: d.getDetectionsPathClasses()) {
+                List<PathObject> cells = cellsByClass.getOrDefault(classification, List.of());
+                PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(cells, AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE);
+                double[] distances = bbh.nearestNeighbourDistances();
+                Map<PathObject, double[]> regionStatistics = statistics.computeIfAbsent(classification, pc -> new HashMap<>());
+                Iterator<PathObject> iterator = bbh.toStream().iterator();
+                for (double distance: distances) {
+                    PathObject cell = iterator.next();
+                    if (Double.isNaN(distance))
+                        continue;
+                    distance *= pixelSize;
+                    for (PathObject parent = cell.getParent(); parent != null; parent = parent.getParent()) {
+                        double[] stats = regionStatistics.computeIfAbsent(parent, region -> new double[3]);
+                        double delta = distance - stats[1];
+                        stats[0]++;
+                        stats[1] += delta / stats[0];
+                        stats[2] += delta * (distance - stats[1]);
+                    }
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Counts, for each annotation, the overlapping detections that were saved only as a measurement of the control detections.
+     * Such overlaps are not detections of the hierarchy, so they are not counted by QuPath's measurements.
+     * @return for each "Num" column of an overlap, the number of overlapping detections below each annotation
+     * @see OverlappingDetections#isReferenceOnly()
+     */
+    static Map<String, Map<PathObject, Integer>> getReferencedOverlapsCounts(List<AbstractDetections> detections) {
+        Map<String, Map<PathObject, Integer>> counts = new HashMap<>();
+        for (AbstractDetections d: detections) {
+            if (!(d instanceof OverlappingDetections overlaps) || !overlaps.isReferenceOnly())
+                continue;
+            for (PathClass classification: d.getDetectionsPathClasses())
+                counts.put("Num "+classification.getName(), new HashMap<>());
+            overlaps.forEachOverlap((cell, classification) -> {
+                Map<PathObject, Integer> regionCounts = counts.computeIfAbsent("Num "+classification.getName(), col -> new HashMap<>());
+                for (PathObject parent = cell.getParent(); parent != null; parent = parent.getParent())
+                    regionCounts.merge(parent, 1, Integer::sum);
+            });
+        }
+        return counts;
+    }
+
     private static List<PathObject> getExclusionAnnotations(PathObjectHierarchy hierarchy) {
         return hierarchy.getAnnotationObjects().stream()
                 .filter( ann -> ann.getPathClass() == AtlasManager.EXCLUDE_CLASSIFICATION )
@@ -120,6 +186,7 @@ public class AtlasManager {
 
     private final PathObject atlasObject;
     private final PathObjectHierarchy hierarchy;
+    private ProjectImageEntry<?> indexEntry = null; // where to load a previously saved index of the regions from
 
     /**
      * Constructs a manager of the specified atlas imported with ABBA.
@@ -203,9 +270,27 @@ public class AtlasManager {
      * @throws ExclusionMistakeException if the atlas hierarchy contains regions classified as {@link #EXCLUDE_CLASSIFICATION}.
      * @throws DisruptedAtlasHierarchy if the current atlas hierarchy was disrupted,
      * and it cannot find all the brain region organised according to the atlas's hierarchy
+     * @see #saveResults(List, File, boolean)
      */
-    // Olivier Burri <https://github.com/lacan> wrote mostly of this function and published under Apache-2.0 license for qupath-extension-biop
     public boolean saveResults(List<AbstractDetections> detections, File file) {
+        return this.saveResults(detections, file, false);
+    }
+
+    /**
+     * Saves a TSV file containing data for each brain region of the atlas.
+     * Namely, Image name, brain region name, hemisphere, area in µm², number of detections for each of the given types.
+     * If requested, it also adds the mean and the standard deviation of the distance, in µm, between each detection
+     * and its nearest neighbour of the same type.
+     * The table is saved as a CSV (comma-separated values) file if 'file' ends with ".csv"
+     * @param detections the list of detection of which to gather the data for each region
+     * @param file the file where it should write to. Note that if the file exists, it will be overwritten
+     * @param nearestNeighbours whether to export the nearest-neighbour distances of the detections in each region
+     * @throws ExclusionMistakeException if the atlas hierarchy contains regions classified as {@link #EXCLUDE_CLASSIFICATION}.
+     * @throws DisruptedAtlasHierarchy if the current atlas hierarchy was disrupted,
+     * and it cannot find all the brain region organised according to the atlas's hierarchy
+     */
+    // Olivier Burri <https://github.com/lacan> wrote mostly of this function and published under Apache-2.0 license for qupath-extension-biop
+    public boolean saveResults(List<AbstractDetections> detections, File file, boolean nearestNeighbours) {
         if (this.atlasObject.getChildObjects().isEmpty())
             throw new DisruptedAtlasHierarchy(this.atlasObject);
         if (file.exists())
@@ -226,6 +311,10 @@ public class AtlasManager {
         ob.setImageData(QP.getCurrentImageData(), brainRegions);
 
         ProjectImageEntry<BufferedImage> entry = QP.getProjectEntry();
+        Map<PathClass, Map<PathObject, double[]>> nnStatistics = nearestNeighbours ?
+                AtlasManager.getNearestNeighbourStatistics(detections, QP.getCurrentImageData().getServerMetadata().getPixelCalibration().getAveragedPixelSizeMicrons()) :
+                Map.of();
+        Map<String, Map<PathObject, Integer>> referencedOverlaps = AtlasManager.getReferencedOverlapsCounts(detections);
 
         assert entry != null;
         String rawImageName = entry.getImageName();
@@ -247,6 +336,10 @@ public class AtlasManager {
             // Then we can add the results the user requested
             // Because the Mu is sometimes poorly formatted, we remove them in favor of a 'u'
             for (String col : AtlasManager.getDetectionsMeasurements(detections)) {
+                if (referencedOverlaps.containsKey(col)) {
+                    results.addValue(col, referencedOverlaps.get(col).getOrDefault(brainRegion, 0));
+                    continue;
+                }
                 if (ob.isNumericMeasurement(col)) {
                     numericValue = ob.getNumericValue(brainRegion, col);
                     if (col.startsWith("Num ") && Double.isNaN(numericValue))
@@ -256,6 +349,13 @@ public class AtlasManager {
                 if (ob.isStringMeasurement(col))
                     results.addValue(col.replace(um, "um"), ob.getStringValue(brainRegion, col));
             }
+            for (Map.Entry<PathClass, Map<PathObject, double[]>> classStatistics: nnStatistics.entrySet()) {
+                double[] stats = classStatistics.getValue().getOrDefault(brainRegion, new double[3]);
+                double mean = stats[0] > 0 ? stats[1] : Double.NaN;
+                double std = stats[0] > 1 ? Math.sqrt(stats[2] / (stats[0] - 1)) : Double.NaN;
+                results.addValue(getNearestNeighbourMeasurement(classStatistics.getKey(), "Mean").replace(um, "um"), mean);
+                results.addValue(getNearestNeighbourMeasurement(classStatistics.getKey(), "Std.Dev.").replace(um, "um"), std);
+            }
         }
         boolean isSaved = results.save(file.getAbsolutePath());
         getLogger().info("Results '{}' Saved under '{}', contains {} rows", file.getName(), file.getParentFile().getAbsolutePath(), results.size());
@@ -274,14 +374,59 @@ public class AtlasManager {
         getLogger().info("Exclusion annotations: [{}]", BraiAn.join(excludeAnnotations, ", "));
         // We export all the annotations that are not "Exclude" or named "Root".
         // This serves as a downstream ~check~ that the slice has nothing else other than the atlas annotations and the exclusions
-        var otherAnnotations = this.hierarchy.getAnnotationObjects().stream()
+        var otherAnnotations = this.getOtherAnnotations();
+        // Loop over exclusions that contain the annotations to be removed/excluded.
+        // Only the annotations whose bounds are inside those of the exclusion can be covered by it
+        // BoundingBoxHierarchy cannot index annotations made of multiple points, so they are checked one by one
+        Map<Boolean, List<PathObject>> isMultiPoint = partitionMultiPoint(otherAnnotations);
+        PackedBoundingBoxHierarchy regions = SpatialIndexCache.loadOrBuild(this.indexEntry, ATLAS_INDEX_NAME, isMultiPoint.get(false),
+                AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE);
+        Set<PathObject> excluded = new HashSet<>();
+        for (PathObject exclusion: excludeAnnotations) {
+            ROI roi = exclusion.getROI();
+            Geometry geometry = roi.getGeometry();
+            isMultiPoint.get(true).stream()
+                    .filter(ann -> ann.getROI().getGeometry().coveredBy(geometry))
+                    .forEach(excluded::add);
+            regions.visitInside(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(), (ann, cx, cy) -> {
+                if (ann.getROI().getGeometry().coveredBy(geometry))
+                    excluded.add(ann);
+                return true;
+            });
+        }
+        return excluded;
+    }
+
+    private List<PathObject> getOtherAnnotations() {
+        return this.hierarchy.getAnnotationObjects().stream()
                 .filter( ann -> ann.getPathClass() != AtlasManager.EXCLUDE_CLASSIFICATION && ann != this.atlasObject)
                 .toList();
-        // Loop over exclusions that contain the annotations to be removed/excluded
-        return excludeAnnotations.stream()
-                .map(exclusion -> exclusion.getROI().getGeometry())
-                .flatMap(exclusion -> otherAnnotations.stream().filter(ann -> ann.getROI().getGeometry().coveredBy(exclusion)))
-                .collect(Collectors.toSet());
+    }
+
+    private static Map<Boolean, List<PathObject>> partitionMultiPoint(List<PathObject> annotations) {
+        return annotations.stream()
+                .collect(Collectors.partitioningBy(ann -> ann.getROI().isPoint() && ann.getROI().getNumPoints() > 1));
+    }
+
+    /**
+     * Lets the index of the atlas annotations be loaded from the given project entry, if it was previously
+     * {@link #saveIndex(ProjectImageEntry) saved} there for the same annotations. Otherwise, it is built as usual.
+     * @param entry the project entry owning the hierarchy of the atlas
+     */
+    public void useSavedIndex(ProjectImageEntry<?> entry) {
+        this.indexEntry = entry;
+    }
+
+    /**
+     * Saves the index of the atlas annotations in the given project entry, so that the next runs on the same image can
+     * {@link #useSavedIndex(ProjectImageEntry) load} it instead of building it again.
+     * @param entry the project entry owning the hierarchy of the atlas
+     * @return true if the index was saved
+     */
+    public boolean saveIndex(ProjectImageEntry<?> entry) {
+        List<PathObject> regions = partitionMultiPoint(this.getOtherAnnotations()).get(false);
+        return SpatialIndexCache.save(entry, ATLAS_INDEX_NAME, SpatialIndexCache.loadOrBuild(this.indexEntry, ATLAS_INDEX_NAME,
+                regions, AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE));
     }
 
     /**
@@ -0,0 +1,331 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Top-down builder of the nodes of a {@link PackedBoundingBoxHierarchy}.
+ * <p>
+ * It reads the ROI of each object only once and then it partitions, in place, a single array of indices:
+ * each node computes its bounds in one pass and splits its objects in four equally sized squares with a
+ * stable counting sort. The recursion stops when a node has at most <code>leafSize</code> objects,
+ * or when it reaches <code>maxDepth</code>.
+ * <p>
+ * Nodes with more than <code>parallelCutoff</code> objects build their quadrants in parallel, as {@link RecursiveTask}s.
+ * Each task builds its own sub-hierarchy, which is then merged with its siblings' such that the resulting
+ * hierarchy is the same as the one built by a single thread.
+ * <p>
+ * Once built, the objects are sorted such that the objects of each leaf node are contiguous,
+ * in the same order in which a depth-first visit of the hierarchy would find them.
+ */
+class BoundingBoxBuilder {
+    static final int DEFAULT_PARALLEL_CUTOFF = 1 << 14;
+
+    PathObject[] objects;
+    double[] objectBounds;     // x, y, width, height
+    double[] centroids;        // x, y
+    Nodes nodes;
+
+    private final int[] order;
+    private final int[] scratch;
+
+    /**
+     * The nodes of a hierarchy. Node <code>0</code> is the root, the children of each node are allocated
+     * contiguously and before visiting any of them.
+     */
+    static class Nodes {
+        private static final int INITIAL_CAPACITY = 16;
+
+        double[] bounds = new double[4*INITIAL_CAPACITY];   // x, y, width, height
+        int[] children = new int[2*INITIAL_CAPACITY];       // first child node, number of children nodes
+        int[] objects = new int[2*INITIAL_CAPACITY];        // first object, number of objects
+        int size = 0;
+        int depth = -1;
+
+        int allocate(int n) {
+            int first = this.size;
+            this.size += n;
+            int capacity = this.children.length/2;
+            if (this.size > capacity) {
+                capacity = Math.max(capacity*2, this.size);
+                this.bounds = Arrays.copyOf(this.bounds, 4*capacity);
+                this.children = Arrays.copyOf(this.children, 2*capacity);
+                this.objects = Arrays.copyOf(this.objects, 2*capacity);
+            }
+            return first;
+        }
+
+        void setBounds(int node, double x, double y, double w, double h) {
+            this.bounds[4*node] = x;
+            this.bounds[4*node+1] = y;
+            this.bounds[4*node+2] = w;
+            this.bounds[4*node+3] = h;
+        }
+
+        void setChildren(int node, int first, int n) {
+            this.children[2*node] = first;
+            this.children[2*node+1] = n;
+        }
+
+        void setLeaf(int node, int from, int to) {
+            this.objects[2*node] = from;
+            this.objects[2*node+1] = to - from;
+        }
+
+        /**
+         * copies the given node of <code>other</code> into <code>node</code>,
+         * shifting the index of its children by <code>offset</code>
+         */
+        private void copy(int node, Nodes other, int otherNode, int offset) {
+            System.arraycopy(other.bounds, 4*otherNode, this.bounds, 4*node, 4);
+            int nChildren = other.children[2*otherNode+1];
+            this.setChildren(node, nChildren == 0 ? 0 : other.children[2*otherNode] + offset, nChildren);
+            System.arraycopy(other.objects, 2*otherNode, this.objects, 2*node, 2);
+        }
+    }
+
+    BoundingBoxBuilder(Collection<? extends PathObject> objects) {
+        int n = objects.size();
+        this.objects = new PathObject[n];
+        this.objectBounds = new double[4*n];
+        this.centroids = new double[2*n];
+        int i = 0;
+        for (PathObject object: objects) {
+            ROI roi = object.getROI();
+            if (roi.isPoint() && roi.getNumPoints() > 1)
+                throw new IllegalArgumentException("BoundingBoxHierarchy cannot handle PointsROI objects with multiple points");
+            this.objects[i] = object;
+            this.objectBounds[4*i] = roi.getBoundsX();
+            this.objectBounds[4*i+1] = roi.getBoundsY();
+            this.objectBounds[4*i+2] = roi.getBoundsWidth();
+            this.objectBounds[4*i+3] = roi.getBoundsHeight();
+            this.centroids[2*i] = roi.getCentroidX();
+            this.centroids[2*i+1] = roi.getCentroidY();
+            i++;
+        }
+        this.order = new int[n];
+        for (int j = 0; j < n; j++)
+            this.order[j] = j;
+        this.scratch = new int[n];
+    }
+
+    /**
+     * Builds the hierarchy. Once done, {@link #nodes} contains the nodes of the hierarchy
+     * @param maxDepth the maximum depth that that hierarchy can have
+     * @param leafSize the maximum number of objects a node can have without being split
+     * @param parallelCutoff the minimum number of objects a node must have for its children to be built in parallel
+     */
+    void build(int maxDepth, int leafSize, int parallelCutoff) {
+        int n = this.objects.length;
+        if (n > parallelCutoff && ForkJoinPool.getCommonPoolParallelism() > 1)
+            this.nodes = ForkJoinPool.commonPool().invoke(new BuildTask(0, n, maxDepth, leafSize, parallelCutoff));
+        else {
+            this.nodes = new Nodes();
+            int root = this.nodes.allocate(1);
+            if (n > 0)
+                this.nodes.depth = this.buildNode(this.nodes, root, 0, n, maxDepth, leafSize);
+        }
+        if (n > 0)
+            this.sortObjects();
+    }
+
+    /**
+     * computes the bounds of the objects in <code>order[from:to]</code> and saves them in the given node
+     * @return true if the node should be split in quadrants. False if it is a leaf
+     */
+    private boolean computeBounds(Nodes nodes, int node, int from, int to, int maxDepth, int leafSize) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int k = from; k < to; k++) {
+            int i = this.order[k];
+            double x = this.objectBounds[4*i];
+            double y = this.objectBounds[4*i+1];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x + this.objectBounds[4*i+2]);
+            maxY = Math.max(maxY, y + this.objectBounds[4*i+3]);
+        }
+        double w = maxX - minX;
+        double h = maxY - minY;
+        nodes.setBounds(node, minX, minY, w, h);
+        if (maxDepth == 1 || PackedBoundingBoxHierarchy.isEmptyBox(w, h) || to - from <= leafSize) {
+            nodes.setLeaf(node, from, to);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * divides the space of a node in 4 equally sized squares and stably partitions <code>order[from:to]</code> accordingly
+     * @return the number of objects in each quadrant
+     */
+    private int[] partition(Nodes nodes, int node, int from, int to) {
+        double minX = nodes.bounds[4*node];
+        double minY = nodes.bounds[4*node+1];
+        double length = Math.max(nodes.bounds[4*node+2], nodes.bounds[4*node+3]) / 2;
+        double midX = minX + length;
+        double midY = minY + length;
+        int[] counts = new int[4];
+        for (int k = from; k < to; k++)
+            counts[this.quadrant(this.order[k], midX, midY)]++;
+        int[] next = new int[4];
+        for (int q = 0, start = from; q < 4; q++) {
+            next[q] = start;
+            start += counts[q];
+        }
+        for (int k = from; k < to; k++) {
+            int i = this.order[k];
+            this.scratch[next[this.quadrant(i, midX, midY)]++] = i;
+        }
+        System.arraycopy(this.scratch, from, this.order, from, to - from);
+        return counts;
+    }
+
+    private int quadrant(int i, double midX, double midY) {
+        return (this.centroids[2*i] < midX ? 0 : 1) + (this.centroids[2*i+1] < midY ? 0 : 2);
+    }
+
+    private static int countChildren(int[] counts) {
+        int nChildren = 0;
+        for (int count: counts)
+            if (count > 0)
+                nChildren++;
+        return nChildren;
+    }
+
+    private void setSingleton(Nodes nodes, int node, int k) {
+        // a single object is a child node of depth 0
+        int i = this.order[k];
+        nodes.setBounds(node, this.objectBounds[4*i], this.objectBounds[4*i+1], this.objectBounds[4*i+2], this.objectBounds[4*i+3]);
+        nodes.setLeaf(node, k, k+1);
+    }
+
+    /**
+     * fills the given node with the objects in <code>order[from:to]</code>
+     * @return the depth of the node
+     */
+    private int buildNode(Nodes nodes, int node, int from, int to, int maxDepth, int leafSize) {
+        if (!this.computeBounds(nodes, node, from, to, maxDepth, leafSize))
+            return 1;
+        int[] counts = this.partition(nodes, node, from, to);
+        int nChildren = countChildren(counts);
+        int firstChild = nodes.allocate(nChildren);
+        nodes.setChildren(node, firstChild, nChildren);
+        int maxChildDepth = 0;
+        for (int q = 0, child = firstChild, start = from; q < 4; start += counts[q++]) {
+            if (counts[q] == 0)
+                continue;
+            if (counts[q] == 1)
+                this.setSingleton(nodes, child, start);
+            else
+                maxChildDepth = Math.max(maxChildDepth, this.buildNode(nodes, child, start, start+counts[q], maxDepth-1, leafSize));
+            child++;
+        }
+        return maxChildDepth+1;
+    }
+
+    /**
+     * Builds the sub-hierarchy of the objects in <code>order[from:to]</code>, with its root in node <code>0</code>.
+     */
+    private class BuildTask extends RecursiveTask<Nodes> {
+        private final int from;
+        private final int to;
+        private final int maxDepth;
+        private final int leafSize;
+        private final int parallelCutoff;
+
+        BuildTask(int from, int to, int maxDepth, int leafSize, int parallelCutoff) {
+            this.from = from;
+            this.to = to;
+            this.maxDepth = maxDepth;
+            this.leafSize = leafSize;
+            this.parallelCutoff = parallelCutoff;
+        }
+
+        @Override
+        protected Nodes compute() {
+            Nodes nodes = new Nodes();
+            int root = nodes.allocate(1);
+            if (this.to - this.from <= this.parallelCutoff) {
+                nodes.depth = buildNode(nodes, root, this.from, this.to, this.maxDepth, this.leafSize);
+                return nodes;
+            }
+            if (!computeBounds(nodes, root, this.from, this.to, this.maxDepth, this.leafSize)) {
+                nodes.depth = 1;
+                return nodes;
+            }
+            int[] counts = partition(nodes, root, this.from, this.to);
+            List<Object> children = new ArrayList<>(4); // either a BuildTask or the index of a single object
+            for (int q = 0, start = this.from; q < 4; start += counts[q++]) {
+                if (counts[q] == 1)
+                    children.add(start);
+                else if (counts[q] > 1)
+                    children.add(new BuildTask(start, start+counts[q], this.maxDepth-1, this.leafSize, this.parallelCutoff));
+            }
+            for (Object child: children)
+                if (child instanceof BuildTask task)
+                    task.fork();
+            return this.merge(nodes, children);
+        }
+
+        /**
+         * Merges the sub-hierarchies in the same layout that {@link #buildNode(Nodes, int, int, int, int, int)} would have
+         * produced: first the roots of all the children and then, in order, the remaining nodes of each sub-hierarchy.
+         */
+        private Nodes merge(Nodes nodes, List<Object> children) {
+            int nChildren = children.size();
+            int firstChild = nodes.allocate(nChildren);
+            nodes.setChildren(0, firstChild, nChildren);
+            int maxChildDepth = 0;
+            for (int c = 0; c < nChildren; c++) {
+                int child = firstChild + c;
+                if (!(children.get(c) instanceof BuildTask task)) {
+                    setSingleton(nodes, child, (Integer) children.get(c));
+                    continue;
+                }
+                Nodes sub = task.join();
+                maxChildDepth = Math.max(maxChildDepth, sub.depth);
+                // the remaining nodes of 'sub' are appended, in order, after the current ones.
+                // Local node j>0 of 'sub' becomes (base + j-1)
+                int base = nodes.size;
+                int offset = base - 1;
+                nodes.allocate(sub.size - 1);
+                nodes.copy(child, sub, 0, offset);
+                for (int j = 1; j < sub.size; j++)
+                    nodes.copy(base + j - 1, sub, j, offset);
+            }
+            nodes.depth = maxChildDepth+1;
+            return nodes;
+        }
+    }
+
+    /**
+     * sorts the objects as they were partitioned in <code>order</code>
+     */
+    private void sortObjects() {
+        int n = this.order.length;
+        PathObject[] objects = new PathObject[n];
+        double[] objectBounds = new double[4*n];
+        double[] centroids = new double[2*n];
+        for (int k = 0; k < n; k++) {
+            int i = this.order[k];
+            objects[k] = this.objects[i];
+            System.arraycopy(this.objectBounds, 4*i, objectBounds, 4*k, 4);
+            System.arraycopy(this.centroids, 2*i, centroids, 2*k, 2);
+        }
+        this.objects = objects;
+        this.objectBounds = objectBounds;
+        this.centroids = centroids;
+    }
+}
@@ -8,19 +8,71 @@ import org.locationtech.jts.geom.Geometry;
 import qupath.lib.objects.PathObject;
 import qupath.lib.roi.interfaces.ROI;
 
-import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.util.*;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 interface BoundingBox {
     Rectangle2D getBox();
     int getDepth();
     Stream<PathObject> toStream();
-    Optional<PathObject> getOverlappingObjectIfPresent(PathObject object);
     boolean contains(PathObject object);
+
+    /**
+     * Visits all the objects whose centroid is inside the object of the query, without allocating.
+     * The objects are visited in depth-first order.
+     * @param query the query to search for. It can be reused across multiple visits
+     * @param visitor the visitor to which each overlapping object is given
+     * @return false if the visitor stopped the visit. True otherwise
+     */
+    boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor);
+
+    default Optional<PathObject> getOverlappingObjectIfPresent(PathObject object) {
+        OverlapQuery query = new OverlapQuery(object);
+        ClosestOverlap closest = new ClosestOverlap(query);
+        this.visitOverlaps(query, closest);
+        return Optional.ofNullable(closest.getClosest());
+    }
+
+    default PathObject[] getOverlappingObjects(List<? extends PathObject> objects) {
+        PathObject[] overlaps = new PathObject[objects.size()];
+        OverlapQuery query = new OverlapQuery();
+        ClosestOverlap closest = new ClosestOverlap(query);
+        for (int i = 0; i < overlaps.length; i++) {
+            this.visitOverlaps(query.set(objects.get(i)), closest.reset());
+            overlaps[i] = closest.getClosest();
+        }
+        return overlaps;
+    }
+
+    /**
+     * For each of the given objects, joins the tags of all the objects whose centroid is inside it.
+     * The visit of each query stops as soon as all the tags in <code>allTags</code> were found.
+     * @param objects the objects to search the overlaps for
+     * @param tags the bitmask of each object in the index
+     * @param allTags the union of all the bitmasks in the index
+     * @return an array, as long as <code>objects</code>, with the union of the tags of the objects overlapping with each query
+     */
+    default int[] getOverlappingTags(List<? extends PathObject> objects, ToIntFunction<PathObject> tags, int allTags) {
+        int[] overlaps = new int[objects.size()];
+        OverlapQuery query = new OverlapQuery();
+        TagsOverlap found = new TagsOverlap(tags, allTags);
+        for (int i = 0; i < overlaps.length; i++) {
+            this.visitOverlaps(query.set(objects.get(i)), found.reset());
+            overlaps[i] = found.getTags();
+        }
+        return overlaps;
+    }
+
+    default boolean[] contains(List<? extends PathObject> objects) {
+        boolean[] contained = new boolean[objects.size()];
+        for (int i = 0; i < contained.length; i++)
+            contained[i] = this.contains(objects.get(i));
+        return contained;
+    }
 }
 
 class BVHNode implements BoundingBox {
@@ -43,25 +95,10 @@ class BVHNode implements BoundingBox {
     }
 
     @Override
-    public Optional<PathObject> getOverlappingObjectIfPresent(PathObject object) {
-        // if ROI.contains() results in being buggy, in the future we could rely on:
-        // ROI.getGeometry().covers(c) || ROI.getGeometry().intersects(c)
-        ROI roiObject = object.getROI();
-        double x = roiObject.getBoundsX();
-        double y = roiObject.getBoundsY();
-        if (roiObject.isPoint() || roiObject.isEmpty())
-            if (x == centroidX && y == centroidY)
-                return Optional.of(this.po);
-            else
-                return Optional.empty();
-        double w = roiObject.getBoundsWidth();
-        double h = roiObject.getBoundsHeight();
-        if(!this.bbox.intersects(x, y, w, h) && !this.bbox.isEmpty())
-            return Optional.empty();
-        if(roiObject.contains(centroidX, centroidY))
-            return Optional.of(this.po);
-
-        return Optional.empty();
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        if (query.matches(this.bbox.x, this.bbox.y, this.bbox.width, this.bbox.height, this.centroidX, this.centroidY))
+            return visitor.visit(this.po, this.centroidX, this.centroidY);
+        return true;
     }
 
     @Override
@@ -93,7 +130,7 @@ class BVHNode implements BoundingBox {
  */
 public class BoundingBoxHierarchy implements BoundingBox {
     private final Rectangle2D.Double bbox;
-    private final Collection<BoundingBox> children;
+    private final List<BoundingBox> children;
 
     /**
      * Builds a top-down <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">BVH</a> of maximum 6 levels
@@ -112,52 +149,35 @@ public class BoundingBoxHierarchy implements BoundingBox {
      */
     public BoundingBoxHierarchy(Collection<? extends PathObject> objects, int maxDepth) {
         // top-down construction
-        if (maxDepth < 1)
-            throw new IllegalArgumentException("maxDepth must be >1. Instead got maxDepth="+maxDepth);
-        if (objects.isEmpty()) {
+        this(new PackedBoundingBoxHierarchy(objects, maxDepth), 0);
+    }
+
+    private BoundingBoxHierarchy(PackedBoundingBoxHierarchy packed, int node) {
+        if (packed.isEmpty()) {
             this.bbox = new Rectangle2D.Double();
             this.children = Arrays.asList();
             return;
         }
-        if (objects.stream().anyMatch(o -> {ROI roi = o.getROI(); return roi.isPoint() && roi.getNumPoints() > 1;}))
-            throw new IllegalArgumentException("BoundingBoxHierarchy cannot handle PointsROI objects with multiple points");
-        double minX = objects.stream().map(object -> object.getROI().getBoundsX()).min(Double::compare).get();
-        double minY = objects.stream().map(object -> object.getROI().getBoundsY()).min(Double::compare).get();
-        double maxX = objects.stream().map(object -> object.getROI().getBoundsX() + object.getROI().getBoundsWidth()).max(Double::compare).get();
-        double maxY = objects.stream().map(object -> object.getROI().getBoundsY() + object.getROI().getBoundsHeight()).max(Double::compare).get();
-        this.bbox = new Rectangle2D.Double(minX, minY, maxX - minX, maxY - minY);
-        if (maxDepth == 1 || this.bbox.isEmpty())
-            this.children = objects.stream().map(object -> (BoundingBox) new BVHNode(object)).toList();
-        else
-            this.children = splitSpace() // split space in equally sized squares
-                    .map(subArea -> findObjectsInside(objects, subArea)) // uses java.awt.Shape definition of insideness.
-                    // This ensures that an object in objects is not inside multiple areas
-                    .filter(Predicate.not(Collection::isEmpty))
-                    .map(insideSubArea -> createChildBoundingBox(insideSubArea, maxDepth))
+        this.bbox = packed.getNodeBox(node);
+        int nChildren = packed.getChildrenCount(node);
+        if (nChildren == 0) {
+            int first = packed.getFirstObject(node);
+            this.children = IntStream.range(first, first+packed.getObjectsCount(node))
+                    .mapToObj(i -> (BoundingBox) new BVHNode(packed.getObject(i)))
                     .toList();
-    }
-
-    private Stream<Rectangle2D> splitSpace() {
-        // divides the space in 4 squares
-        double length = Math.max(this.bbox.getWidth(), this.bbox.getHeight()) / 2;
-        double minX = this.bbox.getX();
-        double minY = this.bbox.getY();
-        double[][] asd = {{minX, minY}, {minX + length, minY}, {minX, minY + length}, {minX + length, minY + length}};
-        return Arrays.stream(asd).map(pos -> new Rectangle2D.Double(pos[0], pos[1], length, length));
-    }
-
-    private List<? extends PathObject> findObjectsInside(Collection<? extends PathObject> objects, Shape area) {
-        return objects.stream()
-                .filter(o -> area.contains(o.getROI().getCentroidX(), o.getROI().getCentroidY()))
+            return;
+        }
+        int firstChild = packed.getFirstChild(node);
+        this.children = IntStream.range(firstChild, firstChild+nChildren)
+                .mapToObj(child -> createChildBoundingBox(packed, child))
                 .toList();
     }
 
-    private BoundingBox createChildBoundingBox(List<? extends PathObject> objectsInside, int nLevels) {
-        assert !objectsInside.isEmpty();
-        if (objectsInside.size() == 1)
-            return new BVHNode(objectsInside.get(0));
+    private static BoundingBox createChildBoundingBox(PackedBoundingBoxHierarchy packed, int child) {
+        if (packed.getChildrenCount(child) == 0 && packed.getObjectsCount(child) == 1)
+            return new BVHNode(packed.getObject(packed.getFirstObject(child)));
         else
-            return new BoundingBoxHierarchy(objectsInside, nLevels - 1);
+            return new BoundingBoxHierarchy(packed, child);
     }
 
     /**
@@ -213,25 +233,32 @@ public class BoundingBoxHierarchy implements BoundingBox {
      */
     @Override
     public Optional<PathObject> getOverlappingObjectIfPresent(PathObject object) {
-        if(this.isEmpty()) // if the BBH is empty
-            return Optional.empty();
-        ROI objectRoi = object.getROI();
-        if (!objectRoi.isPoint() && !objectRoi.isEmpty()) {
-            double poX = objectRoi.getBoundsX();
-            double poY = objectRoi.getBoundsY();
-            double poW = objectRoi.getBoundsWidth();
-            double poH = objectRoi.getBoundsHeight();
-            if (!this.bbox.intersects(poX, poY, poW, poH) && !this.bbox.isEmpty())
-                return Optional.empty();
+        return BoundingBox.super.getOverlappingObjectIfPresent(object);
+    }
+
+    @Override
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        BoundingBox[] stack = query.getBoxesStack(1);
+        int top = 0;
+        stack[top++] = this;
+        while (top > 0) {
+            BoundingBox box = stack[--top];
+            stack[top] = null;
+            if (!(box instanceof BoundingBoxHierarchy bbh)) {
+                if (!box.visitOverlaps(query, visitor)) {
+                    Arrays.fill(stack, 0, top, null);
+                    return false;
+                }
+                continue;
+            }
+            if (bbh.isEmpty() || query.isOutside(bbh.bbox.x, bbh.bbox.y, bbh.bbox.width, bbh.bbox.height))
+                continue;
+            int nChildren = bbh.children.size();
+            stack = query.getBoxesStack(top + nChildren);
+            for (int c = nChildren - 1; c >= 0; c--)
+                stack[top++] = bbh.children.get(c);
         }
-        List<PathObject> overlaps = this.children.stream()
-                .map(bvh -> bvh.getOverlappingObjectIfPresent(object))
-                .flatMap(Optional::stream)
-                .toList();
-        if (overlaps.size() < 2)
-            return overlaps.stream().findFirst();
-        // there are more than one object overlapping
-        return Optional.of(getClosestOverlap(overlaps, object));
+        return true;
     }
 
     /**
@@ -242,21 +269,6 @@ public class BoundingBoxHierarchy implements BoundingBox {
         return this.children.isEmpty();
     }
 
-    private PathObject getClosestOverlap(List<PathObject> overlaps, PathObject object) {
-        assert overlaps.size() >= 2;
-        List<Double> distances =  overlaps.stream()
-                .map(overlap -> {
-                    double x1 = object.getROI().getCentroidX();
-                    double y1 = object.getROI().getCentroidY();
-                    double x2 = overlap.getROI().getCentroidX();
-                    double y2 = overlap.getROI().getCentroidY();
-                    return Math.hypot(x1-x2, y1-y2);
-                })
-                .toList();
-        int argMin = distances.indexOf(distances.stream().min(Double::compare).get()); // can't fail on get() as the stream is at least 2-elements long
-        return overlaps.get(argMin);
-    }
-
     /**
      * Visits each element of the hierarchy and outputs all the objects contained as {@link java.util.stream.Stream}.
      * @return the stream of all saved objects
@@ -0,0 +1,253 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.imagej.detect.cells.WatershedCellDetection;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.TaskRunnerUtils;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link WatershedCellDetection} inside given containers, without relying on the current image or on
+ * the objects currently selected.
+ * <p>
+ * Each container is detected on a temporary {@link ImageData}, sharing the same server of the image but having its own
+ * hierarchy, where only a copy of the container is selected, and the same stains and properties. This way, multiple
+ * containers can be detected concurrently, and the threads of QuPath are split among them.
+ * The detections are then moved to their container with a {@link HierarchyBatch}, so that the hierarchy changes all at once.
+ */
+public final class CellDetectionRunner {
+    /**
+     * The default maximum number of containers detected at the same time.
+     * Each detection already splits its container in tiles processed in parallel
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * The parameters of {@link WatershedCellDetection} that decide which regions of the image are requested
+     */
+    private static final List<String> TILING_PARAMETERS = List.of("requestedPixelSizeMicrons", "requestedPixelSize",
+            "cellExpansionMicrons", "cellExpansion");
+
+    private final ImageData<BufferedImage> imageData;
+    private final String args;
+    private final int maxConcurrent;
+    private final List<Object> tiling;
+
+    /**
+     * @param imageData the image where to detect the cells
+     * @param params the parameters to give to {@link WatershedCellDetection}
+     * @see qupath.ext.braian.config.WatershedCellDetectionConfig#build(ImageChannelTools)
+     */
+    public CellDetectionRunner(ImageData<BufferedImage> imageData, Map<String, ?> params) {
+        this(imageData, params, DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * @param imageData the image where to detect the cells
+     * @param params the parameters to give to {@link WatershedCellDetection}
+     * @param maxConcurrent the maximum number of containers detected at the same time
+     */
+    public CellDetectionRunner(ImageData<BufferedImage> imageData, Map<String, ?> params, int maxConcurrent) {
+        if (maxConcurrent <= 0)
+            throw new IllegalArgumentException("maxConcurrent must be >0. Instead got maxConcurrent="+maxConcurrent);
+        this.imageData = imageData;
+        this.args = GsonTools.getInstance().toJson(params);
+        this.maxConcurrent = maxConcurrent;
+        this.tiling = getTiling(params);
+    }
+
+    /**
+     * @return the values of {@link #TILING_PARAMETERS}. Two runners with the same values request the same regions
+     */
+    static List<Object> getTiling(Map<String, ?> params) {
+        List<Object> tiling = new ArrayList<>(TILING_PARAMETERS.size());
+        for (String name: TILING_PARAMETERS) {
+            Object value = params.get(name);
+            tiling.add(value instanceof Number number ? number.doubleValue() : value);
+        }
+        return tiling;
+    }
+
+    /**
+     * Detects the cells inside the given container, without adding them to the hierarchy
+     * @param container the annotation inside of which to detect the cells
+     * @return the detected cells, classified as <code>container</code>
+     * @throws InterruptedException if the detection was interrupted
+     */
+    public List<PathObject> detect(PathAnnotationObject container) throws InterruptedException {
+        return this.detect(container, this.imageData.getServer(), ThreadTools.getParallelism());
+    }
+
+    /**
+     * @param nThreads the number of threads with which to process the tiles of <code>container</code>
+     */
+    private List<PathObject> detect(PathAnnotationObject container, ImageServer<BufferedImage> server, int nThreads) throws InterruptedException {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject region = PathObjects.createAnnotationObject(container.getROI());
+        hierarchy.addObject(region);
+        hierarchy.getSelectionModel().setSelectedObject(region);
+        ImageData<BufferedImage> regionData = new ImageData<>(server, hierarchy, this.imageData.getImageType());
+        // brightfield images are detected on the stains set by the user, not on the default ones
+        if (this.imageData.getColorDeconvolutionStains() != null)
+            regionData.setColorDeconvolutionStains(this.imageData.getColorDeconvolutionStains());
+        this.imageData.getProperties().forEach(regionData::setProperty);
+        boolean completed = new WatershedCellDetection().runPlugin(TaskRunnerUtils.getDefaultInstance().createHeadlessTaskRunner(nThreads),
+                regionData, this.args);
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+        if (!completed) {
+            BraiAnExtension.logger.warn("Watershed cell detection did not complete. Returning empty list of detections for "+container+"!");
+            return List.of();
+        }
+        List<PathObject> cells = new ArrayList<>(region.getChildObjects());
+        cells.forEach(cell -> cell.setPathClass(container.getPathClass()));
+        return cells;
+    }
+
+    /**
+     * Detects, concurrently, the cells inside each of the given containers. The cells are then added to their container
+     * when <code>batch</code> is committed.
+     * <br>
+     * If the detection is interrupted, the containers not yet detected are left empty.
+     * @param containers the annotations inside of which to detect the cells
+     * @param batch where to collect the changes to the hierarchy
+     */
+    public void detect(Collection<PathAnnotationObject> containers, HierarchyBatch batch) {
+        ImageServer<BufferedImage> server = this.imageData.getServer();
+        List<PathAnnotationObject> targets = List.copyOf(containers);
+        int nConcurrent = Math.max(1, Math.min(this.maxConcurrent, targets.size()));
+        int nThreads = splitThreads(nConcurrent);
+        List<Callable<List<PathObject>>> tasks = targets.stream()
+                .map(container -> (Callable<List<PathObject>>) () -> this.detect(container, server, nThreads))
+                .toList();
+        run(targets, tasks, nConcurrent, batch);
+    }
+
+    /**
+     * Detects the cells of multiple channels inside the same annotations, reading each tile of the image only once
+     * for all the channels.
+     * <p>
+     * For each annotation, the channels are detected side by side on a {@link SharedTilesServer}, so that a tile read
+     * for one channel is reused by all the others, and it is dropped once all of them read it.
+     * The detections are the same as those of each runner alone. Only the channels requesting the same pixel size and
+     * cell expansion, however, share their tiles; any other channel reads the image on its own.
+     * The tiles shared for an annotation are released as soon as all its channels are detected.
+     * <br>
+     * Up to {@link #DEFAULT_MAX_CONCURRENT} annotations, or the maximum set for the first runner, are detected at the same time,
+     * as long as there are enough threads for all their channels.
+     * @param runners the runners of each channel, all on the same image
+     * @param containers for each runner, the containers where to detect the cells. The <code>i</code>-th container
+     *                   of every runner must be derived from the same annotation
+     * @param batch where to collect the changes to the hierarchy
+     */
+    public static void detectChannels(List<CellDetectionRunner> runners, List<List<PathAnnotationObject>> containers,
+                                      HierarchyBatch batch) {
+        if (runners.size() != containers.size())
+            throw new IllegalArgumentException("Each runner must have its own containers. Instead got "+runners.size()+" runners and "+containers.size()+" lists of containers");
+        if (runners.isEmpty())
+            return;
+        int nAnnotations = containers.get(0).size();
+        if (containers.stream().anyMatch(channelContainers -> channelContainers.size() != nAnnotations))
+            throw new IllegalArgumentException("All runners must detect in the same number of containers");
+        ImageServer<BufferedImage> server = runners.get(0).imageData.getServer();
+        // at least all the channels of one annotation run side by side, even if they are more than the available threads
+        int nConcurrent = Math.min(runners.get(0).maxConcurrent * runners.size(),
+                Math.max(runners.size(), ThreadTools.getParallelism()));
+        int nThreads = splitThreads(nConcurrent);
+        List<PathAnnotationObject> targets = new ArrayList<>(nAnnotations * runners.size());
+        List<Callable<List<PathObject>>> tasks = new ArrayList<>(nAnnotations * runners.size());
+        Map<List<Object>, Integer> nReaders = new LinkedHashMap<>();
+        for (CellDetectionRunner runner: runners)
+            nReaders.merge(runner.tiling, 1, Integer::sum);
+        AtomicLong nDecoded = new AtomicLong(), nShared = new AtomicLong();
+        for (int a = 0; a < nAnnotations; a++) {
+            Map<List<Object>, SharedTilesServer> servers = new LinkedHashMap<>();
+            nReaders.forEach((tiling, n) -> {
+                if (n > 1)
+                    servers.put(tiling, new SharedTilesServer(server, n, SharedTilesServer.DEFAULT_MAX_BYTES));
+            });
+            AtomicInteger nRunning = new AtomicInteger(runners.size());
+            // the channels of the same annotation are queued one after the other, so that they run side by side
+            for (int c = 0; c < runners.size(); c++) {
+                CellDetectionRunner runner = runners.get(c);
+                PathAnnotationObject container = containers.get(c).get(a);
+                SharedTilesServer shared = servers.get(runner.tiling);
+                ImageServer<BufferedImage> reader = shared != null ? shared : server;
+                targets.add(container);
+                tasks.add(() -> {
+                    try {
+                        return runner.detect(container, reader, nThreads);
+                    } finally {
+                        if (nRunning.decrementAndGet() == 0) {
+                            for (SharedTilesServer released: servers.values()) {
+                                long[] counts = released.clear();
+                                nDecoded.addAndGet(counts[0]);
+                                nShared.addAndGet(counts[1]);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        run(targets, tasks, nConcurrent, batch);
+        BraiAnExtension.logger.debug("Detected {} channels reading {} shared tiles, and reusing them {} times", runners.size(), nDecoded, nShared);
+    }
+
+    /**
+     * @return the number of threads each detection can use, so that <code>nConcurrent</code> detections running
+     * at the same time use about as many threads as a single detection would
+     */
+    private static int splitThreads(int nConcurrent) {
+        return Math.max(1, ThreadTools.getParallelism() / nConcurrent);
+    }
+
+    /**
+     * Runs the tasks on at most <code>nThreads</code> threads, and adds the cells detected by each of them to the
+     * corresponding container
+     */
+    private static void run(List<PathAnnotationObject> containers, List<Callable<List<PathObject>>> tasks,
+                            int nThreads, HierarchyBatch batch) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, tasks.size())));
+        try {
+            List<Future<List<PathObject>>> detections = new ArrayList<>(tasks.size());
+            for (Callable<List<PathObject>> task: tasks)
+                detections.add(executor.submit(task));
+            for (int i = 0; i < containers.size(); i++)
+                batch.addAll(containers.get(i), detections.get(i).get());
+        } catch (InterruptedException e) {
+            BraiAnExtension.logger.warn("Watershed cell detection interrupted. Some containers were left with no detection!");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                BraiAnExtension.logger.warn("Watershed cell detection interrupted. Some containers were left with no detection!");
+                return;
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -5,12 +5,14 @@
 package qupath.ext.braian;
 
 import qupath.ext.braian.config.WatershedCellDetectionConfig;
+import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.scripting.QP;
 
+import java.awt.image.BufferedImage;
 import java.util.*;
 
 /**
@@ -92,12 +94,16 @@ public class ChannelDetections extends AbstractDetections {
             throw new IllegalArgumentException("You must give at least one annotation on which to compute the detections");
         }
         Map<String, ?> params = config.build(channel);
+        ImageData<BufferedImage> imageData = channel.getImageData() != null ? channel.getImageData() : QP.getCurrentImageData();
         // TODO: check if the given annotations overlap. If they do, throw an error as that would duplicate detections
+        HierarchyBatch batch = new HierarchyBatch(hierarchy);
         List<PathAnnotationObject> containers = annotations.stream().map(annotation -> {
             annotation.setLocked(true);
-            PathAnnotationObject container = this.createContainer(annotation, true);
-            return ChannelDetections.compute(container, params);
+            return this.createContainer(annotation, true, batch);
         }).toList();
+        // all the containers are detected concurrently, and the hierarchy changes only once they are all done
+        new CellDetectionRunner(imageData, params).detect(containers, batch);
+        batch.commit();
 
         this.fireUpdate();
     }
@@ -118,16 +124,51 @@ public class ChannelDetections extends AbstractDetections {
         this(channel, annotation != null ? List.of(annotation) : null, config, hierarchy);
     }
 
-    private static PathAnnotationObject compute(PathAnnotationObject container, Map<String,?> params) {
-        QP.selectObjects(container);
-        try {
-            QP.runPlugin("qupath.imagej.detect.cells.WatershedCellDetection", params);
-            ChannelDetections.getChildrenDetections(container).forEach(detection -> detection.setPathClass(container.getPathClass()));
-            return container;
-        } catch (InterruptedException e) {
-            BraiAnExtension.logger.warn("Watershed cell detection interrupted. Returning empty list of detections for "+container+"!");
-            return container;
+    /**
+     * Computes the detections of multiple channels using {@link qupath.imagej.detect.cells.WatershedCellDetection}
+     * algorithm inside the given annotations. Each tile of the image is read only once for all the channels detected at
+     * the same resolution, and the detections are the same as if each channel was computed on its own.
+     * @param channels the channels to compute the detections of
+     * @param configs the parameters to give to the {@link qupath.imagej.detect.cells.WatershedCellDetection} of each channel
+     * @param annotations the annotations inside of which to compute the detections. If null, it will compute them on the whole image
+     * @param hierarchy where to compute the detections
+     * @return the detections of each channel, in the same order as <code>channels</code>
+     * @throws NoCellContainersFoundException
+     * @see #ChannelDetections(ImageChannelTools, Collection, WatershedCellDetectionConfig, PathObjectHierarchy)
+     * @see CellDetectionRunner#detectChannels(List, List, HierarchyBatch)
+     */
+    public static List<ChannelDetections> compute(List<ImageChannelTools> channels,
+                                                  List<WatershedCellDetectionConfig> configs,
+                                                  Collection<PathAnnotationObject> annotations,
+                                                  PathObjectHierarchy hierarchy) throws NoCellContainersFoundException {
+        if (channels.size() != configs.size())
+            throw new IllegalArgumentException("Each channel must have its own parameters. Instead got "+channels.size()+" channels and "+configs.size()+" parameters");
+        if(annotations == null) {
+            PathAnnotationObject fullImage = ChannelDetections.getFullImageDetectionAnnotation(hierarchy);
+            annotations = List.of(fullImage);
+        } else if (annotations.isEmpty()) {
+            throw new IllegalArgumentException("You must give at least one annotation on which to compute the detections");
+        }
+        annotations.forEach(annotation -> annotation.setLocked(true));
+        HierarchyBatch batch = new HierarchyBatch(hierarchy);
+        List<ChannelDetections> detections = new ArrayList<>(channels.size());
+        List<CellDetectionRunner> runners = new ArrayList<>(channels.size());
+        List<List<PathAnnotationObject>> containers = new ArrayList<>(channels.size());
+        for (int c = 0; c < channels.size(); c++) {
+            ImageChannelTools channel = channels.get(c);
+            ImageData<BufferedImage> imageData = channel.getImageData() != null ? channel.getImageData() : QP.getCurrentImageData();
+            ChannelDetections channelDetections = new ChannelDetections(channel, hierarchy);
+            detections.add(channelDetections);
+            runners.add(new CellDetectionRunner(imageData, configs.get(c).build(channel)));
+            containers.add(annotations.stream()
+                    .map(annotation -> channelDetections.createContainer(annotation, true, batch))
+                    .toList());
         }
+        CellDetectionRunner.detectChannels(runners, containers, batch);
+        batch.commit();
+        for (ChannelDetections channelDetections: detections)
+            channelDetections.fireUpdate();
+        return detections;
     }
 
     @Override
@@ -0,0 +1,250 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * A {@link SpatialIndex} that hashes the centroids of the objects into a uniform grid of square cells.
+ * <p>
+ * The side of the cells is the average size of the objects, so that any query about as large as one object only needs
+ * to look into a few cells. It works best when all objects are of similar size, as it is for detections computed with the
+ * same parameters.
+ * <br>
+ * The grid is not bounded: each cell is hashed into one of a fixed number of buckets, and the objects of each bucket are
+ * chained in a list. When built, the objects are sorted by bucket, such that the lists are contiguous in memory.
+ * Queries whose bounds span more cells than there are objects, scan all the objects instead.
+ */
+final class GridSpatialIndex implements SpatialIndex {
+    private static final int MIN_BUCKETS = 16;
+
+    private PathObject[] objects;           // removed objects leave null slots
+    private double[] objectBounds;          // x, y, width, height
+    private double[] centroids;             // x, y
+    private int[] next;                     // next object in the same bucket, or -1
+    private int[] buckets;                  // first object of each bucket, or -1
+    private double cellSize;
+    private int nSlots;
+    private int nObjects;
+    private final Rectangle2D.Double bbox = new Rectangle2D.Double();
+
+    /**
+     * Builds a grid whose cells are as large as the average object in <code>objects</code>
+     * @param objects the objects to insert into the grid
+     */
+    GridSpatialIndex(Collection<? extends PathObject> objects) {
+        this.build(objects.stream().map(o -> (PathObject) o).toList());
+    }
+
+    private void build(List<PathObject> objects) {
+        int n = objects.size();
+        this.objects = new PathObject[Math.max(n, 1)];
+        this.objectBounds = new double[4*this.objects.length];
+        this.centroids = new double[2*this.objects.length];
+        this.next = new int[this.objects.length];
+        this.nSlots = 0;
+        this.nObjects = 0;
+        this.bbox.setRect(0, 0, 0, 0);
+        double totalSize = 0;
+        for (int i = 0; i < n; i++) {
+            ROI roi = objects.get(i).getROI();
+            totalSize += Math.max(roi.getBoundsWidth(), roi.getBoundsHeight());
+        }
+        this.cellSize = totalSize > 0 ? totalSize / n : 1;
+        this.buckets = new int[Math.max(MIN_BUCKETS, Integer.highestOneBit(Math.max(1, 2*n-1)) << 1)];
+        Arrays.fill(this.buckets, -1);
+        // counting sort of the objects by bucket, so that each bucket lists contiguous slots
+        int[] objectBuckets = new int[n];
+        int[] starts = new int[this.buckets.length+1];
+        double[] centroids = new double[2*n];
+        for (int i = 0; i < n; i++) {
+            ROI roi = objects.get(i).getROI();
+            centroids[2*i] = roi.getCentroidX();
+            centroids[2*i+1] = roi.getCentroidY();
+            objectBuckets[i] = this.bucketOf(centroids[2*i], centroids[2*i+1]);
+            starts[objectBuckets[i]+1]++;
+        }
+        for (int b = 0; b < this.buckets.length; b++)
+            starts[b+1] += starts[b];
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; i++)
+            sorted[starts[objectBuckets[i]]++] = i;
+        for (int k = n-1; k >= 0; k--) {
+            int i = sorted[k];
+            this.add(objects.get(i), centroids[2*i], centroids[2*i+1], objectBuckets[i], k);
+        }
+        this.nSlots = n;
+    }
+
+    private void add(PathObject object, double centroidX, double centroidY, int bucket, int slot) {
+        ROI roi = object.getROI();
+        double x = roi.getBoundsX(), y = roi.getBoundsY(), w = roi.getBoundsWidth(), h = roi.getBoundsHeight();
+        this.objects[slot] = object;
+        this.objectBounds[4*slot] = x;
+        this.objectBounds[4*slot+1] = y;
+        this.objectBounds[4*slot+2] = w;
+        this.objectBounds[4*slot+3] = h;
+        this.centroids[2*slot] = centroidX;
+        this.centroids[2*slot+1] = centroidY;
+        this.next[slot] = this.buckets[bucket];
+        this.buckets[bucket] = slot;
+        if (this.nObjects++ == 0) {
+            this.bbox.setRect(x, y, w, h);
+            return;
+        }
+        double minX = Math.min(this.bbox.x, x), minY = Math.min(this.bbox.y, y);
+        double maxX = Math.max(this.bbox.x+this.bbox.width, x+w), maxY = Math.max(this.bbox.y+this.bbox.height, y+h);
+        this.bbox.setRect(minX, minY, maxX-minX, maxY-minY);
+    }
+
+    private long cell(double coordinate) {
+        return (long) Math.floor(coordinate / this.cellSize);
+    }
+
+    private int bucketOf(double x, double y) {
+        return this.bucketOf(this.cell(x), this.cell(y));
+    }
+
+    private int bucketOf(long i, long j) {
+        long hash = i * 0x9E3779B97F4A7C15L + j * 0xC2B2AE3D27D4EB4FL;
+        return (int) (hash ^ (hash >>> 32)) & (this.buckets.length-1);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.nObjects == 0;
+    }
+
+    @Override
+    public int size() {
+        return this.nObjects;
+    }
+
+    @Override
+    public boolean contains(PathObject object) {
+        return this.indexOf(object) >= 0;
+    }
+
+    private int indexOf(PathObject object) {
+        if (this.isEmpty())
+            return -1;
+        ROI roi = object.getROI();
+        for (int i = this.buckets[this.bucketOf(roi.getCentroidX(), roi.getCentroidY())]; i >= 0; i = this.next[i])
+            if (this.objects[i] == object)
+                return i;
+        return -1;
+    }
+
+    @Override
+    public boolean insert(PathObject object) {
+        if (this.contains(object))
+            return false;
+        if (this.nSlots == this.objects.length) {
+            if (this.nObjects >= this.buckets.length || this.nSlots > 2*this.nObjects) {
+                // too many objects per bucket or too many removed slots
+                this.build(Stream.concat(this.toStream(), Stream.of(object)).toList());
+                return true;
+            }
+            int capacity = this.objects.length*2;
+            this.objects = Arrays.copyOf(this.objects, capacity);
+            this.objectBounds = Arrays.copyOf(this.objectBounds, 4*capacity);
+            this.centroids = Arrays.copyOf(this.centroids, 2*capacity);
+            this.next = Arrays.copyOf(this.next, capacity);
+        }
+        ROI roi = object.getROI();
+        double x = roi.getCentroidX(), y = roi.getCentroidY();
+        this.add(object, x, y, this.bucketOf(x, y), this.nSlots++);
+        return true;
+    }
+
+    @Override
+    public boolean remove(PathObject object) {
+        if (this.isEmpty())
+            return false;
+        ROI roi = object.getROI();
+        int bucket = this.bucketOf(roi.getCentroidX(), roi.getCentroidY());
+        for (int i = this.buckets[bucket], previous = -1; i >= 0; previous = i, i = this.next[i]) {
+            if (this.objects[i] != object)
+                continue;
+            if (previous < 0)
+                this.buckets[bucket] = this.next[i];
+            else
+                this.next[previous] = this.next[i];
+            this.objects[i] = null;
+            this.nObjects--;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        if (this.isEmpty())
+            return true;
+        ROI roi = query.getROI();
+        // a point-like query only matches centroids equal to its position
+        double x = roi.getBoundsX(), y = roi.getBoundsY();
+        double w = query.isPointLike() ? 0 : roi.getBoundsWidth();
+        double h = query.isPointLike() ? 0 : roi.getBoundsHeight();
+        long i0 = this.cell(x), i1 = this.cell(x+w);
+        long j0 = this.cell(y), j1 = this.cell(y+h);
+        if ((i1-i0+1) * (j1-j0+1) > this.nObjects) {
+            for (int i = 0; i < this.nSlots; i++)
+                if (this.objects[i] != null && !this.visit(query, i, visitor))
+                    return false;
+            return true;
+        }
+        for (long j = j0; j <= j1; j++) {
+            for (long i = i0; i <= i1; i++) {
+                for (int k = this.buckets[this.bucketOf(i, j)]; k >= 0; k = this.next[k]) {
+                    // other cells may share the same bucket
+                    if (this.cell(this.centroids[2*k]) != i || this.cell(this.centroids[2*k+1]) != j)
+                        continue;
+                    if (!this.visit(query, k, visitor))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean visit(OverlapQuery query, int i, OverlapVisitor visitor) {
+        double centroidX = this.centroids[2*i];
+        double centroidY = this.centroids[2*i+1];
+        return !query.matches(this.objectBounds[4*i], this.objectBounds[4*i+1], this.objectBounds[4*i+2], this.objectBounds[4*i+3], centroidX, centroidY)
+                || visitor.visit(this.objects[i], centroidX, centroidY);
+    }
+
+    @Override
+    public Stream<PathObject> toStream() {
+        return Arrays.stream(this.objects, 0, this.nSlots).filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns a rectangle in which all objects' ROI are inside.
+     * It is not shrunk when objects are removed.
+     * @return the bounding box of all objects
+     */
+    @Override
+    public Rectangle2D getBox() {
+        return this.bbox;
+    }
+
+    /**
+     * @return 1, as the grid is a flat structure. -1 if empty
+     */
+    @Override
+    public int getDepth() {
+        return this.isEmpty() ? -1 : 1;
+    }
+}
@@ -0,0 +1,165 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Collects changes to the structure of a {@link PathObjectHierarchy} and applies them all at once, firing a single
+ * structural event instead of one for each object.
+ * <p>
+ * Objects can be added, moved below another parent or removed, together with all their descendants.
+ * The changes are applied in the order they were collected. They can be collected from parallel workers too, in which
+ * case the changes collected by the same thread keep their order.
+ * <br>
+ * Nothing is changed in the hierarchy until {@link #commit(Object)} is called.
+ */
+public final class HierarchyBatch {
+    // a null parent stands for a removal
+    private record Change(PathObject parent, PathObject object) {}
+
+    private final PathObjectHierarchy hierarchy;
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param hierarchy the hierarchy to change
+     */
+    public HierarchyBatch(PathObjectHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Adds an object as a child of <code>parent</code>. If the object already has a parent, it is moved.
+     * @param parent the new parent of the object. If null, the root of the hierarchy
+     * @param object the object to add
+     */
+    public void add(PathObject parent, PathObject object) {
+        this.changes.add(new Change(parent != null ? parent : this.hierarchy.getRootObject(), object));
+    }
+
+    /**
+     * Adds some objects as children of <code>parent</code>. If any of them already has a parent, it is moved.
+     * @param parent the new parent of the objects. If null, the root of the hierarchy
+     * @param objects the objects to add
+     */
+    public void addAll(PathObject parent, Collection<? extends PathObject> objects) {
+        for (PathObject object: objects)
+            this.add(parent, object);
+    }
+
+    /**
+     * Removes an object, and all its descendants, from the hierarchy
+     * @param object the object to remove
+     */
+    public void remove(PathObject object) {
+        this.changes.add(new Change(null, object));
+    }
+
+    /**
+     * Removes some objects, and all their descendants, from the hierarchy
+     * @param objects the objects to remove
+     */
+    public void removeAll(Collection<? extends PathObject> objects) {
+        for (PathObject object: objects)
+            this.remove(object);
+    }
+
+    /**
+     * @return true if no change was collected since the last commit
+     */
+    public boolean isEmpty() {
+        return this.changes.isEmpty();
+    }
+
+    /**
+     * Applies all the collected changes, as if the batch itself fired them.
+     * @see #commit(Object)
+     */
+    public void commit() {
+        this.commit(this);
+    }
+
+    /**
+     * Applies all the collected changes to the hierarchy, and fires a single structural event below the deepest object
+     * that is an ancestor of all the changed ones. If no changes were collected, nothing is fired.
+     * <br>
+     * It must not be called while other threads are still collecting changes.
+     * @param source the object to signal as source of the event
+     */
+    public void commit(Object source) {
+        Set<PathObject> parents = Collections.newSetFromMap(new IdentityHashMap<>());
+        PathObject parent = null;
+        List<PathObject> objects = new ArrayList<>();
+        Change change;
+        // consecutive changes to the same parent are applied together
+        while ((change = this.changes.poll()) != null) {
+            if (change.parent() != parent || change.parent() == null) {
+                apply(parent, objects);
+                parent = change.parent();
+            }
+            objects.add(change.object());
+            PathObject oldParent = change.object().getParent();
+            if (oldParent != null)
+                parents.add(oldParent);
+            if (change.parent() != null)
+                parents.add(change.parent());
+        }
+        apply(parent, objects);
+        if (parents.isEmpty())
+            return;
+        PathObject ancestor = this.getCommonAncestor(parents);
+        this.hierarchy.fireHierarchyChangedEvent(source, ancestor != null ? ancestor : this.hierarchy.getRootObject());
+    }
+
+    private static void apply(PathObject parent, List<PathObject> objects) {
+        if (objects.isEmpty())
+            return;
+        if (parent != null) {
+            parent.addChildObjects(objects);
+        } else {
+            for (PathObject object: objects) {
+                PathObject oldParent = object.getParent();
+                if (oldParent != null)
+                    oldParent.removeChildObject(object);
+            }
+        }
+        objects.clear();
+    }
+
+    /**
+     * @return the deepest object that is an ancestor of, or equal to, all <code>objects</code> that are still part of
+     * the hierarchy. null if none of them is
+     */
+    private PathObject getCommonAncestor(Collection<PathObject> objects) {
+        List<PathObject> path = null; // from the root to the current common ancestor
+        for (PathObject object: objects) {
+            List<PathObject> ancestors = new ArrayList<>();
+            for (PathObject o = object; o != null; o = o.getParent())
+                ancestors.add(o);
+            Collections.reverse(ancestors);
+            if (ancestors.get(0) != this.hierarchy.getRootObject())
+                continue; // e.g. it was removed
+            if (path == null) {
+                path = ancestors;
+                continue;
+            }
+            int depth = 1;
+            while (depth < path.size() && depth < ancestors.size() && path.get(depth) == ancestors.get(depth))
+                depth++;
+            path = path.subList(0, depth);
+        }
+        return path == null ? null : path.get(path.size()-1);
+    }
+}
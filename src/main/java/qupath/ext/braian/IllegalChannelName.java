@@ -0,0 +1,11 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+public class IllegalChannelName extends RuntimeException {
+    public IllegalChannelName(String name) {
+        super(String.format("Cannot find a channel named '"+name+"'!"));
+    }
+}
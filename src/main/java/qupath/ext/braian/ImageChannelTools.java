@@ -19,12 +19,6 @@ import qupath.lib.regions.RegionRequest;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
-class IllegalChannelName extends RuntimeException {
-    public IllegalChannelName(String name) {
-        super(String.format("Cannot find a channel named '"+name+"'!"));
-    }
-}
-
 public class ImageChannelTools {
     private final String name;
     private final ImageData<BufferedImage> imageData;
@@ -35,6 +29,7 @@ public class ImageChannelTools {
      * Creates an {@link ImageChannelTools} from the given channel name and {@link ImageServer}
      * @param name name of the channel
      * @param server image server to which the channel is referring to
+     * @throws IllegalChannelName if the image has no channel with the given name
      */
     @Deprecated(since = "1.1.1")
     public ImageChannelTools(String name, ImageServer<BufferedImage> server) {
@@ -48,6 +43,7 @@ public class ImageChannelTools {
      * Crates an {@link ImageChannelTools} from the given channel name and {@link ImageData}
      * @param name name of the channel
      * @param imageData data of the image to which the channel is referring to
+     * @throws IllegalChannelName if the image has no channel with the given name
      */
     public ImageChannelTools(String name, ImageData<BufferedImage> imageData) {
         this.name = name;
@@ -56,6 +52,13 @@ public class ImageChannelTools {
         this.nChannel = this.findNChannel();
     }
 
+    /**
+     * @return the data of the image to which the channel is referring to. null if it was created from an {@link ImageServer}
+     */
+    ImageData<BufferedImage> getImageData() {
+        return this.imageData;
+    }
+
     private ImageServer<BufferedImage> getServer() {
         if (this.server != null)
             return this.server;
@@ -0,0 +1,65 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The indexes of the detections of multiple channels, searched together to find which channels have a detection whose
+ * centroid is inside an object.
+ * <p>
+ * Each channel is searched with its own {@link AbstractDetections#getIndex(Collection) index}, so that the
+ * {@link SpatialIndexStrategy} chosen for it is used, and an index that was already built or saved is reused.
+ * The search of an object in a channel stops as soon as one of its detections is found.
+ * @see AbstractDetections#getOverlappingObjects(List)
+ */
+final class MultiChannelIndex {
+    private final List<SpatialIndex> indexes;
+
+    /**
+     * @param channels the detections of each channel. At most 31
+     */
+    MultiChannelIndex(List<AbstractDetections> channels) {
+        this(channels, channels.stream().flatMap(channel -> channel.getContainers().stream()).toList());
+    }
+
+    /**
+     * @param channels the detections of each channel. At most 31
+     * @param containers the containers, among those of the channels, whose detections may overlap with the objects
+     *                   to search. The detections in the other containers are searched only if their channel already
+     *                   has an index of all of them
+     */
+    MultiChannelIndex(List<AbstractDetections> channels, Collection<PathAnnotationObject> containers) {
+        if (channels.size() >= Integer.SIZE-1)
+            throw new IllegalArgumentException("Too many channels to index: "+channels.size());
+        Set<PathAnnotationObject> indexed = Collections.newSetFromMap(new IdentityHashMap<>());
+        indexed.addAll(containers);
+        this.indexes = channels.stream().map(channel -> channel.getIndex(indexed)).toList();
+    }
+
+    /**
+     * Searches, for each of the given objects, the channels having a detection whose centroid is inside it
+     * @param objects the objects to search the overlaps for
+     * @return an array, as long as <code>objects</code>, such that the <code>j</code>-th bit of each element is set if
+     * the object overlaps with any detection of the <code>j</code>-th channel
+     */
+    int[] getOverlappingMasks(List<? extends PathObject> objects) {
+        int[] masks = new int[objects.size()];
+        for (int j = 0; j < this.indexes.size(); j++) {
+            int tag = 1 << j;
+            int[] found = this.indexes.get(j).getOverlappingTags(objects, object -> tag, tag);
+            for (int i = 0; i < masks.length; i++)
+                masks[i] |= found[i];
+        }
+        return masks;
+    }
+}
@@ -0,0 +1,240 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Receives the objects found by {@link BoundingBox#visitOverlaps(OverlapQuery, OverlapVisitor)}.
+ */
+@FunctionalInterface
+interface OverlapVisitor {
+    /**
+     * @param object an object whose centroid is inside the query
+     * @param centroidX the x coordinate of the centroid of <code>object</code>
+     * @param centroidY the y coordinate of the centroid of <code>object</code>
+     * @return false if the visit should stop. True otherwise
+     */
+    boolean visit(PathObject object, double centroidX, double centroidY);
+}
+
+/**
+ * An {@link OverlapVisitor} that keeps the object whose centroid is the closest to the centroid of the query.
+ * If multiple objects are equally close, it keeps the first one visited.
+ */
+final class ClosestOverlap implements OverlapVisitor {
+    private final OverlapQuery query;
+    private PathObject closest;
+    private double closestX, closestY;
+    private double distance;
+
+    ClosestOverlap(OverlapQuery query) {
+        this.query = query;
+        this.reset();
+    }
+
+    /**
+     * forgets any object visited before, so that it can be reused for a new query
+     */
+    ClosestOverlap reset() {
+        this.closest = null;
+        this.distance = Double.POSITIVE_INFINITY;
+        return this;
+    }
+
+    /**
+     * @return the closest object visited, or null if none was visited
+     */
+    PathObject getClosest() {
+        return this.closest;
+    }
+
+    @Override
+    public boolean visit(PathObject object, double centroidX, double centroidY) {
+        if (this.closest == null) {
+            this.closest = object;
+            this.closestX = centroidX;
+            this.closestY = centroidY;
+            return true;
+        }
+        // there are more than one object overlapping
+        ROI roi = this.query.getROI();
+        double x = roi.getCentroidX(), y = roi.getCentroidY();
+        if (this.distance == Double.POSITIVE_INFINITY)
+            this.distance = Math.hypot(x-this.closestX, y-this.closestY);
+        double distance = Math.hypot(x-centroidX, y-centroidY);
+        if (distance < this.distance) {
+            this.closest = object;
+            this.closestX = centroidX;
+            this.closestY = centroidY;
+            this.distance = distance;
+        }
+        return true;
+    }
+}
+
+/**
+ * An {@link OverlapVisitor} that joins the bitmasks, or tags, of all the objects it visits.
+ * It stops the visit once all the expected tags were found.
+ */
+final class TagsOverlap implements OverlapVisitor {
+    private final ToIntFunction<PathObject> tags;
+    private final int allTags;
+    private int found;
+
+    /**
+     * @param tags the bitmask of each visited object
+     * @param allTags the union of all the bitmasks that can be visited
+     */
+    TagsOverlap(ToIntFunction<PathObject> tags, int allTags) {
+        this.tags = tags;
+        this.allTags = allTags;
+    }
+
+    /**
+     * forgets any object visited before, so that it can be reused for a new query
+     */
+    TagsOverlap reset() {
+        this.found = 0;
+        return this;
+    }
+
+    /**
+     * @return the union of the tags of the visited objects
+     */
+    int getTags() {
+        return this.found;
+    }
+
+    /**
+     * @return true if all the expected tags were found
+     */
+    boolean isComplete() {
+        return this.found == this.allTags;
+    }
+
+    @Override
+    public boolean visit(PathObject object, double centroidX, double centroidY) {
+        this.found |= this.tags.applyAsInt(object);
+        return !this.isComplete();
+    }
+}
+
+/**
+ * A query for the objects in a {@link BoundingBox} whose centroid is inside a given object.
+ * <p>
+ * The bounds of the query object are read only once, when {@link #set(PathObject) set}, and the stack used to visit
+ * the hierarchy is kept across queries. Reusing the same <code>OverlapQuery</code> for multiple objects allows to
+ * visit a hierarchy without allocating anything.
+ * <br>
+ * Polygons with many vertices are {@link PolygonMask masked} once enough centroids were tested against them, so that
+ * the following tests rarely need to go through all their vertices.
+ * <br>
+ * An instance must not be shared between threads.
+ */
+final class OverlapQuery {
+    private static final int INITIAL_STACK_SIZE = 16;
+    private static final int MASK_MIN_VERTICES = 32;
+    private static final int MASK_MIN_TESTS = 4;
+
+    private ROI roi;
+    private boolean isPointLike;
+    private double x, y, w, h;
+    private boolean isMaskable;
+    private int nTests;
+    private PolygonMask mask;
+    private boolean isMasked;
+    private int[] stack = new int[INITIAL_STACK_SIZE];
+    private BoundingBox[] boxes = new BoundingBox[INITIAL_STACK_SIZE];
+
+    OverlapQuery() {}
+
+    OverlapQuery(PathObject object) {
+        this.set(object);
+    }
+
+    /**
+     * sets the object whose overlapping objects are searched
+     * @return this query
+     */
+    OverlapQuery set(PathObject object) {
+        this.roi = object.getROI();
+        // if ROI.contains() results in being buggy, in the future we could rely on:
+        // ROI.getGeometry().covers(c) || ROI.getGeometry().intersects(c)
+        this.isPointLike = this.roi.isPoint() || this.roi.isEmpty();
+        this.x = this.roi.getBoundsX();
+        this.y = this.roi.getBoundsY();
+        this.w = this.roi.getBoundsWidth();
+        this.h = this.roi.getBoundsHeight();
+        this.isMaskable = !this.isPointLike && PolygonMask.isWorthMasking(this.roi, MASK_MIN_VERTICES);
+        this.nTests = 0;
+        this.isMasked = false;
+        return this;
+    }
+
+    ROI getROI() {
+        return this.roi;
+    }
+
+    /**
+     * @return true if the query has no area, and it's then overlapped only by objects with the same centroid
+     */
+    boolean isPointLike() {
+        return this.isPointLike;
+    }
+
+    /**
+     * @return true if no centroid inside a box with the given bounds can be inside the query
+     */
+    boolean isOutside(double bx, double by, double bw, double bh) {
+        return !this.isPointLike
+                && !PackedBoundingBoxHierarchy.intersects(bx, by, bw, bh, this.x, this.y, this.w, this.h)
+                && !PackedBoundingBoxHierarchy.isEmptyBox(bw, bh);
+    }
+
+    /**
+     * @return true if the given centroid, of an object with the given bounds, is inside the query
+     */
+    boolean matches(double bx, double by, double bw, double bh, double centroidX, double centroidY) {
+        if (this.isPointLike)
+            return this.x == centroidX && this.y == centroidY;
+        return !this.isOutside(bx, by, bw, bh) && this.contains(centroidX, centroidY);
+    }
+
+    /**
+     * @return the same as {@link ROI#contains(double, double)} of the query
+     */
+    private boolean contains(double x, double y) {
+        if (!this.isMasked && this.isMaskable && ++this.nTests > MASK_MIN_TESTS) {
+            if (this.mask == null)
+                this.mask = new PolygonMask();
+            this.mask.reset(this.roi);
+            this.isMasked = true;
+        }
+        return this.isMasked ? this.mask.contains(x, y) : this.roi.contains(x, y);
+    }
+
+    /**
+     * @return a stack of node indices with at least the given size
+     */
+    int[] getStack(int size) {
+        if (this.stack.length < size)
+            this.stack = Arrays.copyOf(this.stack, Math.max(this.stack.length*2, size));
+        return this.stack;
+    }
+
+    /**
+     * @return a stack of boxes with at least the given size
+     */
+    BoundingBox[] getBoxesStack(int size) {
+        if (this.boxes.length < size)
+            this.boxes = Arrays.copyOf(this.boxes, Math.max(this.boxes.length*2, size));
+        return this.boxes;
+    }
+}
@@ -4,25 +4,66 @@
 
 package qupath.ext.braian;
 
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.roi.interfaces.ROI;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * This class allows to compute and manage double/triple/multiple positive detections.
  * It does so by leveraging {@link AbstractDetections} interface
+ * <p>
+ * By default, each control detection that overlaps with other detections is copied, and the copy is classified
+ * with the overlap. Alternatively, the overlaps can be recorded only as a measurement of the control detections,
+ * without duplicating any of them: the containers of such instance are then left empty.
+ * @see #forEachOverlap(BiConsumer)
  */
 public class OverlappingDetections extends AbstractDetections {
     public static final String OVERLAP_DELIMITER = "~";
+    private static final int CHUNK_SIZE = 1 << 12;
+    // the metadata of the overlaps containers where the fingerprint of the detections they were computed from is saved
+    private static final String FINGERPRINT_KEY = "braian.overlapsSources";
+    // the metadata of the overlaps containers that recorded the overlaps only as a measurement of the control detections
+    private static final String REFERENCE_ONLY_KEY = "braian.overlapsReferenceOnly";
+    // the maximum number of cells whose raster overlaps are compared with the geometric ones
+    private static final int RASTER_CHECK_SAMPLES = 1000;
+
+    /**
+     * How the computed overlaps are saved in the hierarchy
+     */
+    public enum Mode {
+        /**
+         * Each control detection that overlaps with other detections is copied, and the copy is classified with the overlap
+         */
+        COPIES,
+        /**
+         * The overlaps are saved, as a bitmask, in the {@link #getOverlapsMeasurementName() overlaps measurement} of
+         * each control detection, and the containers are left empty
+         */
+        REFERENCES
+    }
+
+    private final AbstractDetections control;
+    private final String overlapsMeasurement;
+    private final PathClass[] overlapClasses;
 
     /**
      * Creates all the names of the possible overlaps between the given PathClasses names
@@ -48,6 +89,28 @@ public class OverlappingDetections extends AbstractDetections {
                 .collect(Collectors.joining(OverlappingDetections.OVERLAP_DELIMITER));
     }
 
+    /**
+     * Creates the classifications of all the possible overlaps between <code>primary</code> and <code>others</code>,
+     * indexed by a bitmask of the overlapping <code>others</code>
+     * @return an array such that, if the <code>j</code>-th bit of <code>mask</code> is set when <code>primary</code>
+     * overlaps with <code>others.get(j)</code>, its <code>mask</code>-th element is the classification of such overlap.
+     * The 0-th element is null
+     */
+    private static PathClass[] createOverlappingClasses(String primary, List<String> others) {
+        if (others.size() >= Integer.SIZE-1)
+            throw new IllegalArgumentException("Too many detections to overlap: "+others.size());
+        PathClass[] classes = new PathClass[1 << others.size()];
+        for (int mask = 1; mask < classes.length; mask++) {
+            int bits = mask;
+            List<String> overlapping = IntStream.range(0, others.size())
+                    .filter(j -> (bits & (1 << j)) != 0)
+                    .mapToObj(others::get)
+                    .toList();
+            classes[mask] = PathClass.fromString(createOverlappingClassName(primary, overlapping));
+        }
+        return classes;
+    }
+
     private static Collection<PathClass> getAllPossibleOverlappingClassifications(AbstractDetections control,
                                                                                   Collection<AbstractDetections> otherDetections) {
         if (otherDetections.isEmpty())
@@ -65,6 +128,7 @@ public class OverlappingDetections extends AbstractDetections {
      * @param control the detections used to check whether the other detections are overlapping between them and the control
      * @param others the other detections
      * @param compute if true, it will delete any previous overlap and compute the overlap between detections.
+     *                Containers whose detections did not change since their overlaps were last computed are left untouched.
      *                If false, it will try to retrieve pre-computed ovarlappings
      * @param hierarchy where to find/compute the overlapping detections
      * @throws NoCellContainersFoundException if no pre-computed overlappings were found in the given hierarchy
@@ -72,10 +136,59 @@ public class OverlappingDetections extends AbstractDetections {
     public OverlappingDetections(AbstractDetections control,
                                  Collection<AbstractDetections> others,
                                  boolean compute, PathObjectHierarchy hierarchy) throws NoCellContainersFoundException {
+        this(control, others, compute, Mode.COPIES, null, hierarchy);
+    }
+
+    /**
+     * Creates an instance of overlapping detections, computing the overlaps with the given engine.
+     * Any previous overlap is deleted, except for those in containers whose detections did not change since their
+     * overlaps were last computed with the same engine.
+     * @param control the detections used to check whether the other detections are overlapping between them and the control
+     * @param others the other detections
+     * @param raster the label map used to find the overlaps. If null, the overlaps are found testing the geometries of
+     *               the control detections
+     * @param hierarchy where to compute the overlapping detections
+     * @throws NoCellContainersFoundException if no overlappings could be computed in the given hierarchy
+     * @see RasterOverlaps
+     */
+    public OverlappingDetections(AbstractDetections control,
+                                 Collection<AbstractDetections> others,
+                                 RasterOverlaps raster, PathObjectHierarchy hierarchy) throws NoCellContainersFoundException {
+        this(control, others, Mode.COPIES, raster, hierarchy);
+    }
+
+    /**
+     * Creates an instance of overlapping detections, computing the overlaps with the given engine.
+     * Any previous overlap is deleted, except for those in containers whose detections did not change since their
+     * overlaps were last computed in the same way.
+     * @param control the detections used to check whether the other detections are overlapping between them and the control
+     * @param others the other detections
+     * @param mode whether the overlaps are saved as copies of the control detections, or only as references to them
+     * @param raster the label map used to find the overlaps. If null, the overlaps are found testing the geometries of
+     *               the control detections
+     * @param hierarchy where to compute the overlapping detections
+     * @throws NoCellContainersFoundException if no overlappings could be computed in the given hierarchy
+     * @see #forEachOverlap(BiConsumer)
+     */
+    public OverlappingDetections(AbstractDetections control,
+                                 Collection<AbstractDetections> others,
+                                 Mode mode, RasterOverlaps raster,
+                                 PathObjectHierarchy hierarchy) throws NoCellContainersFoundException {
+        this(control, others, true, mode, raster, hierarchy);
+    }
+
+    private OverlappingDetections(AbstractDetections control,
+                                  Collection<AbstractDetections> others,
+                                  boolean compute, Mode mode, RasterOverlaps raster,
+                                  PathObjectHierarchy hierarchy) throws NoCellContainersFoundException {
         super(control.getId(), getAllPossibleOverlappingClassifications(control, others), hierarchy);
+        this.control = control;
+        List<String> othersIds = others.stream().map(AbstractDetections::getId).toList();
+        this.overlapsMeasurement = "Overlaps mask: "+String.join(OVERLAP_DELIMITER, othersIds);
+        this.overlapClasses = createOverlappingClasses(control.getId(), othersIds);
         if (!compute)
             return;
-        this.overlap(control, others);
+        this.overlap(control, others, mode, raster);
         this.fireUpdate();
     }
 
@@ -97,32 +210,253 @@ public class OverlappingDetections extends AbstractDetections {
         return this.getId()+" overlaps";
     }
 
-    private void overlap(AbstractDetections control, Collection<AbstractDetections> otherDetections) {
-        List<PathDetectionObject> overlaps = control.toStream().flatMap(cell -> copyDetectionIfOverlapping(cell, control, otherDetections).stream()).toList();
-        this.getHierarchy().addObjects(overlaps);
-        // add all duplicated overlapping cells to a new annotation
+    /**
+     * @return the name of the measurement of the control detections where, if {@link #isReferenceOnly()}, the
+     * overlaps are saved. Its <code>j</code>-th bit is set if the detection overlaps with the <code>j</code>-th of
+     * the other detections
+     */
+    public String getOverlapsMeasurementName() {
+        return this.overlapsMeasurement;
+    }
+
+    /**
+     * @return true if the overlaps were saved only as a measurement of the control detections, instead of being copied
+     * @see Mode#REFERENCES
+     */
+    public boolean isReferenceOnly() {
+        return this.getContainers().stream()
+                .anyMatch(container -> "true".equals(container.getMetadata().get(REFERENCE_ONLY_KEY)));
+    }
+
+    /**
+     * Performs the given action on each detection overlapping with other detections, together with the classification
+     * of its overlap. If {@link #isReferenceOnly()}, the detections are those of the control, otherwise they are their copies.
+     * <br>
+     * If the state was changed outside of this extension, you might need to call {@link #fireUpdate()} first.
+     * @param action the action to perform
+     */
+    public void forEachOverlap(BiConsumer<PathDetectionObject, PathClass> action) {
+        if (!this.isReferenceOnly()) {
+            this.toStream().forEach(copy -> action.accept(copy, copy.getPathClass()));
+            return;
+        }
+        this.control.toStream().forEach(cell -> {
+            Number mask = cell.getMeasurements().get(this.overlapsMeasurement);
+            if (mask != null && mask.intValue() > 0 && mask.intValue() < this.overlapClasses.length)
+                action.accept(cell, this.overlapClasses[mask.intValue()]);
+        });
+    }
+
+    private void overlap(AbstractDetections control, Collection<AbstractDetections> otherDetections,
+                         Mode mode, RasterOverlaps raster) {
+        List<AbstractDetections> others = List.copyOf(otherDetections);
+        List<String> othersIds = others.stream().map(AbstractDetections::getId).toList();
+        // overlaps computed with a different engine, or saved differently, are computed again
+        String engine = (raster == null ? "" : "@raster"+raster.getDownsample()) + (mode == Mode.REFERENCES ? "@references" : "");
+        // only the containers whose detections, or the other detections around them, changed are overlapped again
+        HierarchyBatch batch = new HierarchyBatch(this.getHierarchy());
+        Map<PathObject, PathAnnotationObject> overlapsContainers = new IdentityHashMap<>(); // control container -> overlaps container
+        Map<PathAnnotationObject, String> fingerprints = new IdentityHashMap<>();
+        List<PathDetectionObject> cells = new ArrayList<>();
+        // the containers of the other detections that may overlap with the cells
+        Set<PathAnnotationObject> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+        // each container of the other detections is fingerprinted once, and then combined for all the control containers around it
+        Map<PathAnnotationObject, SpatialIndexCache.Fingerprint> othersFingerprints = new IdentityHashMap<>();
+        for (AbstractDetections other: others)
+            for (PathAnnotationObject otherContainer: other.getContainers())
+                othersFingerprints.put(otherContainer, SpatialIndexCache.Fingerprint.ofClassified(other.getDetections(otherContainer)));
         for (PathAnnotationObject container : control.getContainers()) {
             PathAnnotationObject containerParent = (PathAnnotationObject) container.getParent();
-            PathAnnotationObject overlapsContainer = this.createContainer(containerParent, true);
-            ROI containerRoi = overlapsContainer.getROI();
-            overlaps.stream()
-                    .filter(overlap -> containerRoi.contains(overlap.getROI().getCentroidX(), overlap.getROI().getCentroidY()))
-                    .forEach(overlap -> this.getHierarchy().addObjectBelowParent(overlapsContainer, overlap, false));
+            List<PathAnnotationObject> containerSources = new ArrayList<>();
+            String fingerprint = fingerprintSources(container, control, othersFingerprints, othersIds, containerSources)+engine;
+            Optional<PathAnnotationObject> oldOverlapsContainer = this.getDerivedContainer(containerParent);
+            if (oldOverlapsContainer.isPresent()
+                    && fingerprint.equals(oldOverlapsContainer.get().getMetadata().get(FINGERPRINT_KEY)))
+                continue;
+            sources.addAll(containerSources);
+            PathAnnotationObject overlapsContainer = this.createContainer(containerParent, true, batch);
+            overlapsContainers.put(container, overlapsContainer);
+            fingerprints.put(overlapsContainer, fingerprint);
+            // the detections of each container are in hierarchy order, so the copies are always added in the same order
+            cells.addAll(control.getDetections(container));
         }
+        BraiAnExtension.getLogger().debug("Overlapping '{}' detections in {}/{} containers",
+                control.getId(), overlapsContainers.size(), control.getContainers().size());
+        if (overlapsContainers.isEmpty())
+            return;
+        // one search of the other detections for the overlaps and, if needed, for the check of the label map
+        MultiChannelIndex othersIndex = new MultiChannelIndex(others, sources);
+        int[] masks;
+        if (raster == null)
+            masks = othersIndex.getOverlappingMasks(cells);
+        else {
+            masks = raster.computeMasks(cells, others);
+            reportRasterMismatches(cells, othersIndex, masks, raster);
+        }
+        if (mode == Mode.REFERENCES) {
+            // the old copies, if any, are removed from the overwritten containers
+            List<PathDetectionObject> changed = new ArrayList<>();
+            for (int i = 0; i < masks.length; i++) {
+                // only the cells overlapping with other detections are given the measurement
+                Number old = masks[i] != 0 ? cells.get(i).getMeasurements().put(this.overlapsMeasurement, masks[i])
+                        : cells.get(i).getMeasurements().remove(this.overlapsMeasurement);
+                if (old == null ? masks[i] != 0 : old.intValue() != masks[i])
+                    changed.add(cells.get(i));
+            }
+            batch.commit();
+            if (!changed.isEmpty())
+                this.getHierarchy().fireObjectMeasurementsChangedEvent(this, changed);
+            fingerprints.forEach((overlapsContainer, fingerprint) -> {
+                overlapsContainer.getMetadata().put(FINGERPRINT_KEY, fingerprint);
+                overlapsContainer.getMetadata().put(REFERENCE_ONLY_KEY, "true");
+            });
+            return;
+        }
+        // the overlaps previously saved as measurements are replaced by the copies
+        List<PathDetectionObject> referenced = new ArrayList<>();
+        for (PathDetectionObject cell: cells)
+            if (cell.getMeasurements().remove(this.overlapsMeasurement) != null)
+                referenced.add(cell);
+        if (!referenced.isEmpty())
+            this.getHierarchy().fireObjectMeasurementsChangedEvent(this, referenced);
+        // each chunk of cells is tested in parallel into its own buffer, and the buffers are joined in the chunks' order
+        int nChunks = (cells.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        List<Overlap> overlaps = IntStream.range(0, nChunks)
+                .parallel()
+                .mapToObj(chunk -> {
+                    List<Overlap> buffer = new ArrayList<>();
+                    for (int i = chunk*CHUNK_SIZE; i < Math.min((chunk+1)*CHUNK_SIZE, cells.size()); i++) {
+                        PathDetectionObject cell = cells.get(i);
+                        PathDetectionObject copy = copyDetectionIfOverlapping(cell, masks[i], this.overlapClasses);
+                        if (copy != null)
+                            buffer.add(new Overlap(cell, copy));
+                    }
+                    return buffer;
+                })
+                .toList()
+                .stream()
+                .flatMap(List::stream)
+                .toList();
+        // add all duplicated overlapping cells to a new annotation, changing the hierarchy all at once
+        STRtree containersTree = null;
+        List<PathDetectionObject> outside = new ArrayList<>();
+        for (Overlap overlap: overlaps) {
+            // the copy goes with the container of the original cell
+            PathAnnotationObject overlapsContainer = overlapsContainers.get(overlap.cell().getParent());
+            if (overlapsContainer == null) {
+                if (containersTree == null)
+                    containersTree = buildContainersTree(overlapsContainers.values());
+                overlapsContainer = findContainer(containersTree, overlap.copy());
+            }
+            if (overlapsContainer != null)
+                batch.add(overlapsContainer, overlap.copy());
+            else
+                outside.add(overlap.copy());
+        }
+        batch.commit();
+        fingerprints.forEach((overlapsContainer, fingerprint) -> {
+            overlapsContainer.getMetadata().put(FINGERPRINT_KEY, fingerprint);
+            overlapsContainer.getMetadata().remove(REFERENCE_ONLY_KEY);
+        });
+        if (!outside.isEmpty())
+            this.getHierarchy().addObjects(outside);
     }
 
-    private static Optional<PathDetectionObject> copyDetectionIfOverlapping(PathDetectionObject cell,
-                                                                            AbstractDetections control,
-                                                                            Collection<AbstractDetections> otherDetections) {
-        List<String> overlappingDetectionsIds = otherDetections.stream()
-                .filter(other -> other.getOverlappingObjectIfPresent(cell).isPresent())
-                .map(AbstractDetections::getId)
-                .toList();
-        if (overlappingDetectionsIds.isEmpty())
-            return Optional.empty();
-        String className = createOverlappingClassName(control.getId(), overlappingDetectionsIds);
-        PathClass overlapClass = PathClass.fromString(className);
-        PathDetectionObject cellCopy = (PathDetectionObject) PathObjects.createDetectionObject(cell.getROI(), overlapClass);
-        return Optional.of(cellCopy);
-    }
-}
\ No newline at end of file
+    /**
+     * Computes a fingerprint of all the detections on which the overlaps inside <code>container</code> depend: the
+     * control detections in the container, and the other detections in the containers whose bounds intersect those
+     * of the control detections.
+     * It changes if any of them is added, removed, moved or classified differently, or if the other detections are
+     * not the same.
+     * @param othersFingerprints the fingerprint of the detections in each container of the other detections
+     * @param sources where the containers of the other detections, whose bounds intersect the control detections, are added
+     */
+    private static String fingerprintSources(PathAnnotationObject container, AbstractDetections control,
+                                             Map<PathAnnotationObject, SpatialIndexCache.Fingerprint> othersFingerprints,
+                                             List<String> othersIds, Collection<PathAnnotationObject> sources) {
+        Collection<PathDetectionObject> cells = control.getDetections(container);
+        SpatialIndexCache.Fingerprint fingerprint = SpatialIndexCache.Fingerprint.ofClassified(cells);
+        // the cells may go past the borders of their container
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (PathDetectionObject cell: cells) {
+            ROI roi = cell.getROI();
+            minX = Math.min(minX, roi.getBoundsX());
+            minY = Math.min(minY, roi.getBoundsY());
+            maxX = Math.max(maxX, roi.getBoundsX()+roi.getBoundsWidth());
+            maxY = Math.max(maxY, roi.getBoundsY()+roi.getBoundsHeight());
+        }
+        for (Map.Entry<PathAnnotationObject, SpatialIndexCache.Fingerprint> other: othersFingerprints.entrySet()) {
+            ROI roi = other.getKey().getROI();
+            if (roi.getBoundsX() > maxX || roi.getBoundsX()+roi.getBoundsWidth() < minX
+                    || roi.getBoundsY() > maxY || roi.getBoundsY()+roi.getBoundsHeight() < minY)
+                continue;
+            fingerprint = fingerprint.combine(other.getValue());
+            sources.add(other.getKey());
+        }
+        return String.join(OVERLAP_DELIMITER, othersIds)+"@"+fingerprint.encode();
+    }
+
+    /**
+     * A control cell and its copy classified with the other detections it overlaps with
+     */
+    private record Overlap(PathDetectionObject cell, PathDetectionObject copy) {}
+
+    private static STRtree buildContainersTree(Collection<PathAnnotationObject> containers) {
+        STRtree tree = new STRtree();
+        for (PathAnnotationObject container: containers)
+            tree.insert(container.getROI().getGeometry().getEnvelopeInternal(), container);
+        return tree;
+    }
+
+    /**
+     * @return the container, among those in <code>tree</code>, that contains the centroid of <code>detection</code>.
+     * null if none does
+     */
+    private static PathAnnotationObject findContainer(STRtree tree, PathDetectionObject detection) {
+        double x = detection.getROI().getCentroidX(), y = detection.getROI().getCentroidY();
+        for (Object candidate: tree.query(new Envelope(x, x, y, y))) {
+            PathAnnotationObject container = (PathAnnotationObject) candidate;
+            if (container.getROI().contains(x, y))
+                return container;
+        }
+        return null;
+    }
+
+    /**
+     * Logs how many cells, out of an evenly spaced sample, overlap with different detections depending on whether
+     * the label map or their geometries are used
+     */
+    private static void reportRasterMismatches(List<PathDetectionObject> cells, MultiChannelIndex othersIndex,
+                                               int[] rasterMasks, RasterOverlaps raster) {
+        if (cells.isEmpty())
+            return;
+        int nSamples = Math.min(cells.size(), RASTER_CHECK_SAMPLES);
+        List<PathDetectionObject> sample = new ArrayList<>(nSamples);
+        int[] sampleMasks = new int[nSamples];
+        for (int k = 0; k < nSamples; k++) {
+            int i = (int) ((long) k * cells.size() / nSamples);
+            sample.add(cells.get(i));
+            sampleMasks[k] = rasterMasks[i];
+        }
+        int[] exactMasks = othersIndex.getOverlappingMasks(sample);
+        long mismatches = IntStream.range(0, nSamples)
+                .filter(k -> sampleMasks[k] != exactMasks[k])
+                .count();
+        BraiAnExtension.getLogger().info("Overlaps on a label map at downsample {} differ from the exact ones in {}/{} sampled cells ({}%)",
+                raster.getDownsample(), mismatches, nSamples, String.format("%.2f", 100. * mismatches / nSamples));
+    }
+
+    /**
+     * @param mask the bitmask of the other detections that <code>cell</code> overlaps with
+     * @param overlapClasses the classifications of the overlaps, indexed by the bitmask of the overlapping detections
+     * @return a copy of <code>cell</code> classified as overlapping with the other detections. null if it does not overlap
+     * @see #createOverlappingClasses(String, List)
+     */
+    private static PathDetectionObject copyDetectionIfOverlapping(PathDetectionObject cell, int mask,
+                                                                  PathClass[] overlapClasses) {
+        if (mask == 0)
+            return null;
+        return (PathDetectionObject) PathObjects.createDetectionObject(cell.getROI(), overlapClasses[mask]);
+    }
+}
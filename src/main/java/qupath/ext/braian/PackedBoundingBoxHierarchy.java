@@ -0,0 +1,1300 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import org.locationtech.jts.geom.Geometry;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.Rectangle2D;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The class <code>PackedBoundingBoxHierarchy</code> is an array-backed equivalent of {@link BoundingBoxHierarchy} that, instead of being made of a tree
+ * of objects, stores the bounding boxes, the centroids and the children of each node in flat primitive arrays.
+ * The {@link PathObject}s are stored in one array, parallel to that of their bounds.
+ * <p>
+ * It builds the same hierarchy as {@link BoundingBoxHierarchy} and shares its semantics, but it uses considerably less
+ * memory and it is faster to visit when working with images having hundreds of thousands of detections.
+ * <p>
+ * Node <code>0</code> is the root of the hierarchy, and the children of each node are stored contiguously.
+ * Each node either has children nodes or directly lists a contiguous range of objects.
+ * <p>
+ * Objects can be {@link #insert(PathObject) inserted} and {@link #remove(PathObject) removed} without rebuilding the
+ * whole hierarchy: only the bounds of the affected leaf and of its ancestors are refitted. Once the number of changes
+ * degrades the hierarchy past a threshold, it is {@link #rebalance() rebuilt} from scratch.
+ * While the queries can be run concurrently, the changes to the hierarchy cannot.
+ * @see BoundingBoxHierarchy
+ */
+public class PackedBoundingBoxHierarchy implements SpatialIndex {
+    // the fraction of objects that can be inserted or removed before the hierarchy is rebuilt
+    private static final double REBUILD_RATIO = 0.25;
+    private static final int MIN_REBUILD_CHANGES = 1 << 10;
+
+    // objects, ordered such that the objects of each leaf are contiguous. Removed objects leave null slots
+    private PathObject[] objects;
+    private double[] objectBounds;          // x, y, width, height
+    private double[] centroids;             // x, y
+    // nodes
+    private double[] nodeBounds;            // x, y, width, height
+    private int[] nodeChildren;             // first child node, number of children nodes
+    private int[] nodeObjects;              // first object, number of objects
+    private int[] nodeCapacities;           // number of object slots reserved to each node
+    private int[] nodeParents;
+    private int[] nodeSizes;                // number of objects in the sub-hierarchy of each node
+    private int nNodes;
+    private int nSlots;                     // number of object slots in use, including those left by removed objects
+    private int nObjects;
+    private int depth;
+    // rebalancing
+    private final int maxDepth;
+    private final int leafSize;
+    private final int parallelCutoff;
+    private int nChanges;
+    private int builtSize;
+
+    /**
+     * Builds a top-down <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">BVH</a> of maximum 6 levels
+     * of hierarchy.
+     * @param objects the given objects to insert into the hierarchy
+     */
+    public PackedBoundingBoxHierarchy(Collection<? extends PathObject> objects) {
+        this(objects, 6);
+    }
+
+    /**
+     * Builds a top-down <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">BVH</a>
+     * that is the same as {@link BoundingBoxHierarchy#BoundingBoxHierarchy(Collection, int)}
+     * @param objects the given objects to insert into the hierarchy
+     * @param maxDepth the maximum depth that that hierarchy can have.
+     *                 Below maxDepth, the recursive structure stops and lists all the remaining objects
+     */
+    public PackedBoundingBoxHierarchy(Collection<? extends PathObject> objects, int maxDepth) {
+        this(objects, maxDepth, 1);
+    }
+
+    /**
+     * Builds a top-down <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">BVH</a>
+     * whose depth adapts to the density of the objects: a region of space is split only if it contains
+     * more than <code>leafSize</code> objects.
+     * @param objects the given objects to insert into the hierarchy
+     * @param maxDepth the maximum depth that that hierarchy can have.
+     *                 Below maxDepth, the recursive structure stops and lists all the remaining objects
+     * @param leafSize the maximum number of objects listed by a node before it is split further
+     */
+    public PackedBoundingBoxHierarchy(Collection<? extends PathObject> objects, int maxDepth, int leafSize) {
+        this(objects, maxDepth, leafSize, BoundingBoxBuilder.DEFAULT_PARALLEL_CUTOFF);
+    }
+
+    /**
+     * Builds a top-down <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">BVH</a>.
+     * Regions of space containing more than <code>parallelCutoff</code> objects build their sub-hierarchies in parallel.
+     * The resulting hierarchy is the same, no matter the number of threads used.
+     * @see #PackedBoundingBoxHierarchy(Collection, int, int)
+     */
+    PackedBoundingBoxHierarchy(Collection<? extends PathObject> objects, int maxDepth, int leafSize, int parallelCutoff) {
+        this.maxDepth = maxDepth;
+        this.leafSize = leafSize;
+        this.parallelCutoff = parallelCutoff;
+        this.load(build(objects, maxDepth, leafSize, parallelCutoff));
+    }
+
+    private static BoundingBoxBuilder build(Collection<? extends PathObject> objects, int maxDepth, int leafSize, int parallelCutoff) {
+        if (maxDepth < 1)
+            throw new IllegalArgumentException("maxDepth must be >0. Instead got maxDepth="+maxDepth);
+        if (leafSize < 1)
+            throw new IllegalArgumentException("leafSize must be >0. Instead got leafSize="+leafSize);
+        BoundingBoxBuilder builder = new BoundingBoxBuilder(objects);
+        builder.build(maxDepth, leafSize, parallelCutoff);
+        return builder;
+    }
+
+    /**
+     * Creates a hierarchy from its already built nodes
+     */
+    private PackedBoundingBoxHierarchy(PathObject[] objects, double[] objectBounds, double[] centroids,
+                                       BoundingBoxBuilder.Nodes nodes, int maxDepth, int leafSize) {
+        this.maxDepth = maxDepth;
+        this.leafSize = leafSize;
+        this.parallelCutoff = BoundingBoxBuilder.DEFAULT_PARALLEL_CUTOFF;
+        this.load(objects, objectBounds, centroids, nodes);
+    }
+
+    private void load(BoundingBoxBuilder builder) {
+        this.load(builder.objects, builder.objectBounds, builder.centroids, builder.nodes);
+    }
+
+    private void load(PathObject[] objects, double[] objectBounds, double[] centroids, BoundingBoxBuilder.Nodes nodes) {
+        this.objects = objects;
+        this.objectBounds = objectBounds;
+        this.centroids = centroids;
+        this.nodeBounds = nodes.bounds;
+        this.nodeChildren = nodes.children;
+        this.nodeObjects = nodes.objects;
+        this.nNodes = nodes.size;
+        this.nSlots = objects.length;
+        this.nObjects = objects.length;
+        this.depth = nodes.depth;
+        this.nodeCapacities = new int[this.nNodes];
+        this.nodeParents = new int[this.nNodes];
+        this.nodeSizes = new int[this.nNodes];
+        this.nodeParents[0] = -1;
+        // children always come after their parent
+        for (int node = this.nNodes-1; node >= 0; node--) {
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                this.nodeCapacities[node] = this.nodeObjects[2*node+1];
+                this.nodeSizes[node] = this.nodeObjects[2*node+1];
+                continue;
+            }
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild; c < firstChild + nChildren; c++) {
+                this.nodeParents[c] = node;
+                this.nodeSizes[node] += this.nodeSizes[c];
+            }
+        }
+        this.nChanges = 0;
+        this.builtSize = this.nObjects;
+    }
+
+    int getNodesCount() {
+        return this.nNodes;
+    }
+
+    int getChildrenCount(int node) {
+        return this.nodeChildren[2*node+1];
+    }
+
+    int getFirstChild(int node) {
+        return this.nodeChildren[2*node];
+    }
+
+    int getFirstObject(int node) {
+        return this.nodeObjects[2*node];
+    }
+
+    int getObjectsCount(int node) {
+        return this.nodeObjects[2*node+1];
+    }
+
+    PathObject getObject(int i) {
+        return this.objects[i];
+    }
+
+    Rectangle2D.Double getNodeBox(int node) {
+        return new Rectangle2D.Double(this.nodeBounds[4*node], this.nodeBounds[4*node+1], this.nodeBounds[4*node+2], this.nodeBounds[4*node+3]);
+    }
+
+    /**
+     * Same as {@link Rectangle2D#isEmpty()}
+     */
+    static boolean isEmptyBox(double w, double h) {
+        return w <= 0 || h <= 0;
+    }
+
+    /**
+     * Same as {@link Rectangle2D#intersects(double, double, double, double)}
+     */
+    static boolean intersects(double x0, double y0, double w0, double h0, double x, double y, double w, double h) {
+        if (isEmptyBox(w, h) || isEmptyBox(w0, h0))
+            return false;
+        return x + w > x0 && y + h > y0 && x < x0 + w0 && y < y0 + h0;
+    }
+
+    /**
+     * @return true if the given box should be discarded when searching for the given bounds
+     */
+    private static boolean isOutside(double[] bounds, int i, double x, double y, double w, double h) {
+        double bw = bounds[4*i+2];
+        double bh = bounds[4*i+3];
+        return !intersects(bounds[4*i], bounds[4*i+1], bw, bh, x, y, w, h) && !isEmptyBox(bw, bh);
+    }
+
+    /**
+     * @return true if there are no {@link PathObject} inside
+     */
+    @Override
+    public boolean isEmpty() {
+        return this.nObjects == 0;
+    }
+
+    /**
+     * @return the number of objects in the hierarchy
+     */
+    @Override
+    public int size() {
+        return this.nObjects;
+    }
+
+    @Override
+    public boolean contains(PathObject object) {
+        return this.findLeaf(object) >= 0;
+    }
+
+    /**
+     * @return the leaf node listing the given object, or -1 if it is not in the hierarchy
+     */
+    private int findLeaf(PathObject object) {
+        if (this.isEmpty())
+            return -1;
+        ROI roi = object.getROI();
+        boolean isPointLike = roi.isPoint() || roi.isEmpty();
+        double x = roi.getBoundsX(), y = roi.getBoundsY(), w = roi.getBoundsWidth(), h = roi.getBoundsHeight();
+        int[] stack = new int[Math.max(16, this.depth*4+1)];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (this.nodeSizes[node] == 0 || !isPointLike && isOutside(this.nodeBounds, node, x, y, w, h))
+                continue;
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                if (this.indexOf(node, object) >= 0)
+                    return node;
+                continue;
+            }
+            if (top + nChildren > stack.length)
+                stack = Arrays.copyOf(stack, Math.max(stack.length*2, top+nChildren));
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild + nChildren - 1; c >= firstChild; c--)
+                stack[top++] = c;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the slot of the given object in the given leaf, or -1 if the leaf does not list it
+     */
+    private int indexOf(int leaf, PathObject object) {
+        int first = this.nodeObjects[2*leaf];
+        int last = first + this.nodeObjects[2*leaf+1];
+        for (int i = first; i < last; i++)
+            if (this.objects[i] == object)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Inserts an object in the hierarchy, without rebuilding it.
+     * The object is added to the leaf whose bounds contain its centroid, or to the one that grows the least.
+     * Then, the bounds of the leaf and of its ancestors are refitted.
+     * @param object the object to insert
+     * @return false if the object was already in the hierarchy. True otherwise
+     * @throws IllegalArgumentException if object is a {@link qupath.lib.roi.PointsROI} with multiple points
+     * @see #rebalance()
+     */
+    @Override
+    public boolean insert(PathObject object) {
+        ROI roi = object.getROI();
+        if (roi.isPoint() && roi.getNumPoints() > 1)
+            throw new IllegalArgumentException("BoundingBoxHierarchy cannot handle PointsROI objects with multiple points");
+        if (this.isEmpty()) {
+            this.rebuild(List.of(object));
+            return true;
+        }
+        if (this.contains(object))
+            return false;
+        double cx = roi.getCentroidX(), cy = roi.getCentroidY();
+        int leaf = 0;
+        while (this.nodeChildren[2*leaf+1] != 0)
+            leaf = this.chooseChild(leaf, cx, cy, roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
+        int count = this.nodeObjects[2*leaf+1];
+        if (count == this.nodeCapacities[leaf])
+            this.relocate(leaf, Math.max(2*count, 2));
+        int i = this.nodeObjects[2*leaf] + count;
+        this.objects[i] = object;
+        this.objectBounds[4*i] = roi.getBoundsX();
+        this.objectBounds[4*i+1] = roi.getBoundsY();
+        this.objectBounds[4*i+2] = roi.getBoundsWidth();
+        this.objectBounds[4*i+3] = roi.getBoundsHeight();
+        this.centroids[2*i] = cx;
+        this.centroids[2*i+1] = cy;
+        this.nodeObjects[2*leaf+1]++;
+        this.nObjects++;
+        this.refit(leaf, +1);
+        this.changed();
+        return true;
+    }
+
+    /**
+     * Removes an object from the hierarchy, without rebuilding it.
+     * The bounds of the leaf that listed it and of its ancestors are refitted.
+     * @param object the object to remove
+     * @return true if the object was in the hierarchy. False otherwise
+     * @see #rebalance()
+     */
+    @Override
+    public boolean remove(PathObject object) {
+        int leaf = this.findLeaf(object);
+        if (leaf < 0)
+            return false;
+        int i = this.indexOf(leaf, object);
+        int last = this.nodeObjects[2*leaf] + this.nodeObjects[2*leaf+1] - 1;
+        // keeps the objects of the leaf contiguous
+        this.objects[i] = this.objects[last];
+        System.arraycopy(this.objectBounds, 4*last, this.objectBounds, 4*i, 4);
+        System.arraycopy(this.centroids, 2*last, this.centroids, 2*i, 2);
+        this.objects[last] = null;
+        this.nodeObjects[2*leaf+1]--;
+        this.nObjects--;
+        this.refit(leaf, -1);
+        this.changed();
+        return true;
+    }
+
+    /**
+     * Rebuilds the hierarchy from scratch with the objects it currently contains.
+     * It is automatically called when the objects inserted and removed since the last build exceed a
+     * fraction of the hierarchy's size.
+     */
+    public void rebalance() {
+        this.rebuild(this.toStream().toList());
+    }
+
+    private void rebuild(List<PathObject> objects) {
+        this.load(build(objects, this.maxDepth, this.leafSize, this.parallelCutoff));
+    }
+
+    private void changed() {
+        this.nChanges++;
+        int wasted = this.nSlots - this.nObjects;
+        if (this.nChanges > Math.max(MIN_REBUILD_CHANGES, this.builtSize * REBUILD_RATIO)
+                || wasted > Math.max(MIN_REBUILD_CHANGES, this.nObjects))
+            this.rebalance();
+    }
+
+    /**
+     * @return the non-empty child of the given node that contains the given centroid.
+     * If none does, the one whose bounds would grow the least to fit the given box
+     */
+    private int chooseChild(int node, double cx, double cy, double x, double y, double w, double h) {
+        int firstChild = this.nodeChildren[2*node];
+        int best = -1;
+        double bestGrowth = Double.POSITIVE_INFINITY;
+        for (int c = firstChild; c < firstChild + this.nodeChildren[2*node+1]; c++) {
+            if (this.nodeSizes[c] == 0)
+                continue;
+            double bx = this.nodeBounds[4*c], by = this.nodeBounds[4*c+1];
+            double bw = this.nodeBounds[4*c+2], bh = this.nodeBounds[4*c+3];
+            if (cx >= bx && cy >= by && cx <= bx + bw && cy <= by + bh)
+                return c;
+            double growth = (Math.max(bx + bw, x + w) - Math.min(bx, x)) * (Math.max(by + bh, y + h) - Math.min(by, y)) - bw * bh;
+            if (growth < bestGrowth) {
+                best = c;
+                bestGrowth = growth;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * moves the objects of the given leaf at the end of the arrays, reserving them the given number of slots
+     */
+    private void relocate(int leaf, int capacity) {
+        int first = this.nodeObjects[2*leaf];
+        int count = this.nodeObjects[2*leaf+1];
+        if (this.nSlots + capacity > this.objects.length) {
+            int length = Math.max(this.objects.length + (this.objects.length >> 1), this.nSlots + capacity);
+            this.objects = Arrays.copyOf(this.objects, length);
+            this.objectBounds = Arrays.copyOf(this.objectBounds, 4*length);
+            this.centroids = Arrays.copyOf(this.centroids, 2*length);
+        }
+        int to = this.nSlots;
+        System.arraycopy(this.objects, first, this.objects, to, count);
+        System.arraycopy(this.objectBounds, 4*first, this.objectBounds, 4*to, 4*count);
+        System.arraycopy(this.centroids, 2*first, this.centroids, 2*to, 2*count);
+        Arrays.fill(this.objects, first, first + count, null);
+        this.nodeObjects[2*leaf] = to;
+        this.nodeCapacities[leaf] = capacity;
+        this.nSlots += capacity;
+    }
+
+    /**
+     * updates the number of objects and the bounds of the given node and of all its ancestors
+     */
+    private void refit(int node, int delta) {
+        for (; node >= 0; node = this.nodeParents[node]) {
+            this.nodeSizes[node] += delta;
+            if (this.nodeSizes[node] == 0)
+                continue; // its bounds won't be visited
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            double[] bounds;
+            int from, to;
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                bounds = this.objectBounds;
+                from = this.nodeObjects[2*node];
+                to = from + this.nodeObjects[2*node+1];
+            } else {
+                bounds = this.nodeBounds;
+                from = this.nodeChildren[2*node];
+                to = from + nChildren;
+            }
+            for (int i = from; i < to; i++) {
+                if (nChildren != 0 && this.nodeSizes[i] == 0)
+                    continue;
+                minX = Math.min(minX, bounds[4*i]);
+                minY = Math.min(minY, bounds[4*i+1]);
+                maxX = Math.max(maxX, bounds[4*i] + bounds[4*i+2]);
+                maxY = Math.max(maxY, bounds[4*i+1] + bounds[4*i+3]);
+            }
+            this.nodeBounds[4*node] = minX;
+            this.nodeBounds[4*node+1] = minY;
+            this.nodeBounds[4*node+2] = maxX - minX;
+            this.nodeBounds[4*node+3] = maxY - minY;
+        }
+    }
+
+    /**
+     * Retrieves the object in the hierarchy whose centroid:
+     * <ul>
+     *   <li>is inside the specified <code>object</code></li>
+     * 	 <li>is the closest to the specified <code>object</code>'s centroid</li>
+     * </ul>
+     * It follows {@link qupath.lib.roi.interfaces.ROI#contains(double, double)} definition of <i>insideness</i> for
+     * determining the overlap. Which, in turn, relies on {@link org.locationtech.jts.geom.Geometry#contains(Geometry)}
+     * and <a href="https://en.wikipedia.org/wiki/DE-9IM">DE-9IM</a> intersection matrix.
+     * @param object the object to search the overlap for
+     * @return the closest PathObject in the hierarchy, or null if there is no overlap
+     * @see BoundingBoxHierarchy#getOverlappingObject(PathObject)
+     */
+    public PathObject getOverlappingObject(PathObject object) {
+        OverlapQuery query = new OverlapQuery(object);
+        ClosestOverlap closest = new ClosestOverlap(query);
+        this.visitOverlaps(query, closest);
+        return closest.getClosest();
+    }
+
+    /**
+     * Retrieves the object in the hierarchy whose centroid:
+     * <ul>
+     *   <li>is inside the specified <code>object</code></li>
+     * 	 <li>is the closest to the specified <code>object</code>'s centroid</li>
+     * </ul>
+     * It follows {@link qupath.lib.roi.interfaces.ROI#contains(double, double)} definition of <i>insideness</i> for
+     * determining the overlap. Which, in turn, relies on {@link org.locationtech.jts.geom.Geometry#contains(Geometry)}
+     * and <a href="https://en.wikipedia.org/wiki/DE-9IM">DE-9IM</a> intersection matrix.
+     * @param object the object to search the overlap for
+     * @return the closest PathObject in the hierarchy as an {@link java.util.Optional Optional}
+     * @see BoundingBoxHierarchy#getOverlappingObjectIfPresent(PathObject)
+     */
+    @Override
+    public Optional<PathObject> getOverlappingObjectIfPresent(PathObject object) {
+        return Optional.ofNullable(this.getOverlappingObject(object));
+    }
+
+    @Override
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        if (this.isEmpty())
+            return true;
+        int[] stack = query.getStack(Math.max(16, this.depth*4+1));
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (this.nodeSizes[node] == 0 || this.isOutside(query, node))
+                continue;
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                if (!this.visitLeaf(query, node, visitor))
+                    return false;
+                continue;
+            }
+            stack = query.getStack(top + nChildren);
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild + nChildren - 1; c >= firstChild; c--)
+                stack[top++] = c;
+        }
+        return true;
+    }
+
+    /**
+     * Visits all the objects whose bounds are inside the given box, in depth-first order.
+     * @param x the x coordinate of the box
+     * @param y the y coordinate of the box
+     * @param w the width of the box
+     * @param h the height of the box
+     * @param visitor the visitor to which each object is given
+     * @return false if the visitor stopped the visit. True otherwise
+     */
+    boolean visitInside(double x, double y, double w, double h, OverlapVisitor visitor) {
+        if (this.isEmpty())
+            return true;
+        int[] stack = new int[Math.max(16, this.depth*4+1)];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (this.nodeSizes[node] == 0 || isOutside(this.nodeBounds, node, x, y, w, h))
+                continue;
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                int first = this.nodeObjects[2*node];
+                int last = first + this.nodeObjects[2*node+1];
+                for (int i = first; i < last; i++)
+                    if (isInside(this.objectBounds, i, x, y, w, h)
+                            && !visitor.visit(this.objects[i], this.centroids[2*i], this.centroids[2*i+1]))
+                        return false;
+                continue;
+            }
+            if (top + nChildren > stack.length)
+                stack = Arrays.copyOf(stack, Math.max(stack.length*2, top+nChildren));
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild + nChildren - 1; c >= firstChild; c--)
+                stack[top++] = c;
+        }
+        return true;
+    }
+
+    private static boolean isInside(double[] bounds, int i, double x, double y, double w, double h) {
+        return bounds[4*i] >= x && bounds[4*i+1] >= y
+                && bounds[4*i] + bounds[4*i+2] <= x + w && bounds[4*i+1] + bounds[4*i+3] <= y + h;
+    }
+
+    private boolean isOutside(OverlapQuery query, int node) {
+        return query.isOutside(this.nodeBounds[4*node], this.nodeBounds[4*node+1], this.nodeBounds[4*node+2], this.nodeBounds[4*node+3]);
+    }
+
+    private boolean visitLeaf(OverlapQuery query, int leaf, OverlapVisitor visitor) {
+        int first = this.nodeObjects[2*leaf];
+        int last = first + this.nodeObjects[2*leaf+1];
+        for (int i = first; i < last; i++) {
+            double centroidX = this.centroids[2*i];
+            double centroidY = this.centroids[2*i+1];
+            if (query.matches(this.objectBounds[4*i], this.objectBounds[4*i+1], this.objectBounds[4*i+2], this.objectBounds[4*i+3], centroidX, centroidY)
+                    && !visitor.visit(this.objects[i], centroidX, centroidY))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * For each of the given objects, it searches the object in the hierarchy whose centroid is inside it and is the
+     * closest to its centroid, just as {@link #getOverlappingObject(PathObject)} does.
+     * <p>
+     * The queries are sorted along a <a href="https://en.wikipedia.org/wiki/Z-order_curve">Z-order curve</a>
+     * and grouped in chunks of spatially close objects. Each chunk visits the hierarchy only once,
+     * and different chunks are searched in parallel.
+     * @param objects the objects to search the overlap for
+     * @return an array, as long as <code>objects</code>, with the overlapping object of each query. <code>null</code> if there is no overlap
+     */
+    @Override
+    public PathObject[] getOverlappingObjects(List<? extends PathObject> objects) {
+        PathObject[] overlaps = new PathObject[objects.size()];
+        if (this.isEmpty())
+            return overlaps;
+        this.forEachChunk(objects, (queries, from, to, leaves, nLeaves) -> {
+            OverlapQuery query = new OverlapQuery();
+            ClosestOverlap closest = new ClosestOverlap(query);
+            for (int k = from; k < to; k++) {
+                int q = queries[k];
+                query.set(objects.get(q));
+                closest.reset();
+                if (query.isPointLike())
+                    this.visitOverlaps(query, closest);
+                else
+                    for (int l = 0; l < nLeaves; l++)
+                        if (!this.isOutside(query, leaves[l]))
+                            this.visitLeaf(query, leaves[l], closest);
+                overlaps[q] = closest.getClosest();
+            }
+        });
+        return overlaps;
+    }
+
+    /**
+     * For each of the given objects, it joins the tags of all the objects in the hierarchy whose centroid is inside it.
+     * <p>
+     * The queries are grouped and searched in parallel just as {@link #getOverlappingObjects(List)} does, and the visit
+     * of each query stops as soon as all the tags in <code>allTags</code> were found.
+     * @param objects the objects to search the overlaps for
+     * @param tags the bitmask of each object in the hierarchy
+     * @param allTags the union of all the bitmasks in the hierarchy
+     * @return an array, as long as <code>objects</code>, with the union of the tags of the objects overlapping with each query
+     * @see MultiChannelIndex
+     */
+    @Override
+    public int[] getOverlappingTags(List<? extends PathObject> objects, ToIntFunction<PathObject> tags, int allTags) {
+        int[] overlaps = new int[objects.size()];
+        if (this.isEmpty())
+            return overlaps;
+        this.forEachChunk(objects, (queries, from, to, leaves, nLeaves) -> {
+            OverlapQuery query = new OverlapQuery();
+            TagsOverlap found = new TagsOverlap(tags, allTags);
+            for (int k = from; k < to; k++) {
+                int q = queries[k];
+                query.set(objects.get(q));
+                found.reset();
+                if (query.isPointLike())
+                    this.visitOverlaps(query, found);
+                else
+                    for (int l = 0; l < nLeaves && !found.isComplete(); l++)
+                        if (!this.isOutside(query, leaves[l]))
+                            this.visitLeaf(query, leaves[l], found);
+                overlaps[q] = found.getTags();
+            }
+        });
+        return overlaps;
+    }
+
+    /**
+     * Checks, in parallel, whether each of the given objects is in the hierarchy.
+     * @param objects the objects to search
+     * @return an array, as long as <code>objects</code>, that is true if the corresponding object is in the hierarchy
+     * @see #contains(PathObject)
+     * @see #getOverlappingObjects(List)
+     */
+    @Override
+    public boolean[] contains(List<? extends PathObject> objects) {
+        boolean[] contained = new boolean[objects.size()];
+        if (this.isEmpty())
+            return contained;
+        this.forEachChunk(objects, (queries, from, to, leaves, nLeaves) -> {
+            for (int k = from; k < to; k++) {
+                int q = queries[k];
+                PathObject object = objects.get(q);
+                ROI roi = object.getROI();
+                if (roi.isPoint() || roi.isEmpty()) {
+                    contained[q] = this.contains(object);
+                    continue;
+                }
+                double x = roi.getBoundsX(), y = roi.getBoundsY(), w = roi.getBoundsWidth(), h = roi.getBoundsHeight();
+                for (int l = 0; l < nLeaves && !contained[q]; l++) {
+                    int leaf = leaves[l];
+                    if (isOutside(this.nodeBounds, leaf, x, y, w, h))
+                        continue;
+                    int first = this.nodeObjects[2*leaf];
+                    int last = first + this.nodeObjects[2*leaf+1];
+                    for (int i = first; i < last; i++)
+                        if (this.objects[i] == object) {
+                            contained[q] = true;
+                            break;
+                        }
+                }
+            }
+        });
+        return contained;
+    }
+
+    private interface ChunkVisitor {
+        /**
+         * @param queries indices of the queries, sorted along a Z-order curve
+         * @param from first query of the chunk, in <code>queries</code>
+         * @param to last query of the chunk (excluded), in <code>queries</code>
+         * @param leaves the leaves, in depth-first order, that may overlap the non-point queries of the chunk
+         * @param nLeaves the number of leaves
+         */
+        void visit(int[] queries, int from, int to, int[] leaves, int nLeaves);
+    }
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int MORTON_BITS = 15;
+
+    private void forEachChunk(List<? extends PathObject> objects, ChunkVisitor visitor) {
+        int n = objects.size();
+        double[] bounds = new double[4*n];
+        long[] keys = new long[n];
+        double rootX = this.nodeBounds[0], rootY = this.nodeBounds[1];
+        double scaleX = ((1 << MORTON_BITS) - 1) / Math.max(this.nodeBounds[2], Double.MIN_VALUE);
+        double scaleY = ((1 << MORTON_BITS) - 1) / Math.max(this.nodeBounds[3], Double.MIN_VALUE);
+        for (int q = 0; q < n; q++) {
+            ROI roi = objects.get(q).getROI();
+            bounds[4*q] = roi.getBoundsX();
+            bounds[4*q+1] = roi.getBoundsY();
+            bounds[4*q+2] = roi.isPoint() || roi.isEmpty() ? Double.NaN : roi.getBoundsWidth(); // NaN marks point-like queries
+            bounds[4*q+3] = roi.getBoundsHeight();
+            int mx = (int) Math.min(Math.max((roi.getCentroidX() - rootX) * scaleX, 0), (1 << MORTON_BITS) - 1);
+            int my = (int) Math.min(Math.max((roi.getCentroidY() - rootY) * scaleY, 0), (1 << MORTON_BITS) - 1);
+            keys[q] = (interleave(mx) | (interleave(my) << 1)) << 32 | q;
+        }
+        Arrays.parallelSort(keys);
+        int[] queries = new int[n];
+        for (int k = 0; k < n; k++)
+            queries[k] = (int) keys[k];
+        int nChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, nChunks).parallel().forEach(chunk -> {
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(from + CHUNK_SIZE, n);
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int k = from; k < to; k++) {
+                int q = queries[k];
+                if (Double.isNaN(bounds[4*q+2]))
+                    continue;
+                minX = Math.min(minX, bounds[4*q]);
+                minY = Math.min(minY, bounds[4*q+1]);
+                maxX = Math.max(maxX, bounds[4*q] + bounds[4*q+2]);
+                maxY = Math.max(maxY, bounds[4*q+1] + bounds[4*q+3]);
+            }
+            int[] leaves = new int[0];
+            int nLeaves = 0;
+            if (minX <= maxX) {
+                leaves = new int[16];
+                int[] stack = new int[Math.max(16, this.depth*4+1)];
+                int top = 0;
+                stack[top++] = 0;
+                while (top > 0) {
+                    int node = stack[--top];
+                    if (this.nodeSizes[node] == 0 || !this.mayOverlap(node, minX, minY, maxX, maxY))
+                        continue;
+                    int nChildren = this.nodeChildren[2*node+1];
+                    if (nChildren == 0) {
+                        if (nLeaves == leaves.length)
+                            leaves = Arrays.copyOf(leaves, leaves.length*2);
+                        leaves[nLeaves++] = node;
+                        continue;
+                    }
+                    if (top + nChildren > stack.length)
+                        stack = Arrays.copyOf(stack, Math.max(stack.length*2, top+nChildren));
+                    int firstChild = this.nodeChildren[2*node];
+                    for (int c = firstChild + nChildren - 1; c >= firstChild; c--)
+                        stack[top++] = c;
+                }
+            }
+            visitor.visit(queries, from, to, leaves, nLeaves);
+        });
+    }
+
+    /**
+     * @return false only if none of the queries within the given bounds can overlap the given node
+     */
+    private boolean mayOverlap(int node, double minX, double minY, double maxX, double maxY) {
+        double x = this.nodeBounds[4*node], y = this.nodeBounds[4*node+1];
+        double w = this.nodeBounds[4*node+2], h = this.nodeBounds[4*node+3];
+        if (isEmptyBox(w, h))
+            return true;
+        return maxX >= x && maxY >= y && minX <= x + w && minY <= y + h;
+    }
+
+    /**
+     * spreads the lowest 16 bits of v over the even bits of the result
+     */
+    private static long interleave(int v) {
+        long x = v & 0xFFFFL;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * @return the minimum distance between the given point and the bounds of the given node
+     */
+    private double boxDistance(int node, double x, double y) {
+        double bx = this.nodeBounds[4*node], by = this.nodeBounds[4*node+1];
+        double dx = Math.max(Math.max(bx - x, x - (bx + this.nodeBounds[4*node+2])), 0);
+        double dy = Math.max(Math.max(by - y, y - (by + this.nodeBounds[4*node+3])), 0);
+        return Math.hypot(dx, dy);
+    }
+
+    /**
+     * Searches the <code>k</code> objects whose centroids are the nearest to the given point.
+     * The hierarchy is visited best-first, and a node is opened only if its bounds may contain a centroid closer than
+     * the <code>k</code>-th nearest one found so far.
+     * @param x the x coordinate of the point, in pixels
+     * @param y the y coordinate of the point, in pixels
+     * @param k the number of objects to search
+     * @param result the buffer where to store the result. Its previous content is cleared
+     * @return <code>result</code>, with at most <code>k</code> objects sorted from the nearest to the farthest
+     * @throws IllegalArgumentException if k is lower than 1
+     */
+    public Neighbours nearest(double x, double y, int k, Neighbours result) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be >0. Instead got k="+k);
+        result.clear();
+        if (this.isEmpty())
+            return result;
+        result.pushNode(0, this.boxDistance(0, x, y));
+        while (result.nNodes > 0) {
+            if (result.size == k && result.nodeDistances[0] > result.distances[0])
+                break; // no remaining node can be closer than the farthest of the k found so far
+            int node = result.popNode();
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                int first = this.nodeObjects[2*node];
+                int last = first + this.nodeObjects[2*node+1];
+                for (int i = first; i < last; i++)
+                    result.offer(this.objects[i], Math.hypot(this.centroids[2*i] - x, this.centroids[2*i+1] - y), k);
+                continue;
+            }
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild; c < firstChild + nChildren; c++) {
+                if (this.nodeSizes[c] == 0)
+                    continue;
+                double distance = this.boxDistance(c, x, y);
+                if (result.size < k || distance <= result.distances[0])
+                    result.pushNode(c, distance);
+            }
+        }
+        result.sortByDistance();
+        return result;
+    }
+
+    /**
+     * @see #nearest(double, double, int, Neighbours)
+     */
+    public Neighbours nearest(double x, double y, int k) {
+        return this.nearest(x, y, k, new Neighbours());
+    }
+
+    /**
+     * Searches all the objects whose centroids are within the given distance from the given point.
+     * @param x the x coordinate of the point, in pixels
+     * @param y the y coordinate of the point, in pixels
+     * @param radius the maximum distance of the centroids from the point, in pixels
+     * @param result the buffer where to store the result. Its previous content is cleared
+     * @return <code>result</code>, with the objects in no particular order
+     */
+    public Neighbours withinRadius(double x, double y, double radius, Neighbours result) {
+        result.clear();
+        if (this.isEmpty())
+            return result;
+        result.pushNode(0, 0);
+        while (result.nNodes > 0) {
+            int node = result.nodes[--result.nNodes];
+            if (this.nodeSizes[node] == 0 || this.boxDistance(node, x, y) > radius)
+                continue;
+            int nChildren = this.nodeChildren[2*node+1];
+            if (nChildren == 0) {
+                int first = this.nodeObjects[2*node];
+                int last = first + this.nodeObjects[2*node+1];
+                for (int i = first; i < last; i++) {
+                    double distance = Math.hypot(this.centroids[2*i] - x, this.centroids[2*i+1] - y);
+                    if (distance <= radius)
+                        result.add(this.objects[i], distance);
+                }
+                continue;
+            }
+            int firstChild = this.nodeChildren[2*node];
+            for (int c = firstChild + nChildren - 1; c >= firstChild; c--)
+                result.pushNode(c, 0); // used as a stack: the order of the distances does not matter
+        }
+        return result;
+    }
+
+    /**
+     * @see #withinRadius(double, double, double, Neighbours)
+     */
+    public Neighbours withinRadius(double x, double y, double radius) {
+        return this.withinRadius(x, y, radius, new Neighbours());
+    }
+
+    /**
+     * Computes, for each object in the hierarchy, the distance between its centroid and the nearest centroid of
+     * any other object in the hierarchy.
+     * @return the distances, in pixels, in the same order as {@link #toStream()}.
+     * If the hierarchy has only one object, its distance is {@link Double#NaN}
+     */
+    public double[] nearestNeighbourDistances() {
+        PathObject[] objects = this.toStream().toArray(PathObject[]::new);
+        double[] distances = new double[objects.length];
+        IntStream.range(0, (objects.length + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            Neighbours neighbours = new Neighbours();
+            for (int i = chunk*CHUNK_SIZE; i < Math.min((chunk+1)*CHUNK_SIZE, objects.length); i++) {
+                ROI roi = objects[i].getROI();
+                this.nearest(roi.getCentroidX(), roi.getCentroidY(), 2, neighbours);
+                distances[i] = Double.NaN;
+                for (int j = 0; j < neighbours.size(); j++)
+                    if (neighbours.getObject(j) != objects[i]) {
+                        distances[i] = neighbours.getDistance(j);
+                        break;
+                    }
+            }
+        });
+        return distances;
+    }
+
+    // sidecar file layout: a header, then all the doubles, the longs and the ints of the hierarchy
+    private static final int FILE_MAGIC = 0x31484242; // "BBH1"
+    private static final int FILE_HEADER_BYTES = 48;
+    private static final int FILE_BUFFER_BYTES = 1 << 16;
+
+    private static long fileSize(long nObjects, long nNodes) {
+        return FILE_HEADER_BYTES + Double.BYTES*(6*nObjects + 4*nNodes) + Long.BYTES*2*nObjects + Integer.BYTES*4*nNodes;
+    }
+
+    /**
+     * Writes the hierarchy to a file, such that it can later be {@link #read(Path, SpatialIndexCache.Fingerprint, Collection, int, int) read}
+     * without being built again. The objects are identified by their {@link PathObject#getID() ID}.
+     * If some objects were inserted or removed, the slots they left empty are skipped, so that a compacted copy of the
+     * hierarchy is written without changing it. This way, it can be written while it is being queried.
+     * @param file the file where to write the hierarchy to
+     * @param fingerprint the fingerprint of the objects in the hierarchy
+     * @throws IOException if an I/O error occurs writing to the file
+     */
+    void write(Path file, SpatialIndexCache.Fingerprint fingerprint) throws IOException {
+        int m = this.nNodes;
+        int[] nodeObjects = this.nSlots == this.nObjects ? this.nodeObjects : this.getCompactedNodeObjects();
+        // the file is streamed through a small buffer, so that writing it does not take as much memory as the hierarchy
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(FILE_MAGIC).putInt(this.maxDepth).putInt(this.leafSize).putInt(m).putInt(this.depth).putInt(0)
+                    .putLong(fingerprint.count()).putLong(fingerprint.sum()).putLong(fingerprint.xor());
+            this.putSlots(channel, buffer, this.objectBounds, 4);
+            this.putSlots(channel, buffer, this.centroids, 2);
+            putDoubles(channel, buffer, this.nodeBounds, 4*m);
+            for (int i = 0; i < this.nSlots; i++) {
+                if (this.objects[i] == null)
+                    continue;
+                if (buffer.remaining() < 2*Long.BYTES)
+                    flush(channel, buffer);
+                UUID id = this.objects[i].getID();
+                buffer.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits());
+            }
+            putInts(channel, buffer, this.nodeChildren, 2*m);
+            putInts(channel, buffer, nodeObjects, 2*m);
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * @return where each leaf would list its objects if the slots left empty by the changes were skipped.
+     * The objects of the leaves are contiguous and do not overlap, so each leaf keeps its place among the others
+     */
+    private int[] getCompactedNodeObjects() {
+        int[] nodeObjects = Arrays.copyOf(this.nodeObjects, 2*this.nNodes);
+        long[] leaves = new long[this.nNodes];
+        int nLeaves = 0;
+        for (int node = 0; node < this.nNodes; node++) {
+            if (this.nodeChildren[2*node+1] != 0)
+                continue;
+            if (nodeObjects[2*node+1] == 0)
+                nodeObjects[2*node] = 0;
+            else
+                leaves[nLeaves++] = ((long) nodeObjects[2*node] << 32) | node;
+        }
+        Arrays.sort(leaves, 0, nLeaves);
+        int first = 0;
+        for (int k = 0; k < nLeaves; k++) {
+            int node = (int) leaves[k];
+            nodeObjects[2*node] = first;
+            first += nodeObjects[2*node+1];
+        }
+        return nodeObjects;
+    }
+
+    /**
+     * writes the given values of each object, skipping the empty slots
+     * @param stride the number of values of each object
+     */
+    private void putSlots(FileChannel channel, ByteBuffer buffer, double[] values, int stride) throws IOException {
+        if (this.nSlots == this.nObjects) {
+            putDoubles(channel, buffer, values, stride*this.nObjects);
+            return;
+        }
+        for (int i = 0; i < this.nSlots; i++) {
+            if (this.objects[i] == null)
+                continue;
+            if (buffer.remaining() < stride*Double.BYTES)
+                flush(channel, buffer);
+            for (int k = 0; k < stride; k++)
+                buffer.putDouble(values[stride*i+k]);
+        }
+    }
+
+    private static void putDoubles(FileChannel channel, ByteBuffer buffer, double[] values, int length) throws IOException {
+        for (int i = 0; i < length;) {
+            if (buffer.remaining() < Double.BYTES)
+                flush(channel, buffer);
+            int k = Math.min(length-i, buffer.remaining() / Double.BYTES);
+            buffer.asDoubleBuffer().put(values, i, k);
+            buffer.position(buffer.position() + k*Double.BYTES);
+            i += k;
+        }
+    }
+
+    private static void putInts(FileChannel channel, ByteBuffer buffer, int[] values, int length) throws IOException {
+        for (int i = 0; i < length;) {
+            if (buffer.remaining() < Integer.BYTES)
+                flush(channel, buffer);
+            int k = Math.min(length-i, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, i, k);
+            buffer.position(buffer.position() + k*Integer.BYTES);
+            i += k;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Reads a hierarchy previously {@link #write(Path, SpatialIndexCache.Fingerprint) written} to a file.
+     * @param file the file where to read the hierarchy from
+     * @param fingerprint the fingerprint of <code>objects</code>
+     * @param objects the objects that the hierarchy is expected to contain
+     * @param maxDepth the maximum depth that that hierarchy is expected to have been built with
+     * @param leafSize the leaf size that the hierarchy is expected to have been built with
+     * @return the hierarchy, or null if the file does not contain a hierarchy of the given objects, built with the same parameters
+     * @throws IOException if an I/O error occurs reading from the file
+     */
+    static PackedBoundingBoxHierarchy read(Path file, SpatialIndexCache.Fingerprint fingerprint,
+                                           Collection<? extends PathObject> objects, int maxDepth, int leafSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FILE_HEADER_BYTES)
+                return null;
+            // the file is read through a small buffer, straight into the arrays of the hierarchy
+            ByteBuffer buffer = ByteBuffer.allocate(FILE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+            fill(channel, buffer, FILE_HEADER_BYTES);
+            if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != maxDepth || buffer.getInt() != leafSize)
+                return null;
+            int m = buffer.getInt();
+            int depth = buffer.getInt();
+            buffer.getInt();
+            if (buffer.getLong() != fingerprint.count() || buffer.getLong() != fingerprint.sum() || buffer.getLong() != fingerprint.xor()
+                    || fingerprint.count() != objects.size() || m < 0 || size != fileSize(fingerprint.count(), m))
+                return null;
+            int n = objects.size();
+            double[] objectBounds = new double[4*n];
+            double[] centroids = new double[2*n];
+            BoundingBoxBuilder.Nodes nodes = new BoundingBoxBuilder.Nodes();
+            nodes.bounds = new double[4*m];
+            nodes.children = new int[2*m];
+            nodes.objects = new int[2*m];
+            nodes.size = m;
+            nodes.depth = depth;
+            getDoubles(channel, buffer, objectBounds);
+            getDoubles(channel, buffer, centroids);
+            getDoubles(channel, buffer, nodes.bounds);
+            Map<UUID, PathObject> ids = new HashMap<>(n*4/3+1);
+            for (PathObject object: objects)
+                ids.put(object.getID(), object);
+            PathObject[] sortedObjects = new PathObject[n];
+            for (int i = 0; i < n; i++) {
+                fill(channel, buffer, 2*Long.BYTES);
+                if ((sortedObjects[i] = ids.get(new UUID(buffer.getLong(), buffer.getLong()))) == null)
+                    return null;
+            }
+            getInts(channel, buffer, nodes.children);
+            getInts(channel, buffer, nodes.objects);
+            return new PackedBoundingBoxHierarchy(sortedObjects, objectBounds, centroids, nodes, maxDepth, leafSize);
+        }
+    }
+
+    private static void getDoubles(FileChannel channel, ByteBuffer buffer, double[] values) throws IOException {
+        for (int i = 0; i < values.length;) {
+            fill(channel, buffer, Double.BYTES);
+            int k = Math.min(values.length-i, buffer.remaining() / Double.BYTES);
+            buffer.asDoubleBuffer().get(values, i, k);
+            buffer.position(buffer.position() + k*Double.BYTES);
+            i += k;
+        }
+    }
+
+    private static void getInts(FileChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        for (int i = 0; i < values.length;) {
+            fill(channel, buffer, Integer.BYTES);
+            int k = Math.min(values.length-i, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().get(values, i, k);
+            buffer.position(buffer.position() + k*Integer.BYTES);
+            i += k;
+        }
+    }
+
+    /**
+     * reads from the channel until the buffer has at least <code>bytes</code> bytes left to get
+     */
+    private static void fill(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() >= bytes)
+            return;
+        buffer.compact();
+        while (buffer.position() < bytes)
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Unexpected end of file");
+        buffer.flip();
+    }
+
+    /**
+     * Lists all the objects contained in the hierarchy as {@link java.util.stream.Stream}.
+     * @return the stream of all saved objects
+     */
+    @Override
+    public Stream<PathObject> toStream() {
+        if (this.nSlots == this.nObjects)
+            return Arrays.stream(this.objects, 0, this.nObjects);
+        return Arrays.stream(this.objects, 0, this.nSlots).filter(Objects::nonNull);
+    }
+
+    /**
+     * Returns a rectangle in which all objects' ROI are inside
+     * @return the bounding box of all objects
+     */
+    @Override
+    public Rectangle2D getBox() {
+        if (this.isEmpty())
+            return new Rectangle2D.Double();
+        return this.getNodeBox(0);
+    }
+
+    /**
+     * @return the maximum depth of the hierarchy. Returns -1 if the hierarchy is empty.
+     * After objects are {@link #remove(PathObject) removed}, it may overestimate the actual depth until the hierarchy
+     * is {@link #rebalance() rebalanced}.
+     */
+    @Override
+    public int getDepth() {
+        return this.isEmpty() ? -1 : this.depth;
+    }
+
+    /**
+     * A reusable buffer of objects and their distances, as returned by the neighbourhood queries of
+     * {@link PackedBoundingBoxHierarchy}. Reusing the same buffer across multiple queries avoids any allocation.
+     * @see #nearest(double, double, int, Neighbours)
+     * @see #withinRadius(double, double, double, Neighbours)
+     */
+    public static final class Neighbours {
+        private PathObject[] objects = new PathObject[16];
+        private double[] distances = new double[16];
+        private int size = 0;
+        // queue of nodes to visit
+        private int[] nodes = new int[16];
+        private double[] nodeDistances = new double[16];
+        private int nNodes = 0;
+
+        /**
+         * @return the number of objects found
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * @param i the index of the result
+         * @return the i-th object found
+         */
+        public PathObject getObject(int i) {
+            Objects.checkIndex(i, this.size);
+            return this.objects[i];
+        }
+
+        /**
+         * @param i the index of the result
+         * @return the distance, in pixels, between the centroid of the i-th object and the query point
+         */
+        public double getDistance(int i) {
+            Objects.checkIndex(i, this.size);
+            return this.distances[i];
+        }
+
+        private void clear() {
+            Arrays.fill(this.objects, 0, this.size, null);
+            this.size = 0;
+            this.nNodes = 0;
+        }
+
+        private void add(PathObject object, double distance) {
+            if (this.size == this.objects.length) {
+                this.objects = Arrays.copyOf(this.objects, this.size*2);
+                this.distances = Arrays.copyOf(this.distances, this.size*2);
+            }
+            this.objects[this.size] = object;
+            this.distances[this.size++] = distance;
+        }
+
+        /**
+         * adds an object to the max-heap of the k nearest objects, if it is nearer than the farthest one
+         */
+        private void offer(PathObject object, double distance, int k) {
+            if (this.size < k) {
+                this.add(object, distance);
+                for (int i = this.size-1, parent; i > 0 && this.distances[parent = (i-1)/2] < this.distances[i]; i = parent)
+                    this.swap(i, parent);
+            } else if (distance < this.distances[0]) {
+                this.objects[0] = object;
+                this.distances[0] = distance;
+                this.siftDown(0, this.size);
+            }
+        }
+
+        private void siftDown(int i, int size) {
+            while (true) {
+                int largest = i, left = 2*i+1, right = left+1;
+                if (left < size && this.distances[left] > this.distances[largest])
+                    largest = left;
+                if (right < size && this.distances[right] > this.distances[largest])
+                    largest = right;
+                if (largest == i)
+                    return;
+                this.swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            PathObject object = this.objects[i];
+            this.objects[i] = this.objects[j];
+            this.objects[j] = object;
+            double distance = this.distances[i];
+            this.distances[i] = this.distances[j];
+            this.distances[j] = distance;
+        }
+
+        /**
+         * sorts the max-heap of the objects from the nearest to the farthest
+         */
+        private void sortByDistance() {
+            for (int end = this.size-1; end > 0; end--) {
+                this.swap(0, end);
+                this.siftDown(0, end);
+            }
+        }
+
+        /**
+         * adds a node to the min-heap of the nodes to visit
+         */
+        private void pushNode(int node, double distance) {
+            if (this.nNodes == this.nodes.length) {
+                this.nodes = Arrays.copyOf(this.nodes, this.nNodes*2);
+                this.nodeDistances = Arrays.copyOf(this.nodeDistances, this.nNodes*2);
+            }
+            int i = this.nNodes++;
+            for (int parent; i > 0 && this.nodeDistances[parent = (i-1)/2] > distance; i = parent) {
+                this.nodes[i] = this.nodes[parent];
+                this.nodeDistances[i] = this.nodeDistances[parent];
+            }
+            this.nodes[i] = node;
+            this.nodeDistances[i] = distance;
+        }
+
+        /**
+         * @return the nearest node in the min-heap of the nodes to visit
+         */
+        private int popNode() {
+            int top = this.nodes[0];
+            int node = this.nodes[--this.nNodes];
+            double distance = this.nodeDistances[this.nNodes];
+            int i = 0;
+            while (2*i+1 < this.nNodes) {
+                int child = 2*i+1;
+                if (child+1 < this.nNodes && this.nodeDistances[child+1] < this.nodeDistances[child])
+                    child++;
+                if (this.nodeDistances[child] >= distance)
+                    break;
+                this.nodes[i] = this.nodes[child];
+                this.nodeDistances[i] = this.nodeDistances[child];
+                i = child;
+            }
+            this.nodes[i] = node;
+            this.nodeDistances[i] = distance;
+            return top;
+        }
+    }
+}
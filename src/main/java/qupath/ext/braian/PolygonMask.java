@@ -0,0 +1,142 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+import qupath.lib.geom.Point2;
+import qupath.lib.roi.GeometryROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A coarse raster of a polygonal {@link ROI} that answers {@link ROI#contains(double, double)} without going through
+ * all the vertices of the polygon each time.
+ * <p>
+ * The bounds of the ROI are divided in a grid of cells, and every cell that is close to an edge of the polygon is marked
+ * as a boundary. All the points of any other cell are either inside or outside the ROI, which is computed only once per
+ * cell by calling {@link ROI#contains(double, double)} on its centre. Points falling in a boundary cell, or outside the
+ * grid, are always tested with {@link ROI#contains(double, double)}. Hence, the results are exactly the same as those of
+ * the ROI.
+ * <br>
+ * It can be {@link #reset(ROI) reset} with a new ROI, reusing the memory of the grid.
+ */
+final class PolygonMask {
+    private static final byte UNKNOWN = 0;
+    private static final byte BOUNDARY = 1;
+    private static final byte INSIDE = 2;
+    private static final byte OUTSIDE = 3;
+    // number of cells per vertex of the polygon
+    private static final int CELLS_PER_VERTEX = 4;
+    private static final int MAX_GRID_SIDE = 64;
+
+    /**
+     * @return true if the given ROI is a polygon with enough vertices for a {@link PolygonMask} to pay off
+     */
+    static boolean isWorthMasking(ROI roi, int minVertices) {
+        return (roi instanceof PolygonROI || roi instanceof GeometryROI)
+                && !roi.isEmpty()
+                && roi.getBoundsWidth() > 0 && roi.getBoundsHeight() > 0
+                && roi.getNumPoints() >= minVertices;
+    }
+
+    private ROI roi;
+    private double x0, y0;
+    private double cellWidth, cellHeight;
+    private int nx, ny;
+    private byte[] cells = new byte[0];
+
+    /**
+     * rasterises the edges of the given ROI
+     * @return this mask
+     */
+    PolygonMask reset(ROI roi) {
+        this.roi = roi;
+        this.x0 = roi.getBoundsX();
+        this.y0 = roi.getBoundsY();
+        double w = roi.getBoundsWidth(), h = roi.getBoundsHeight();
+        int side = (int) Math.min(MAX_GRID_SIDE, Math.max(4, Math.ceil(Math.sqrt((double) CELLS_PER_VERTEX * roi.getNumPoints()))));
+        double cellSize = Math.max(w, h) / side;
+        this.nx = Math.max(1, (int) Math.ceil(w / cellSize));
+        this.ny = Math.max(1, (int) Math.ceil(h / cellSize));
+        this.cellWidth = w / this.nx;
+        this.cellHeight = h / this.ny;
+        int n = this.nx * this.ny;
+        if (this.cells.length < n)
+            this.cells = new byte[n];
+        Arrays.fill(this.cells, 0, n, UNKNOWN);
+        if (roi instanceof PolygonROI)
+            this.markRing(roi.getAllPoints());
+        else
+            this.markRings(roi.getGeometry());
+        return this;
+    }
+
+    private void markRing(List<Point2> vertices) {
+        int n = vertices.size();
+        for (int i = 0; i < n; i++) {
+            Point2 p0 = vertices.get(i), p1 = vertices.get((i+1) % n); // the polygon is implicitly closed
+            this.markSegment(p0.getX(), p0.getY(), p1.getX(), p1.getY());
+        }
+    }
+
+    private void markRings(Geometry geometry) {
+        for (Object line: LinearComponentExtracter.getLines(geometry)) {
+            Coordinate[] coordinates = ((LineString) line).getCoordinates();
+            for (int i = 0; i < coordinates.length; i++) {
+                Coordinate c0 = coordinates[i], c1 = coordinates[(i+1) % coordinates.length];
+                this.markSegment(c0.x, c0.y, c1.x, c1.y);
+            }
+        }
+    }
+
+    /**
+     * marks as boundary all the cells that are closer than 3/4 of a cell to the given segment.
+     * It does so by sampling the segment every 1/4 of a cell and marking the 3x3 cells around each sample
+     */
+    private void markSegment(double xa, double ya, double xb, double yb) {
+        double step = Math.min(this.cellWidth, this.cellHeight) / 4;
+        int nSteps = step > 0 ? (int) Math.ceil(Math.hypot(xb-xa, yb-ya) / step) : 0;
+        for (int s = 0; s <= nSteps; s++) {
+            double t = nSteps == 0 ? 0 : (double) s / nSteps;
+            int i = this.column(xa + t * (xb-xa));
+            int j = this.row(ya + t * (yb-ya));
+            for (int jj = Math.max(0, j-1); jj <= Math.min(this.ny-1, j+1); jj++)
+                for (int ii = Math.max(0, i-1); ii <= Math.min(this.nx-1, i+1); ii++)
+                    this.cells[jj*this.nx + ii] = BOUNDARY;
+        }
+    }
+
+    private int column(double x) {
+        return (int) Math.floor((x - this.x0) / this.cellWidth);
+    }
+
+    private int row(double y) {
+        return (int) Math.floor((y - this.y0) / this.cellHeight);
+    }
+
+    /**
+     * @return the same as {@link ROI#contains(double, double)} of the masked ROI
+     */
+    boolean contains(double x, double y) {
+        int i = this.column(x), j = this.row(y);
+        if (i < 0 || j < 0 || i >= this.nx || j >= this.ny)
+            return this.roi.contains(x, y);
+        int cell = j*this.nx + i;
+        byte value = this.cells[cell];
+        if (value == BOUNDARY)
+            return this.roi.contains(x, y);
+        if (value == UNKNOWN) {
+            boolean inside = this.roi.contains(this.x0 + (i+.5) * this.cellWidth, this.y0 + (j+.5) * this.cellHeight);
+            this.cells[cell] = value = inside ? INSIDE : OUTSIDE;
+        }
+        return value == INSIDE;
+    }
+}
@@ -0,0 +1,298 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+import qupath.lib.geom.Point2;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.GeometryROI;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Finds which detections overlap with a set of control cells by rasterising the cells into a label map, instead of
+ * testing their geometries.
+ * <p>
+ * The label map stores, for each pixel, the index of the control cell covering its centre. A detection of another channel
+ * then overlaps with the cell whose label is found under its centroid, which costs O(1) for each detection.
+ * The few pixels covered by more than one cell are marked as shared, and the centroids falling on them are tested
+ * against the geometries of the cells.
+ * The label map is built at a given downsample, and one tile at a time: each thread only keeps the labels of the tile
+ * it is working on, so that the memory does not scale with the size of the image.
+ * <br>
+ * The results are an approximation of the geometric test done by {@link AbstractDetections#getOverlappingObjects(List)}.
+ * They differ for the centroids that fall close to the borders of a cell: the coarser the downsample, the more they differ.
+ * @see OverlappingDetections#OverlappingDetections(AbstractDetections, java.util.Collection, RasterOverlaps, qupath.lib.objects.hierarchy.PathObjectHierarchy)
+ */
+public class RasterOverlaps {
+    /**
+     * The default side of the tiles of the label map, in pixels of the label map
+     */
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    private final double downsample;
+    private final int tileSize;
+
+    /**
+     * @param downsample the downsample of the label map, with respect to the full resolution image
+     */
+    public RasterOverlaps(double downsample) {
+        this(downsample, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param downsample the downsample of the label map, with respect to the full resolution image
+     * @param tileSize the side of the tiles in which the label map is built, in pixels of the label map
+     */
+    public RasterOverlaps(double downsample, int tileSize) {
+        if (!(downsample > 0))
+            throw new IllegalArgumentException("downsample must be >0. Instead got downsample="+downsample);
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("tileSize must be >0. Instead got tileSize="+tileSize);
+        this.downsample = downsample;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @return the downsample of the label map
+     */
+    public double getDownsample() {
+        return this.downsample;
+    }
+
+    /**
+     * A tile of the label map, with the cells that cover it and the detections whose centroid falls in it
+     */
+    private static final class Tile {
+        private final long i, j;
+        private int[] cells = new int[8];
+        private int nCells = 0;
+        private double[] centroids = new double[16];
+        private int[] channels = new int[8];
+        private int nCentroids = 0;
+
+        private Tile(long i, long j) {
+            this.i = i;
+            this.j = j;
+        }
+
+        private void addCell(int cell) {
+            if (this.nCells == this.cells.length)
+                this.cells = Arrays.copyOf(this.cells, 2*this.nCells);
+            this.cells[this.nCells++] = cell;
+        }
+
+        private void addCentroid(double x, double y, int channel) {
+            if (this.nCentroids == this.channels.length) {
+                this.channels = Arrays.copyOf(this.channels, 2*this.nCentroids);
+                this.centroids = Arrays.copyOf(this.centroids, 4*this.nCentroids);
+            }
+            this.centroids[2*this.nCentroids] = x;
+            this.centroids[2*this.nCentroids+1] = y;
+            this.channels[this.nCentroids++] = channel;
+        }
+    }
+
+    /**
+     * Computes, for each cell, which of the other detections overlap with it
+     * @param cells the control cells
+     * @param others the other detections. At most 31
+     * @return an array, as long as <code>cells</code>, such that the <code>j</code>-th bit of each element is set if
+     * the cell overlaps with any detection of <code>others.get(j)</code>
+     */
+    int[] computeMasks(List<? extends PathObject> cells, List<AbstractDetections> others) {
+        double side = this.tileSize * this.downsample;
+        Map<Long, Tile> tiles = new HashMap<>();
+        for (int c = 0; c < cells.size(); c++) {
+            ROI roi = cells.get(c).getROI();
+            long i0 = tile(roi.getBoundsX(), side), i1 = tile(roi.getBoundsX()+roi.getBoundsWidth(), side);
+            long j0 = tile(roi.getBoundsY(), side), j1 = tile(roi.getBoundsY()+roi.getBoundsHeight(), side);
+            for (long j = j0; j <= j1; j++)
+                for (long i = i0; i <= i1; i++) {
+                    long ii = i, jj = j;
+                    tiles.computeIfAbsent(key(i, j), k -> new Tile(ii, jj)).addCell(c);
+                }
+        }
+        for (int channel = 0; channel < others.size(); channel++) {
+            int ch = channel;
+            others.get(channel).toStream().forEach(detection -> {
+                ROI roi = detection.getROI();
+                double x = roi.getCentroidX(), y = roi.getCentroidY();
+                Tile tile = tiles.get(key(tile(x, side), tile(y, side)));
+                if (tile != null) // no cell covers the tile
+                    tile.addCentroid(x, y, ch);
+            });
+        }
+        AtomicIntegerArray masks = new AtomicIntegerArray(cells.size());
+        ThreadLocal<Rasteriser> rasterisers = ThreadLocal.withInitial(() -> new Rasteriser(this.tileSize, this.downsample));
+        tiles.values().parallelStream()
+                .filter(tile -> tile.nCentroids > 0)
+                .forEach(tile -> {
+                    Rasteriser rasteriser = rasterisers.get();
+                    rasteriser.reset(tile.i * side, tile.j * side);
+                    for (int c = 0; c < tile.nCells; c++)
+                        rasteriser.fill(cells.get(tile.cells[c]).getROI(), tile.cells[c]);
+                    for (int p = 0; p < tile.nCentroids; p++) {
+                        double x = tile.centroids[2*p], y = tile.centroids[2*p+1];
+                        int bit = 1 << tile.channels[p];
+                        int label = rasteriser.get(x, y);
+                        if (label >= 0)
+                            masks.getAndAccumulate(label, bit, (mask, b) -> mask | b);
+                        else if (label == Rasteriser.SHARED)
+                            for (int c = 0; c < tile.nCells; c++)
+                                if (cells.get(tile.cells[c]).getROI().contains(x, y))
+                                    masks.getAndAccumulate(tile.cells[c], bit, (mask, b) -> mask | b);
+                    }
+                });
+        int[] result = new int[cells.size()];
+        for (int c = 0; c < result.length; c++)
+            result[c] = masks.get(c);
+        return result;
+    }
+
+    private static long tile(double coordinate, double side) {
+        return (long) Math.floor(coordinate / side);
+    }
+
+    private static long key(long i, long j) {
+        return (i << 32) ^ (j & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The labels of one tile, filled by scanline for polygonal ROIs and pixel by pixel for any other ROI
+     */
+    private static final class Rasteriser {
+        private static final int EMPTY = -1;
+        private static final int SHARED = -2;
+
+        private final int size;
+        private final double downsample;
+        private final int[] labels;
+        private double x0, y0;
+        private double[] edges = new double[64];    // x0, y0, x1, y1 of each edge
+        private double[] crossings = new double[16];
+
+        private Rasteriser(int size, double downsample) {
+            this.size = size;
+            this.downsample = downsample;
+            this.labels = new int[size*size];
+        }
+
+        private void reset(double x0, double y0) {
+            this.x0 = x0;
+            this.y0 = y0;
+            Arrays.fill(this.labels, EMPTY);
+        }
+
+        /**
+         * @return the label of the pixel containing the given point of the image. {@link #EMPTY} if no cell covers it,
+         * {@link #SHARED} if more than one does
+         */
+        private int get(double x, double y) {
+            int column = (int) Math.floor((x - this.x0) / this.downsample);
+            int row = (int) Math.floor((y - this.y0) / this.downsample);
+            if (column < 0 || row < 0 || column >= this.size || row >= this.size)
+                return EMPTY;
+            return this.labels[row*this.size + column];
+        }
+
+        /**
+         * sets <code>label</code> to all the pixels of the tile whose centre is inside <code>roi</code>
+         */
+        private void fill(ROI roi, int label) {
+            // the rows and columns whose centres are within the bounds of the ROI, clipped to the tile
+            int row0 = Math.max(0, this.firstPixel(roi.getBoundsY(), this.y0));
+            int row1 = Math.min(this.size, this.firstPixel(roi.getBoundsY()+roi.getBoundsHeight(), this.y0));
+            int col0 = Math.max(0, this.firstPixel(roi.getBoundsX(), this.x0));
+            int col1 = Math.min(this.size, this.firstPixel(roi.getBoundsX()+roi.getBoundsWidth(), this.x0));
+            if (row0 >= row1 || col0 >= col1)
+                return;
+            int nEdges = this.collectEdges(roi);
+            for (int row = row0; row < row1; row++) {
+                double y = this.y0 + (row+.5) * this.downsample;
+                if (nEdges < 0) {
+                    for (int col = col0; col < col1; col++)
+                        if (roi.contains(this.x0 + (col+.5) * this.downsample, y))
+                            this.set(row*this.size + col, label);
+                    continue;
+                }
+                // even-odd rule on the edges crossing the centre of the row
+                int nCrossings = 0;
+                for (int e = 0; e < nEdges; e++) {
+                    double ya = this.edges[4*e+1], yb = this.edges[4*e+3];
+                    if ((ya <= y) == (yb <= y))
+                        continue;
+                    double xa = this.edges[4*e], xb = this.edges[4*e+2];
+                    if (nCrossings == this.crossings.length)
+                        this.crossings = Arrays.copyOf(this.crossings, 2*nCrossings);
+                    this.crossings[nCrossings++] = xa + (y-ya) * (xb-xa) / (yb-ya);
+                }
+                Arrays.sort(this.crossings, 0, nCrossings);
+                for (int k = 0; k+1 < nCrossings; k += 2) {
+                    int from = Math.max(col0, this.firstPixel(this.crossings[k], this.x0));
+                    int to = Math.min(col1, this.firstPixel(this.crossings[k+1], this.x0));
+                    for (int col = from; col < to; col++)
+                        this.set(row*this.size + col, label);
+                }
+            }
+        }
+
+        private void set(int pixel, int label) {
+            this.labels[pixel] = this.labels[pixel] == EMPTY ? label : SHARED;
+        }
+
+        /**
+         * @return the first pixel whose centre is at, or after, the given coordinate
+         */
+        private int firstPixel(double coordinate, double origin) {
+            return (int) Math.ceil((coordinate - origin) / this.downsample - .5);
+        }
+
+        /**
+         * @return the number of edges of the rings of the ROI. -1 if the ROI is not polygonal
+         */
+        private int collectEdges(ROI roi) {
+            int nEdges = 0;
+            if (roi instanceof PolygonROI) {
+                List<Point2> vertices = roi.getAllPoints();
+                int n = vertices.size();
+                for (int v = 0; v < n; v++) {
+                    Point2 p0 = vertices.get(v), p1 = vertices.get((v+1) % n); // the polygon is implicitly closed
+                    nEdges = this.addEdge(nEdges, p0.getX(), p0.getY(), p1.getX(), p1.getY());
+                }
+                return nEdges;
+            }
+            if (roi instanceof GeometryROI) {
+                for (Object line: LinearComponentExtracter.getLines(roi.getGeometry())) {
+                    Coordinate[] coordinates = ((LineString) line).getCoordinates();
+                    for (int v = 0; v < coordinates.length; v++) {
+                        Coordinate c0 = coordinates[v], c1 = coordinates[(v+1) % coordinates.length];
+                        nEdges = this.addEdge(nEdges, c0.x, c0.y, c1.x, c1.y);
+                    }
+                }
+                return nEdges;
+            }
+            return -1;
+        }
+
+        private int addEdge(int nEdges, double xa, double ya, double xb, double yb) {
+            if (4*nEdges == this.edges.length)
+                this.edges = Arrays.copyOf(this.edges, 2*this.edges.length);
+            this.edges[4*nEdges] = xa;
+            this.edges[4*nEdges+1] = ya;
+            this.edges[4*nEdges+2] = xb;
+            this.edges[4*nEdges+3] = yb;
+            return nEdges+1;
+        }
+    }
+}
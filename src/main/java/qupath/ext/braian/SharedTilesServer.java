@@ -0,0 +1,171 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder;
+import qupath.lib.images.servers.TransformingImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An {@link ImageServer} that shares the regions it reads between a given number of readers, such as the detections
+ * of multiple channels of the same image.
+ * <p>
+ * The first request of a region reads it from the wrapped server, and any following request of the same region,
+ * even if concurrent, waits for that read instead of decoding the region again. A region is dropped once it was
+ * requested by all the readers. If the readers fall too far apart, the oldest regions are dropped too, so that the
+ * shared regions never take more than a given amount of memory; they will be read again, if requested.
+ * <br>
+ * The regions are given to all readers as they are, so the readers must not change their pixels.
+ */
+final class SharedTilesServer extends TransformingImageServer<BufferedImage> {
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private static final class SharedTile {
+        private final FutureTask<BufferedImage> read;
+        private int nReads = 0;
+        private long bytes = 0;     // 0 until read
+
+        private SharedTile(FutureTask<BufferedImage> read) {
+            this.read = read;
+        }
+    }
+
+    private final int nReaders;
+    private final long maxBytes;
+    // from the oldest to the newest region requested
+    private final Map<RegionRequest, SharedTile> tiles = new LinkedHashMap<>();
+    private long bytes = 0;
+    private long nDecoded = 0, nShared = 0;
+
+    /**
+     * @param server the server to read the regions from
+     * @param nReaders the number of times each region is expected to be requested
+     * @param maxBytes the maximum memory taken by the regions read, but not yet requested by all readers
+     */
+    SharedTilesServer(ImageServer<BufferedImage> server, int nReaders, long maxBytes) {
+        super(server);
+        if (nReaders <= 0)
+            throw new IllegalArgumentException("nReaders must be >0. Instead got nReaders="+nReaders);
+        this.nReaders = nReaders;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public BufferedImage readRegion(RegionRequest request) throws IOException {
+        SharedTile tile;
+        boolean isFirst;
+        synchronized (this) {
+            tile = this.tiles.get(request);
+            isFirst = tile == null;
+            if (isFirst) {
+                tile = new SharedTile(new FutureTask<>(() -> this.getWrappedServer().readRegion(request)));
+                this.tiles.put(request, tile);
+                this.nDecoded++;
+            } else {
+                this.nShared++;
+            }
+            if (++tile.nReads >= this.nReaders)
+                this.drop(request);
+        }
+        if (isFirst) {
+            tile.read.run();
+            synchronized (this) {
+                if (this.tiles.get(request) == tile) {
+                    tile.bytes = sizeOf(tile.read);
+                    this.bytes += tile.bytes;
+                    this.trim();
+                }
+            }
+        }
+        try {
+            return tile.read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for "+request);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause)
+                throw cause;
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void drop(RegionRequest request) {
+        SharedTile tile = this.tiles.remove(request);
+        if (tile != null)
+            this.bytes -= tile.bytes;
+    }
+
+    /**
+     * drops the oldest regions read until they take no more than the maximum memory
+     */
+    private void trim() {
+        Iterator<SharedTile> oldest = this.tiles.values().iterator();
+        while (this.bytes > this.maxBytes && oldest.hasNext()) {
+            SharedTile tile = oldest.next();
+            if (tile.bytes == 0) // still being read
+                continue;
+            this.bytes -= tile.bytes;
+            oldest.remove();
+        }
+    }
+
+    private static long sizeOf(FutureTask<BufferedImage> read) {
+        try {
+            BufferedImage img = read.get();
+            if (img == null)
+                return 0;
+            DataBuffer buffer = img.getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / Byte.SIZE;
+        } catch (InterruptedException | ExecutionException e) {
+            return 0;   // the error is given to the readers
+        }
+    }
+
+    /**
+     * @return the number of regions decoded from the wrapped server, and the number of requests that reused them
+     */
+    synchronized long[] getReadCounts() {
+        return new long[] {this.nDecoded, this.nShared};
+    }
+
+    /**
+     * Drops all the regions still kept, even if not yet requested by all the readers.
+     * They will be read again, if requested.
+     * @return the number of regions decoded from the wrapped server, and the number of requests that reused them
+     * @see #getReadCounts()
+     */
+    synchronized long[] clear() {
+        this.tiles.clear();
+        this.bytes = 0;
+        return this.getReadCounts();
+    }
+
+    @Override
+    protected ImageServerBuilder.ServerBuilder<BufferedImage> createServerBuilder() {
+        // the pixels are the same of the wrapped server
+        return this.getWrappedServer().getBuilder();
+    }
+
+    @Override
+    protected String createID() {
+        return "Shared tiles: "+this.getWrappedServer().getPath();
+    }
+
+    @Override
+    public String getServerType() {
+        return "Shared tiles ("+this.getWrappedServer().getServerType()+")";
+    }
+}
@@ -0,0 +1,43 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * A mutable index of {@link PathObject}s, that searches them based on the position of their centroid.
+ * <p>
+ * All implementations share the semantics of {@link BoundingBoxHierarchy}: an object overlaps a query if its centroid
+ * is inside the query's ROI, and among multiple overlapping objects the one whose centroid is the closest to the
+ * query's centroid is chosen.
+ * <br>
+ * The changes to an index cannot be done concurrently with other changes or queries.
+ * @see SpatialIndexStrategy
+ */
+public interface SpatialIndex extends BoundingBox {
+    /**
+     * @return true if there are no {@link PathObject} inside
+     */
+    boolean isEmpty();
+
+    /**
+     * @return the number of objects in the index
+     */
+    int size();
+
+    /**
+     * Inserts an object in the index
+     * @param object the object to insert
+     * @return false if the object was already in the index. True otherwise
+     */
+    boolean insert(PathObject object);
+
+    /**
+     * Removes an object from the index
+     * @param object the object to remove
+     * @return false if the object was not in the index. True otherwise
+     */
+    boolean remove(PathObject object);
+}
@@ -0,0 +1,177 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.UUID;
+
+import static qupath.ext.braian.BraiAnExtension.getLogger;
+
+/**
+ * Persists {@link PackedBoundingBoxHierarchy} as sidecar files in the directory of a project entry, so that
+ * they don't need to be built again every time a script is run on the same image.
+ * <p>
+ * Each file is keyed by a {@link Fingerprint} of the indexed objects: their IDs, bounds and centroids.
+ * If any of them changed since the file was written, the hierarchy is built again. The files are only written when
+ * explicitly {@link #save(ProjectImageEntry, String, PackedBoundingBoxHierarchy) saved}.
+ * <br>
+ * Any problem in reading or writing the files is logged, and the hierarchy is simply built from scratch.
+ */
+public class SpatialIndexCache {
+    private static final String FILE_PREFIX = "braian-";
+    private static final String FILE_EXTENSION = ".bbh";
+
+    /**
+     * An order-independent hash of a collection of objects, their bounds and their centroids.
+     * @param count the number of objects
+     * @param sum the sum of the hashes of each object
+     * @param xor the exclusive or of the hashes of each object
+     */
+    record Fingerprint(long count, long sum, long xor) {
+        static Fingerprint of(Collection<? extends PathObject> objects) {
+            long sum = 0, xor = 0;
+            for (PathObject object: objects) {
+                long hash = hash(object);
+                sum += hash;
+                xor ^= hash;
+            }
+            return new Fingerprint(objects.size(), sum, xor);
+        }
+
+        /**
+         * @return a fingerprint that, differently from {@link #of(Collection)}, changes when the classification of
+         * any object changes too
+         */
+        static Fingerprint ofClassified(Collection<? extends PathObject> objects) {
+            long sum = 0, xor = 0;
+            for (PathObject object: objects) {
+                long hash = mix(hash(object) ^ String.valueOf(object.getPathClass()).hashCode());
+                sum += hash;
+                xor ^= hash;
+            }
+            return new Fingerprint(objects.size(), sum, xor);
+        }
+
+        /**
+         * @return the fingerprint of the union of the objects of two disjoint collections
+         */
+        Fingerprint combine(Fingerprint other) {
+            return new Fingerprint(this.count+other.count, this.sum+other.sum, this.xor^other.xor);
+        }
+
+        /**
+         * @return a compact textual representation of the fingerprint
+         */
+        String encode() {
+            return Long.toHexString(this.count)+":"+Long.toHexString(this.sum)+":"+Long.toHexString(this.xor);
+        }
+
+        private static long hash(PathObject object) {
+            UUID id = object.getID();
+            ROI roi = object.getROI();
+            long hash = mix(id.getMostSignificantBits());
+            hash = mix(hash ^ id.getLeastSignificantBits());
+            hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsX()));
+            hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsY()));
+            hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsWidth()));
+            hash = mix(hash ^ Double.doubleToLongBits(roi.getBoundsHeight()));
+            hash = mix(hash ^ Double.doubleToLongBits(roi.getCentroidX()));
+            return mix(hash ^ Double.doubleToLongBits(roi.getCentroidY()));
+        }
+
+        // the finaliser of SplitMix64
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+
+    private SpatialIndexCache() {}
+
+    /**
+     * Loads the hierarchy of the given objects from the sidecar file saved in the given project entry. If the file does
+     * not exist or was written for different objects, it builds the hierarchy, without saving it.
+     * @param entry the project entry owning the objects, or null
+     * @param name the name identifying the index among those of the same image
+     * @param objects the objects to index
+     * @param maxDepth the maximum depth that that hierarchy can have
+     * @param leafSize the maximum number of objects in a leaf of the hierarchy
+     * @return the hierarchy of <code>objects</code>
+     * @see PackedBoundingBoxHierarchy#PackedBoundingBoxHierarchy(Collection, int, int)
+     * @see #save(ProjectImageEntry, String, PackedBoundingBoxHierarchy)
+     */
+    public static PackedBoundingBoxHierarchy loadOrBuild(ProjectImageEntry<?> entry, String name,
+                                                         Collection<? extends PathObject> objects, int maxDepth, int leafSize) {
+        Path file = getFile(entry, name);
+        if (file == null)
+            return new PackedBoundingBoxHierarchy(objects, maxDepth, leafSize);
+        return loadOrBuild(file, objects, maxDepth, leafSize);
+    }
+
+    static PackedBoundingBoxHierarchy loadOrBuild(Path file, Collection<? extends PathObject> objects,
+                                                  int maxDepth, int leafSize) {
+        if (Files.isRegularFile(file)) {
+            try {
+                PackedBoundingBoxHierarchy bbh = PackedBoundingBoxHierarchy.read(file, Fingerprint.of(objects), objects, maxDepth, leafSize);
+                if (bbh != null)
+                    return bbh;
+            } catch (IOException | RuntimeException e) {
+                getLogger().warn("Could not read the spatial index '{}': {}", file, e.getMessage());
+            }
+        }
+        return new PackedBoundingBoxHierarchy(objects, maxDepth, leafSize);
+    }
+
+    /**
+     * Saves the hierarchy as a sidecar file of the given project entry, so that it can be
+     * {@link #loadOrBuild(ProjectImageEntry, String, Collection, int, int) loaded} by the next runs on the same image.
+     * The hierarchy itself is not changed, so it can be saved while it is being queried.
+     * @param entry the project entry owning the objects in the hierarchy
+     * @param name the name identifying the index among those of the same image
+     * @param bbh the hierarchy to save
+     * @return true if the hierarchy was saved
+     */
+    public static boolean save(ProjectImageEntry<?> entry, String name, PackedBoundingBoxHierarchy bbh) {
+        Path file = getFile(entry, name);
+        if (file == null)
+            return false;
+        return save(file, bbh);
+    }
+
+    static boolean save(Path file, PackedBoundingBoxHierarchy bbh) {
+        Fingerprint fingerprint = Fingerprint.of(bbh.toStream().toList());
+        Path tmp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            bbh.write(tmp, fingerprint);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            getLogger().warn("Could not save the spatial index '{}': {}", file, e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {}
+            }
+            return false;
+        }
+    }
+
+    private static Path getFile(ProjectImageEntry<?> entry, String name) {
+        if (entry == null || entry.getEntryPath() == null)
+            return null;
+        return entry.getEntryPath().resolve(FILE_PREFIX+name.replaceAll("[^A-Za-z0-9._-]", "_")+FILE_EXTENSION);
+    }
+}
@@ -0,0 +1,133 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Objects;
+
+import static qupath.ext.braian.BraiAnExtension.getLogger;
+
+/**
+ * The kinds of {@link SpatialIndex} that {@link AbstractDetections} can use to search its detections.
+ * <p>
+ * The strategy used by default can be chosen for the whole run with {@link #setDefault(SpatialIndexStrategy)} or
+ * with the <code>braian.spatialIndex</code> system property. If none is set, {@link #BVH} is used.
+ * Each {@link AbstractDetections} can then {@link AbstractDetections#setSpatialIndex(SpatialIndexStrategy) use} its own,
+ * such as the one chosen with the <code>spatialIndex</code> key of the {@link qupath.ext.braian.config.ProjectsConfig configuration file}.
+ */
+public enum SpatialIndexStrategy {
+    /**
+     * A {@link PackedBoundingBoxHierarchy}, cached on disk with {@link SpatialIndexCache}
+     */
+    BVH {
+        @Override
+        public SpatialIndex build(Collection<? extends PathObject> objects) {
+            return new PackedBoundingBoxHierarchy(objects, AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE);
+        }
+
+        @Override
+        public SpatialIndex loadOrBuild(ProjectImageEntry<?> entry, String name, Collection<? extends PathObject> objects) {
+            return SpatialIndexCache.loadOrBuild(entry, name, objects, AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE);
+        }
+
+        @Override
+        public boolean save(ProjectImageEntry<?> entry, String name, SpatialIndex index) {
+            return index instanceof PackedBoundingBoxHierarchy bbh && SpatialIndexCache.save(entry, name, bbh);
+        }
+    },
+    /**
+     * A uniform grid whose cells are as large as the average object
+     */
+    GRID {
+        @Override
+        public SpatialIndex build(Collection<? extends PathObject> objects) {
+            return new GridSpatialIndex(objects);
+        }
+    },
+    /**
+     * A JTS {@link org.locationtech.jts.index.strtree.STRtree}
+     */
+    STR_TREE {
+        @Override
+        public SpatialIndex build(Collection<? extends PathObject> objects) {
+            return new StrTreeSpatialIndex(objects);
+        }
+    },
+    /**
+     * Fixed-size tiles of the image, each with its own {@link PackedBoundingBoxHierarchy}
+     * that is built only when first queried and dropped when the least recently used
+     */
+    TILED {
+        @Override
+        public SpatialIndex build(Collection<? extends PathObject> objects) {
+            return new TiledSpatialIndex(objects, TiledSpatialIndex.DEFAULT_TILE_SIZE, TiledSpatialIndex.DEFAULT_MAX_BUILT_OBJECTS);
+        }
+    };
+
+    private static final String PROPERTY = "braian.spatialIndex";
+    private static volatile SpatialIndexStrategy defaultStrategy = fromProperty();
+
+    private static SpatialIndexStrategy fromProperty() {
+        String value = System.getProperty(PROPERTY);
+        if (value == null)
+            return BVH;
+        try {
+            return SpatialIndexStrategy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            getLogger().warn("Unknown spatial index '{}'. Using {} instead", value, BVH);
+            return BVH;
+        }
+    }
+
+    /**
+     * @return the strategy used by the {@link AbstractDetections} created from now on
+     */
+    public static SpatialIndexStrategy getDefault() {
+        return defaultStrategy;
+    }
+
+    /**
+     * Sets the strategy used by the {@link AbstractDetections} created from now on
+     * @param strategy the strategy to use
+     */
+    public static void setDefault(SpatialIndexStrategy strategy) {
+        defaultStrategy = Objects.requireNonNull(strategy);
+    }
+
+    /**
+     * Builds an index of the given objects
+     * @param objects the objects to index
+     * @return a new index
+     */
+    public abstract SpatialIndex build(Collection<? extends PathObject> objects);
+
+    /**
+     * Builds an index of the given objects, possibly loading it from a previous run on the same image
+     * @param entry the project entry owning the objects, or null
+     * @param name the name identifying the index among those of the same image
+     * @param objects the objects to index
+     * @return the index of <code>objects</code>
+     * @see #save(ProjectImageEntry, String, SpatialIndex)
+     */
+    public SpatialIndex loadOrBuild(ProjectImageEntry<?> entry, String name, Collection<? extends PathObject> objects) {
+        return this.build(objects);
+    }
+
+    /**
+     * Saves an index in the given project entry, so that the next runs on the same image can
+     * {@link #loadOrBuild(ProjectImageEntry, String, Collection) load} it instead of building it again
+     * @param entry the project entry owning the indexed objects
+     * @param name the name identifying the index among those of the same image
+     * @param index the index to save
+     * @return true if the index was saved. If the strategy cannot persist its indexes, it returns false
+     */
+    public boolean save(ProjectImageEntry<?> entry, String name, SpatialIndex index) {
+        return false;
+    }
+}
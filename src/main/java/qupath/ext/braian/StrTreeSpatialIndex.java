@@ -0,0 +1,190 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.strtree.STRtree;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A {@link SpatialIndex} backed by a JTS {@link STRtree}, an R-tree bulk-loaded with the
+ * <a href="https://en.wikipedia.org/wiki/R-tree#Packed_Hilbert_R-trees">Sort-Tile-Recursive</a> algorithm,
+ * that indexes the centroids of the objects.
+ * <p>
+ * As a {@link STRtree} cannot be changed once built, the inserted objects are kept aside and scanned at each query.
+ * When they become too many, the tree is built again.
+ */
+final class StrTreeSpatialIndex implements SpatialIndex {
+    private static final int NODE_CAPACITY = 10;
+    private static final double REBUILD_RATIO = 0.25;
+    private static final int MIN_REBUILD_INSERTS = 1 << 10;
+
+    private record Entry(PathObject object, double x, double y, double w, double h, double centroidX, double centroidY) {
+        static Entry of(PathObject object) {
+            ROI roi = object.getROI();
+            return new Entry(object, roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(),
+                    roi.getCentroidX(), roi.getCentroidY());
+        }
+
+        Envelope getEnvelope() {
+            return new Envelope(this.centroidX, this.centroidX, this.centroidY, this.centroidY);
+        }
+    }
+
+    private final Map<PathObject, Entry> entries = new IdentityHashMap<>();
+    private final List<Entry> inserted = new ArrayList<>();
+    private final Rectangle2D.Double bbox = new Rectangle2D.Double();
+    private STRtree tree;
+
+    /**
+     * Builds an {@link STRtree} of the centroids of the given objects
+     * @param objects the objects to insert into the tree
+     */
+    StrTreeSpatialIndex(Collection<? extends PathObject> objects) {
+        for (PathObject object: objects)
+            this.entries.putIfAbsent(object, Entry.of(object));
+        this.build();
+    }
+
+    private void build() {
+        this.tree = new STRtree(NODE_CAPACITY);
+        this.inserted.clear();
+        boolean first = true;
+        for (Entry entry: this.entries.values()) {
+            this.tree.insert(entry.getEnvelope(), entry);
+            this.grow(entry, first);
+            first = false;
+        }
+        this.tree.build();
+    }
+
+    private void grow(Entry entry, boolean first) {
+        if (first) {
+            this.bbox.setRect(entry.x(), entry.y(), entry.w(), entry.h());
+            return;
+        }
+        double minX = Math.min(this.bbox.x, entry.x()), minY = Math.min(this.bbox.y, entry.y());
+        double maxX = Math.max(this.bbox.x+this.bbox.width, entry.x()+entry.w());
+        double maxY = Math.max(this.bbox.y+this.bbox.height, entry.y()+entry.h());
+        this.bbox.setRect(minX, minY, maxX-minX, maxY-minY);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return this.entries.size();
+    }
+
+    @Override
+    public boolean contains(PathObject object) {
+        return this.entries.containsKey(object);
+    }
+
+    @Override
+    public boolean insert(PathObject object) {
+        if (this.entries.containsKey(object))
+            return false;
+        Entry entry = Entry.of(object);
+        this.entries.put(object, entry);
+        this.grow(entry, this.entries.size() == 1);
+        this.inserted.add(entry);
+        if (this.inserted.size() > Math.max(MIN_REBUILD_INSERTS, this.entries.size() * REBUILD_RATIO))
+            this.build();
+        return true;
+    }
+
+    @Override
+    public boolean remove(PathObject object) {
+        Entry entry = this.entries.remove(object);
+        if (entry == null)
+            return false;
+        if (!this.inserted.remove(entry))
+            this.tree.remove(entry.getEnvelope(), entry);
+        return true;
+    }
+
+    @Override
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        if (this.isEmpty())
+            return true;
+        ROI roi = query.getROI();
+        // a point-like query only matches centroids equal to its position
+        double x = roi.getBoundsX(), y = roi.getBoundsY();
+        double w = query.isPointLike() ? 0 : roi.getBoundsWidth();
+        double h = query.isPointLike() ? 0 : roi.getBoundsHeight();
+        StoppableVisit visit = new StoppableVisit(query, visitor);
+        this.tree.query(new Envelope(x, x+w, y, y+h), visit);
+        if (visit.isStopped())
+            return false;
+        for (Entry entry: this.inserted)
+            if (!visit.visit(entry))
+                return false;
+        return true;
+    }
+
+    /**
+     * An {@link ItemVisitor} that gives the matching entries to an {@link OverlapVisitor}, and ignores all the
+     * following entries once the visitor stopped the visit.
+     */
+    private static final class StoppableVisit implements ItemVisitor {
+        private final OverlapQuery query;
+        private final OverlapVisitor visitor;
+        private boolean stopped = false;
+
+        private StoppableVisit(OverlapQuery query, OverlapVisitor visitor) {
+            this.query = query;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void visitItem(Object item) {
+            if (!this.stopped && !this.visit((Entry) item))
+                this.stopped = true;
+        }
+
+        private boolean visit(Entry entry) {
+            return !this.query.matches(entry.x(), entry.y(), entry.w(), entry.h(), entry.centroidX(), entry.centroidY())
+                    || this.visitor.visit(entry.object(), entry.centroidX(), entry.centroidY());
+        }
+
+        private boolean isStopped() {
+            return this.stopped;
+        }
+    }
+
+    @Override
+    public Stream<PathObject> toStream() {
+        return this.entries.keySet().stream();
+    }
+
+    /**
+     * Returns a rectangle in which all objects' ROI are inside.
+     * It is not shrunk when objects are removed.
+     * @return the bounding box of all objects
+     */
+    @Override
+    public Rectangle2D getBox() {
+        return this.bbox;
+    }
+
+    @Override
+    public int getDepth() {
+        return this.isEmpty() ? -1 : this.tree.depth();
+    }
+}
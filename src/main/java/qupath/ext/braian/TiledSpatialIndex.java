@@ -0,0 +1,288 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A {@link SpatialIndex} that cuts the image plane in square tiles of fixed size, and assigns each object to the tile
+ * containing its centroid.
+ * <p>
+ * Each tile only lists its objects in a packed array, costing a reference per object, and builds its own
+ * {@link PackedBoundingBoxHierarchy} only when a query first needs it. Once the built tiles
+ * index more objects than a given budget, the hierarchies of the least recently used tiles are dropped, and built again
+ * if needed. This way, the memory scales with the regions being queried rather than with the whole image, and the
+ * tiles that are never queried are never built.
+ * <br>
+ * Queries can be run concurrently, while changes to the index cannot.
+ */
+final class TiledSpatialIndex implements SpatialIndex {
+    static final double DEFAULT_TILE_SIZE = 4096;
+    static final int DEFAULT_MAX_BUILT_OBJECTS = 1 << 20;
+
+    /**
+     * A tile, listing its objects in a packed array. The objects are not kept in any order, so that an object is removed
+     * by moving the last one in its place
+     */
+    private static final class Tile {
+        private final long i, j;
+        private PathObject[] objects = new PathObject[8];
+        private int size = 0;
+        private PackedBoundingBoxHierarchy index;
+
+        private Tile(long i, long j) {
+            this.i = i;
+            this.j = j;
+        }
+
+        private int indexOf(PathObject object) {
+            for (int k = 0; k < this.size; k++)
+                if (this.objects[k] == object)
+                    return k;
+            return -1;
+        }
+
+        private void add(PathObject object) {
+            if (this.size == this.objects.length)
+                this.objects = Arrays.copyOf(this.objects, 2*this.size);
+            this.objects[this.size++] = object;
+        }
+
+        private void removeAt(int k) {
+            this.objects[k] = this.objects[--this.size];
+            this.objects[this.size] = null;
+        }
+
+        private List<PathObject> getObjects() {
+            return Arrays.asList(this.objects).subList(0, this.size);
+        }
+    }
+
+    private final double tileSize;
+    private final int maxBuiltObjects;
+    private final Map<Long, Tile> tiles = new HashMap<>();
+    // built tiles, from the least to the most recently used
+    private final LinkedHashMap<Tile, Boolean> built = new LinkedHashMap<>(16, 0.75f, true);
+    private int nBuiltObjects = 0;
+    private int nObjects = 0;
+    private final Rectangle2D.Double bbox = new Rectangle2D.Double();
+
+    /**
+     * @param objects the distinct objects to insert into the index
+     * @param tileSize the side of each tile, in pixels
+     * @param maxBuiltObjects the maximum number of objects indexed by the built tiles, before the least recently used
+     *                        ones are dropped. The tile being queried is always kept built
+     */
+    TiledSpatialIndex(Collection<? extends PathObject> objects, double tileSize, int maxBuiltObjects) {
+        if (!(tileSize > 0))
+            throw new IllegalArgumentException("tileSize must be >0. Instead got tileSize="+tileSize);
+        this.tileSize = tileSize;
+        this.maxBuiltObjects = maxBuiltObjects;
+        for (PathObject object: objects)
+            this.add(object);
+    }
+
+    private long tile(double coordinate) {
+        return (long) Math.floor(coordinate / this.tileSize);
+    }
+
+    private static long key(long i, long j) {
+        return (i << 32) ^ (j & 0xFFFFFFFFL);
+    }
+
+    private Tile getTile(PathObject object) {
+        ROI roi = object.getROI();
+        return this.tiles.get(key(this.tile(roi.getCentroidX()), this.tile(roi.getCentroidY())));
+    }
+
+    /**
+     * @return the hierarchy of the given tile, building it if needed
+     */
+    private synchronized PackedBoundingBoxHierarchy getIndex(Tile tile) {
+        if (tile.index != null) {
+            this.built.get(tile); // marks it as the most recently used
+            return tile.index;
+        }
+        tile.index = new PackedBoundingBoxHierarchy(tile.getObjects(), AbstractDetections.BBH_MAX_DEPTH, AbstractDetections.BBH_LEAF_SIZE);
+        this.built.put(tile, true);
+        this.nBuiltObjects += tile.size;
+        Iterator<Tile> lru = this.built.keySet().iterator();
+        while (this.nBuiltObjects > this.maxBuiltObjects && lru.hasNext()) {
+            Tile old = lru.next();
+            if (old == tile)
+                continue;
+            this.nBuiltObjects -= old.index.size();
+            old.index = null;
+            lru.remove();
+        }
+        return tile.index;
+    }
+
+    private synchronized void drop(Tile tile) {
+        if (tile.index == null)
+            return;
+        this.nBuiltObjects -= tile.index.size();
+        tile.index = null;
+        this.built.remove(tile);
+    }
+
+    /**
+     * @return the number of tiles whose hierarchy is currently built
+     */
+    synchronized int getBuiltTilesCount() {
+        return this.built.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.nObjects == 0;
+    }
+
+    @Override
+    public int size() {
+        return this.nObjects;
+    }
+
+    @Override
+    public boolean contains(PathObject object) {
+        Tile tile = this.getTile(object);
+        return tile != null && tile.indexOf(object) >= 0;
+    }
+
+    /**
+     * Costs in proportion to the number of objects in the tile of <code>object</code>, to check that it is not already indexed
+     */
+    @Override
+    public boolean insert(PathObject object) {
+        Tile tile = this.getTile(object);
+        if (tile != null && tile.indexOf(object) >= 0)
+            return false;
+        tile = this.add(object);
+        synchronized (this) {
+            if (tile.index != null) {
+                tile.index.insert(object);
+                this.nBuiltObjects++;
+            }
+        }
+        return true;
+    }
+
+    private Tile add(PathObject object) {
+        ROI roi = object.getROI();
+        long i = this.tile(roi.getCentroidX()), j = this.tile(roi.getCentroidY());
+        Tile tile = this.tiles.computeIfAbsent(key(i, j), k -> new Tile(i, j));
+        tile.add(object);
+        double x = roi.getBoundsX(), y = roi.getBoundsY(), w = roi.getBoundsWidth(), h = roi.getBoundsHeight();
+        if (this.nObjects++ == 0) {
+            this.bbox.setRect(x, y, w, h);
+        } else {
+            double minX = Math.min(this.bbox.x, x), minY = Math.min(this.bbox.y, y);
+            double maxX = Math.max(this.bbox.x+this.bbox.width, x+w), maxY = Math.max(this.bbox.y+this.bbox.height, y+h);
+            this.bbox.setRect(minX, minY, maxX-minX, maxY-minY);
+        }
+        return tile;
+    }
+
+    /**
+     * Costs in proportion to the number of objects in the tile of <code>object</code>
+     */
+    @Override
+    public boolean remove(PathObject object) {
+        Tile tile = this.getTile(object);
+        int k;
+        if (tile == null || (k = tile.indexOf(object)) < 0)
+            return false;
+        tile.removeAt(k);
+        this.nObjects--;
+        if (tile.size == 0) {
+            this.drop(tile);
+            this.tiles.remove(key(tile.i, tile.j));
+            return true;
+        }
+        synchronized (this) {
+            if (tile.index != null) {
+                tile.index.remove(object);
+                this.nBuiltObjects--;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean visitOverlaps(OverlapQuery query, OverlapVisitor visitor) {
+        if (this.isEmpty())
+            return true;
+        ROI roi = query.getROI();
+        // a point-like query only matches centroids equal to its position
+        double x = roi.getBoundsX(), y = roi.getBoundsY();
+        double w = query.isPointLike() ? 0 : roi.getBoundsWidth();
+        double h = query.isPointLike() ? 0 : roi.getBoundsHeight();
+        long i0 = this.tile(x), i1 = this.tile(x+w);
+        long j0 = this.tile(y), j1 = this.tile(y+h);
+        if ((i1-i0+1) * (j1-j0+1) > this.tiles.size()) {
+            List<Tile> touched = new ArrayList<>();
+            for (Tile tile: this.tiles.values())
+                if (tile.i >= i0 && tile.i <= i1 && tile.j >= j0 && tile.j <= j1)
+                    touched.add(tile);
+            touched.sort((t1, t2) -> t1.j != t2.j ? Long.compare(t1.j, t2.j) : Long.compare(t1.i, t2.i));
+            for (Tile tile: touched)
+                if (!this.getIndex(tile).visitOverlaps(query, visitor))
+                    return false;
+            return true;
+        }
+        for (long j = j0; j <= j1; j++) {
+            for (long i = i0; i <= i1; i++) {
+                Tile tile = this.tiles.get(key(i, j));
+                if (tile != null && !this.getIndex(tile).visitOverlaps(query, visitor))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Lists all the objects in the index, without building any tile
+     * @return the stream of all saved objects
+     */
+    @Override
+    public Stream<PathObject> toStream() {
+        return this.tiles.values().stream().flatMap(tile -> Arrays.stream(tile.objects, 0, tile.size));
+    }
+
+    /**
+     * Returns a rectangle in which all objects' ROI are inside.
+     * It is not shrunk when objects are removed.
+     * @return the bounding box of all objects
+     */
+    @Override
+    public Rectangle2D getBox() {
+        return this.bbox;
+    }
+
+    /**
+     * @return 1 plus the depth of the deepest tile currently built. -1 if empty
+     */
+    @Override
+    public synchronized int getDepth() {
+        if (this.isEmpty())
+            return -1;
+        return 1 + this.built.keySet().stream()
+                .mapToInt(tile -> tile.index.getDepth())
+                .max()
+                .orElse(0);
+    }
+}
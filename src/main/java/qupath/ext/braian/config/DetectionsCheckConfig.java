@@ -9,6 +9,8 @@ import java.util.Optional;
 public class DetectionsCheckConfig {
     private boolean apply = false;
     private String controlChannel = null;
+    private Double rasterDownsample = null;
+    private boolean referenceOnly = false;
 
     public boolean getApply() {
         return this.apply;
@@ -18,6 +20,14 @@ public class DetectionsCheckConfig {
         return controlChannel;
     }
 
+    public Double getRasterDownsample() {
+        return rasterDownsample;
+    }
+
+    public boolean getReferenceOnly() {
+        return referenceOnly;
+    }
+
     public void setApply(boolean apply) {
         this.apply = apply;
     }
@@ -25,4 +35,12 @@ public class DetectionsCheckConfig {
     public void setControlChannel(String controlChannel) {
         this.controlChannel = controlChannel;
     }
+
+    public void setRasterDownsample(Double rasterDownsample) {
+        this.rasterDownsample = rasterDownsample;
+    }
+
+    public void setReferenceOnly(boolean referenceOnly) {
+        this.referenceOnly = referenceOnly;
+    }
 }
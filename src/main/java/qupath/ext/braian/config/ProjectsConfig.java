@@ -9,6 +9,9 @@ import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
 import org.yaml.snakeyaml.error.YAMLException;
 import qupath.ext.braian.BraiAnExtension;
+import qupath.ext.braian.OverlappingDetections;
+import qupath.ext.braian.RasterOverlaps;
+import qupath.ext.braian.SpatialIndexStrategy;
 import qupath.ext.braian.utils.BraiAn;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
@@ -54,6 +57,7 @@ public class ProjectsConfig {
     private String classForDetections = null;
     private DetectionsCheckConfig detectionsCheck = new DetectionsCheckConfig();
     private List<ChannelDetectionsConfig> channelDetections = List.of();
+    private SpatialIndexStrategy spatialIndex = null;
 
     public String getClassForDetections() {
         return classForDetections;
@@ -104,6 +108,28 @@ public class ProjectsConfig {
         return Optional.of(name);
     }
 
+    /**
+     * Retrieves the label map with which the overlaps between detections should be computed
+     * @return an empty optional if the overlaps should be computed testing the geometries of the detections
+     * @see qupath.ext.braian.OverlappingDetections#OverlappingDetections(qupath.ext.braian.AbstractDetections, Collection, RasterOverlaps, PathObjectHierarchy)
+     */
+    public Optional<RasterOverlaps> getRasterOverlaps() {
+        Double downsample = this.detectionsCheck.getRasterDownsample();
+        if (downsample == null)
+            return Optional.empty();
+        return Optional.of(new RasterOverlaps(downsample));
+    }
+
+    /**
+     * Retrieves how the overlaps between detections should be saved
+     * @return {@link OverlappingDetections.Mode#REFERENCES} if the overlaps should be saved only as a measurement of
+     * the control detections, {@link OverlappingDetections.Mode#COPIES} otherwise
+     * @see qupath.ext.braian.OverlappingDetections#OverlappingDetections(qupath.ext.braian.AbstractDetections, Collection, OverlappingDetections.Mode, RasterOverlaps, PathObjectHierarchy)
+     */
+    public OverlappingDetections.Mode getOverlapsMode() {
+        return this.detectionsCheck.getReferenceOnly() ? OverlappingDetections.Mode.REFERENCES : OverlappingDetections.Mode.COPIES;
+    }
+
     public List<ChannelDetectionsConfig> getChannelDetections() {
         return channelDetections;
     }
@@ -111,4 +137,17 @@ public class ProjectsConfig {
     public void setChannelDetections(List<ChannelDetectionsConfig> channelDetections) {
         this.channelDetections = channelDetections;
     }
+
+    /**
+     * @return the spatial index chosen to search the detections, or null if none was chosen.
+     * It is not applied by reading the configuration: it is up to the caller to give it to the detections
+     * @see qupath.ext.braian.AbstractDetections#setSpatialIndex(SpatialIndexStrategy)
+     */
+    public SpatialIndexStrategy getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    public void setSpatialIndex(SpatialIndexStrategy spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
 }
@@ -8,19 +8,27 @@ import qupath.ext.braian.ChannelHistogram;
 import qupath.ext.braian.ImageChannelTools;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.util.*;
 import java.util.stream.IntStream;
 
 import static qupath.ext.braian.BraiAnExtension.getLogger;
 
 public class WatershedCellDetectionConfig {
+    /**
+     * Searches the threshold of a channel in its histogram
+     * @param channel the channel whose histogram is searched
+     * @param params how to search the histogram
+     * @return the threshold
+     * @throws ThresholdNotFoundException if the histogram could not be built, or it has no valid peak to use as threshold
+     */
     public static int findThreshold(ImageChannelTools channel, AutoThresholdParmameters params) {
         int windowSize = params.getSmoothWindowSize();
         ChannelHistogram histogram;
         try {
             histogram = channel.getHistogram(params.getResolutionLevel());
         } catch (IOException ignored) {
-            throw new RuntimeException("Could not build the channel histogram of '"+channel.getName()+"' to automatically determine the threshold!");
+            throw new ThresholdNotFoundException("Could not build the channel histogram of '"+channel.getName()+"' to automatically determine the threshold!");
         }
         int[] peaks = histogram.findHistogramPeaks(windowSize, params.getPeakProminence());
         getLogger().debug("'{}' histogram peaks (invalid peaks included): {}", channel.getName(), Arrays.toString(peaks));
@@ -45,11 +53,11 @@ public class WatershedCellDetectionConfig {
         int shiftedNth = nth + firstValid.orElseGet(() -> 0);
         String msg = "Could not automatically determine the channel threshold of '"+histogram.getChannelName()+"' from its histogram!";
         if(firstValid.isEmpty())
-            throw new RuntimeException(msg+" No peak was found within the trust-worthy interval");
+            throw new ThresholdNotFoundException(msg+" No peak was found within the trust-worthy interval");
         if (peaks.length <= shiftedNth)
-            throw new RuntimeException(msg+" The histogram doesn't have n peaks in [windowSize:end]");
+            throw new ThresholdNotFoundException(msg+" The histogram doesn't have n peaks in [windowSize:end]");
         if (peaks[shiftedNth] >= max)
-            throw new RuntimeException(msg+" There is at least one valid peak, but not n valid peaks");
+            throw new ThresholdNotFoundException(msg+" There is at least one valid peak, but not n valid peaks");
         return peaks[shiftedNth];
     }
 
@@ -69,18 +77,50 @@ public class WatershedCellDetectionConfig {
     private boolean smoothBoundaries = true;
     private boolean makeMeasurements = true;
 
-    public Map<String,?> build(ImageChannelTools channel) {
-        this.setDetectionImage(channel.getName());
-        if (this.histogramThreshold != null)
-            this.setThreshold(findThreshold(channel, this.histogramThreshold));
+    /**
+     * Resolves the parameters that depend on the channel on which the detections are computed.
+     * If a {@link #setHistogramThreshold(AutoThresholdParmameters) histogram threshold} is set, the threshold is
+     * searched in the histogram of the channel.
+     * @param channel the channel on which the detections are computed
+     * @return a copy of the parameters, detecting <code>channel</code> with the threshold found in its histogram, if any.
+     * Its {@link #build(ImageChannelTools)} does not search the histogram again. The instance is not changed
+     * @throws ThresholdNotFoundException if the threshold could not be found in the histogram of the channel
+     * @see #findThreshold(ImageChannelTools, AutoThresholdParmameters)
+     */
+    public WatershedCellDetectionConfig resolve(ImageChannelTools channel) {
+        WatershedCellDetectionConfig resolved = new WatershedCellDetectionConfig();
+        for (Field field: WatershedCellDetectionConfig.class.getDeclaredFields()) {
+            if (field.isSynthetic())
+                continue;
+            try {
+                field.set(resolved, field.get(this));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("This should never happen as it gets the field from the class itself!");
+            }
+        }
+        resolved.setDetectionImage(channel.getName());
+        if (this.histogramThreshold != null) {
+            resolved.setThreshold(findThreshold(channel, this.histogramThreshold));
+            resolved.setHistogramThreshold(null);
+        }
+        return resolved;
+    }
 
+    /**
+     * @param channel the channel on which the detections are computed
+     * @return the parameters to give to {@link qupath.imagej.detect.cells.WatershedCellDetection}
+     * @throws ThresholdNotFoundException if the threshold could not be found in the histogram of the channel
+     * @see #resolve(ImageChannelTools)
+     */
+    public Map<String,?> build(ImageChannelTools channel) {
+        WatershedCellDetectionConfig resolved = this.resolve(channel);
         return Arrays.stream(WatershedCellDetectionConfig.class.getDeclaredFields())
                 .filter(f -> !f.isSynthetic() && !f.getName().equals("histogramThreshold"))
                 .reduce(
                         new HashMap<>(),
                         (map, field) -> {
                             try {
-                                map.put(field.getName(), field.get(this));
+                                map.put(field.getName(), field.get(resolved));
                             } catch (IllegalAccessException e) {
                                 throw new RuntimeException("This should never happen as it gets the field from the class itself!");
                             }
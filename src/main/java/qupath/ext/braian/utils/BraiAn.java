@@ -43,7 +43,10 @@ public class BraiAn {
     }
 
     public static void populatePathClassGUI(PathClass... toAdd) {
-        List<PathClass> visibleClasses = new ArrayList<>(getProject().getPathClasses());
+        var project = getProject();
+        if (project == null) // e.g. when running without a project, or in tests
+            return;
+        List<PathClass> visibleClasses = new ArrayList<>(project.getPathClasses());
         List<PathClass> missingClasses = Arrays.stream(toAdd)
                 .filter(classification -> !visibleClasses.contains(classification))
                 .toList();
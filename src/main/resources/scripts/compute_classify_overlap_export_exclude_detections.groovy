@@ -22,9 +22,12 @@
  */
 import qupath.ext.braian.AtlasManager
 import qupath.ext.braian.OverlappingDetections
+import qupath.ext.braian.RasterOverlaps
 import qupath.ext.braian.ImageChannelTools
+import qupath.ext.braian.IllegalChannelName
 import qupath.ext.braian.ChannelDetections
 import qupath.ext.braian.config.ProjectsConfig
+import qupath.ext.braian.config.ThresholdNotFoundException
 
 import static qupath.lib.scripting.QP.*
 
@@ -36,23 +39,36 @@ var config = ProjectsConfig.read("BraiAn.yml")
 var annotations = config.getAnnotationsForDetections(hierarchy)
 
 // COMPUTE CHANNEL DETECTIONS
-var allDetections = config.channelDetections.collect { detectionsConf ->
-    var channel = new ImageChannelTools(detectionsConf.name, imageData)
+// the parameters of each channel are resolved first, so that a channel that can't be detected doesn't stop the others
+var channels = []
+var parameters = []
+config.channelDetections.each { detectionsConf ->
     try {
-        new ChannelDetections(channel, annotations, detectionsConf.parameters, hierarchy)
-    } catch (IllegalArgumentException ignored) {
-        null
+        var channel = new ImageChannelTools(detectionsConf.name, imageData)
+        parameters.add(detectionsConf.parameters.resolve(channel))
+        channels.add(channel)
+    } catch (IllegalChannelName | ThresholdNotFoundException e) {
+        println "WARNING: skipping the detections of '"+detectionsConf.name+"'. "+e.getMessage()
     }
-}.findAll { it != null }
+}
+// all channels are computed together, reading each image tile once for all of them
+var allDetections = []
+if (!channels.isEmpty() && (annotations == null || !annotations.isEmpty()))
+    allDetections = ChannelDetections.compute(channels, parameters, annotations, hierarchy)
 
 // RETRIEVE PRE-COMPUTED CHANNEL DETECTIONS
 // var allDetections = config.channelDetections.collect { detectionsConf -> new ChannelDetections(detectionsConf.name, hierarchy) }
+// allDetections.each { it.useSavedIndex(getProjectEntry()) } // if saved by a previous run
 
 if (allDetections.isEmpty()) {
     println getCurrentImageName()+" : DONE! No annotations found to compute on"
     return
 }
 
+// the spatial index chosen in the config file, if any, is used only by the detections of this image
+if (config.spatialIndex != null)
+    allDetections.each { it.setSpatialIndex(config.spatialIndex) }
+
 // CLASSIFY CHANNEL DETECTIONS
 allDetections.forEach { detections ->
     var detectionsConfig = config.channelDetections.find { detectionsConf -> detectionsConf.name == detections.getId() }
@@ -69,15 +85,18 @@ if ((control = config.getControlChannel()).isPresent() ) {
     var controlChannel = allDetections.find { it.getId() == controlChannelName }
     var otherChannels = allDetections.findAll { it.getId() != controlChannelName }
     // COMPUTE OVERLAPS
-    overlaps = [new OverlappingDetections(controlChannel, otherChannels, true, hierarchy)]
+    overlaps = [new OverlappingDetections(controlChannel, otherChannels, config.getOverlapsMode(), config.getRasterOverlaps().orElse(null) as RasterOverlaps, hierarchy)]
     // RETRIEVE PRE-COMPUTED OVERLAPS
-    // overlaps = [new OverlappingDetections(controlChannel, otherChannels, false, hierarchy)]
+    // overlaps = [new OverlappingDetections(controlChannel, otherChannels, hierarchy)]
+    if (config.spatialIndex != null)
+        overlaps.each { it.setSpatialIndex(config.spatialIndex) }
 }
 
 // EXPORT RESULTS
 var atlasName = "allen_mouse_10um_java"
 if (AtlasManager.isImported(atlasName, hierarchy)) {
     var atlas = new AtlasManager(atlasName, hierarchy)
+    // atlas.useSavedIndex(getProjectEntry()) // if saved by a previous run
     atlas.fixExclusions() // just in case
 
     INVALID_CHARS_WIN = ['<', '>' ,':', '"', '/', '\\', '|', '?', '*'] as Set<Character>
@@ -90,6 +109,10 @@ if (AtlasManager.isImported(atlasName, hierarchy)) {
 
     def exclusionsFile = new File(buildPathInProject("regions_to_exclude", imageName + "_regions_to_exclude.txt"))
     atlas.saveExcludedRegions(exclusionsFile)
+
+    // SAVE THE SPATIAL INDEXES, so that the next runs on the same objects don't build them again
+    // allDetections.each { it.saveIndex(getProjectEntry()) }
+    // atlas.saveIndex(getProjectEntry())
 }
 
 println getCurrentImageName()+" : DONE!"
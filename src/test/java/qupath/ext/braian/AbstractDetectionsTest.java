@@ -0,0 +1,250 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.*;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the changes to the hierarchy, applied incrementally by {@link AbstractDetections#fireUpdate()},
+ * give the same state as searching the whole hierarchy again
+ */
+class AbstractDetectionsTest {
+    private static final String CHANNEL = "AF568";
+    private static final PathClass CLASSIFICATION = ChannelDetections.createClassification(CHANNEL);
+    private static final PathClass OTHER = PathClass.fromString("Other");
+
+    private final PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+    private final PathObject region = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 2000, 2000, ImagePlane.getDefaultPlane()));
+    private final List<PathObject> allCells = new ArrayList<>();
+
+    private PathObject createAnnotation(String name, double x, double y) {
+        PathObject annotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, 100, 100, ImagePlane.getDefaultPlane()), CLASSIFICATION);
+        annotation.setName(name);
+        return annotation;
+    }
+
+    private PathObject createContainer(double x, double y) {
+        return this.createAnnotation(CHANNEL+" cells", x, y);
+    }
+
+    /**
+     * @return <code>n</code> detections, not overlapping each other, inside the 100x100 square starting at (x, y)
+     */
+    private List<PathObject> createCells(int n, double x, double y, PathClass classification) {
+        List<PathObject> cells = IntStream.range(0, n)
+                .mapToObj(i -> PathObjects.createDetectionObject(
+                        ROIs.createRectangleROI(x+1+10*(i%9), y+1+10*(i/9), 5, 5, ImagePlane.getDefaultPlane()), classification))
+                .toList();
+        this.allCells.addAll(cells);
+        return cells;
+    }
+
+    private PathObject addContainer(PathObject parent, double x, double y, int nCells) {
+        PathObject container = this.createContainer(x, y);
+        this.hierarchy.addObjectBelowParent(parent, container, false);
+        for (PathObject cell: this.createCells(nCells, x, y, CLASSIFICATION))
+            this.hierarchy.addObjectBelowParent(container, cell, false);
+        for (PathObject cell: this.createCells(3, x+50, y+50, OTHER))
+            this.hierarchy.addObjectBelowParent(container, cell, false);
+        return container;
+    }
+
+    /**
+     * @return detections whose index was already built, so that it is updated incrementally too
+     */
+    private ChannelDetections createDetections() throws NoCellContainersFoundException {
+        this.hierarchy.addObject(this.region);
+        ChannelDetections detections = new ChannelDetections(CHANNEL, this.hierarchy);
+        detections.getOverlappingObjects(List.of());
+        return detections;
+    }
+
+    private void assertSameAsNew(AbstractDetections detections) throws NoCellContainersFoundException {
+        detections.fireUpdate();
+        AbstractDetections expected = new ChannelDetections(CHANNEL, this.hierarchy);
+        assertEquals(Set.copyOf(expected.getContainers()), Set.copyOf(detections.getContainers()));
+        for (PathAnnotationObject container: expected.getContainers())
+            assertEquals(expected.countDetections(container), detections.countDetections(container));
+        assertEquals(expected.toStream().collect(Collectors.toSet()), detections.toStream().collect(Collectors.toSet()));
+        // the cells are queried with themselves, so that each is found only by its own ROI
+        assertArrayEquals(expected.getOverlappingObjects(this.allCells), detections.getOverlappingObjects(this.allCells));
+    }
+
+    @Test
+    void addedAndRemovedContainers() throws NoCellContainersFoundException {
+        PathObject removed = this.addContainer(this.region, 0, 0, 20);
+        this.addContainer(this.region, 200, 0, 10);
+        ChannelDetections detections = this.createDetections();
+        assertEquals(2, detections.getContainers().size());
+
+        PathObject added = this.createContainer(400, 0);
+        added.addChildObjects(this.createCells(15, 400, 0, CLASSIFICATION));
+        this.hierarchy.addObjectBelowParent(this.region, added, true);
+        this.hierarchy.removeObject(removed, false);
+
+        this.assertSameAsNew(detections);
+        assertEquals(15, detections.countDetections((PathAnnotationObject) added));
+        assertEquals(0, detections.countDetections((PathAnnotationObject) removed));
+    }
+
+    @Test
+    void addedRemovedAndReclassifiedDetections() throws NoCellContainersFoundException {
+        PathObject container = this.addContainer(this.region, 0, 0, 20);
+        ChannelDetections detections = this.createDetections();
+        List<PathDetectionObject> cells = detections.toStream().toList();
+
+        PathObject added = this.createCells(1, 0, 90, CLASSIFICATION).getFirst();
+        this.hierarchy.addObjectBelowParent(container, added, true);
+        this.hierarchy.removeObject(cells.get(0), false);
+        cells.get(1).setPathClass(detections.getDiscardedDetectionsPathClass());
+        PathObject other = container.getChildObjects().stream()
+                .filter(cell -> cell.getPathClass() == OTHER)
+                .findFirst().orElseThrow();
+        other.setPathClass(CLASSIFICATION);
+        this.hierarchy.fireObjectClassificationsChangedEvent(this, List.of(cells.get(1), other));
+
+        this.assertSameAsNew(detections);
+        assertEquals(20, detections.countDetections((PathAnnotationObject) container));
+    }
+
+    @Test
+    void reparentedDetections() throws NoCellContainersFoundException {
+        PathObject from = this.addContainer(this.region, 0, 0, 20);
+        PathObject to = this.addContainer(this.region, 200, 0, 10);
+        ChannelDetections detections = this.createDetections();
+        List<PathObject> moved = from.getChildObjects().stream()
+                .filter(cell -> cell.getPathClass() == CLASSIFICATION)
+                .limit(5)
+                .toList();
+
+        // the cells are moved silently, and the change is notified on their common ancestor
+        to.addChildObjects(moved);
+        this.hierarchy.fireHierarchyChangedEvent(this, this.region);
+        this.assertSameAsNew(detections);
+        assertEquals(15, detections.countDetections((PathAnnotationObject) from));
+        assertEquals(15, detections.countDetections((PathAnnotationObject) to));
+
+        // the cells are removed silently, and the change is notified on their container
+        to.removeChildObjects(moved);
+        this.hierarchy.fireHierarchyChangedEvent(this, to);
+        this.assertSameAsNew(detections);
+        assertEquals(10, detections.countDetections((PathAnnotationObject) to));
+    }
+
+    @Test
+    void changedSubtrees() throws NoCellContainersFoundException {
+        PathObject group = this.createAnnotation("Group", 0, 0);
+        this.hierarchy.addObjectBelowParent(this.region, group, false);
+        PathObject removed = this.addContainer(group, 0, 0, 20);
+        PathObject kept = this.addContainer(this.region, 200, 0, 10);
+        ChannelDetections detections = this.createDetections();
+
+        // a container is replaced by another, deep in the hierarchy, without any event
+        group.removeChildObject(removed);
+        PathObject subgroup = this.createAnnotation("Subgroup", 400, 0);
+        group.addChildObject(subgroup);
+        PathObject added = this.createContainer(400, 0);
+        added.addChildObjects(this.createCells(15, 400, 0, CLASSIFICATION));
+        subgroup.addChildObject(added);
+        this.hierarchy.fireHierarchyChangedEvent(this, group);
+
+        this.assertSameAsNew(detections);
+        assertEquals(Set.of(kept, added), Set.copyOf(detections.getContainers()));
+    }
+
+    @Test
+    void removedParentOfContainers() throws NoCellContainersFoundException {
+        PathObject group = this.createAnnotation("Group", 0, 0);
+        this.hierarchy.addObjectBelowParent(this.region, group, false);
+        this.addContainer(group, 0, 0, 20);
+        this.addContainer(group, 200, 0, 10);
+        this.addContainer(this.region, 400, 0, 5);
+        ChannelDetections detections = this.createDetections();
+
+        this.hierarchy.removeObject(group, false);
+
+        this.assertSameAsNew(detections);
+        assertEquals(1, detections.getContainers().size());
+    }
+
+    @Test
+    void renamedAnnotations() throws NoCellContainersFoundException {
+        PathObject renamed = this.addContainer(this.region, 0, 0, 20);
+        this.addContainer(this.region, 200, 0, 10);
+        PathObject annotation = this.createAnnotation("Not yet a container", 400, 0);
+        this.hierarchy.addObjectBelowParent(this.region, annotation, false);
+        for (PathObject cell: this.createCells(15, 400, 0, CLASSIFICATION))
+            this.hierarchy.addObjectBelowParent(annotation, cell, false);
+        ChannelDetections detections = this.createDetections();
+
+        renamed.setName("Not a container anymore");
+        annotation.setName(detections.getContainersName());
+        this.hierarchy.fireObjectsChangedEvent(this, List.of(renamed, annotation));
+
+        this.assertSameAsNew(detections);
+        assertEquals(0, detections.countDetections((PathAnnotationObject) renamed));
+        assertEquals(15, detections.countDetections((PathAnnotationObject) annotation));
+    }
+
+    @Test
+    void changedRoot() throws NoCellContainersFoundException {
+        this.addContainer(this.region, 0, 0, 20);
+        PathObject container = this.addContainer(this.region, 200, 0, 10);
+        ChannelDetections detections = this.createDetections();
+
+        this.region.removeChildObject(container);
+        this.hierarchy.getRootObject().addChildObject(this.createContainer(400, 0));
+        this.hierarchy.fireHierarchyChangedEvent(this);
+
+        this.assertSameAsNew(detections);
+    }
+
+    @Test
+    void tooManyChanges() throws NoCellContainersFoundException {
+        PathObject container = this.addContainer(this.region, 0, 0, 20);
+        ChannelDetections detections = this.createDetections();
+        List<PathDetectionObject> cells = detections.toStream().toList();
+
+        for (int i = 0; i <= HierarchyChanges.MAX_EVENTS; i++) {
+            PathObject cell = cells.get(i % cells.size());
+            cell.setPathClass(cell.getPathClass() == CLASSIFICATION ? detections.getDiscardedDetectionsPathClass() : CLASSIFICATION);
+            this.hierarchy.fireObjectClassificationsChangedEvent(this, List.of(cell));
+        }
+        this.hierarchy.removeObject(cells.getLast(), false);
+
+        this.assertSameAsNew(detections);
+        assertEquals(detections.toStream().count(), detections.countDetections((PathAnnotationObject) container));
+    }
+
+    @Test
+    void detectionsInHierarchyOrder() throws NoCellContainersFoundException {
+        PathObject first = this.addContainer(this.region, 0, 0, 60);
+        PathObject second = this.addContainer(this.region, 200, 0, 40);
+        ChannelDetections detections = this.createDetections();
+
+        PathObject added = this.createCells(1, 200, 90, CLASSIFICATION).getFirst();
+        this.hierarchy.addObjectBelowParent(second, added, true);
+        detections.fireUpdate();
+
+        List<PathObject> expected = Stream.of(first, second)
+                .flatMap(container -> container.getChildObjects().stream())
+                .filter(cell -> cell.getPathClass() == CLASSIFICATION)
+                .toList();
+        assertEquals(expected, detections.toStream().toList());
+        assertEquals(added, detections.getDetections((PathAnnotationObject) second).stream().toList().getLast());
+    }
+}
@@ -0,0 +1,67 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.*;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks which {@link CellDetectionRunner}s share the tiles they read, and that the containers of multiple channels
+ * are matched before any detection starts
+ */
+class CellDetectionRunnerTest {
+    private static Map<String, Object> createParams(Object pixelSize, Object expansion, double threshold) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("requestedPixelSizeMicrons", pixelSize);
+        params.put("cellExpansionMicrons", expansion);
+        params.put("threshold", threshold);
+        return params;
+    }
+
+    private static List<PathAnnotationObject> createContainers(int n) {
+        List<PathAnnotationObject> containers = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            containers.add((PathAnnotationObject) PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(i*100, 0, 100, 100, ImagePlane.getDefaultPlane())));
+        return containers;
+    }
+
+    @Test
+    void sameTilingSharesTiles() {
+        List<Object> tiling = CellDetectionRunner.getTiling(createParams(0.5, 5.0, 100));
+        // the threshold does not change the regions requested
+        assertEquals(tiling, CellDetectionRunner.getTiling(createParams(0.5, 5.0, 300)));
+        // the numbers are compared by value, whatever their type
+        assertEquals(tiling, CellDetectionRunner.getTiling(createParams(0.5f, 5, 100)));
+        assertNotEquals(tiling, CellDetectionRunner.getTiling(createParams(1.0, 5.0, 100)));
+        assertNotEquals(tiling, CellDetectionRunner.getTiling(createParams(0.5, 0.0, 100)));
+    }
+
+    @Test
+    void invalidMaxConcurrent() {
+        assertThrows(IllegalArgumentException.class, () -> new CellDetectionRunner(null, createParams(0.5, 5.0, 100), 0));
+    }
+
+    @Test
+    void containersOfEachRunner() {
+        HierarchyBatch batch = new HierarchyBatch(new PathObjectHierarchy());
+        List<CellDetectionRunner> runners = List.of(
+                new CellDetectionRunner(null, createParams(0.5, 5.0, 100)),
+                new CellDetectionRunner(null, createParams(0.5, 5.0, 200)));
+        assertThrows(IllegalArgumentException.class,
+                () -> CellDetectionRunner.detectChannels(runners, List.of(createContainers(2)), batch));
+        assertThrows(IllegalArgumentException.class,
+                () -> CellDetectionRunner.detectChannels(runners, List.of(createContainers(2), createContainers(3)), batch));
+        CellDetectionRunner.detectChannels(List.of(), List.of(), batch);
+        assertTrue(batch.isEmpty());
+    }
+}
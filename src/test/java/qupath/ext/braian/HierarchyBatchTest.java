@@ -0,0 +1,73 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.*;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HierarchyBatchTest {
+    private static PathObject createAnnotation(double x, double y, double size) {
+        return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, size, size, ImagePlane.getDefaultPlane()));
+    }
+
+    private static List<PathObject> createDetections(int n, double x, double y) {
+        return IntStream.range(0, n)
+                .mapToObj(i -> PathObjects.createDetectionObject(ROIs.createRectangleROI(x+i, y, 1, 1, ImagePlane.getDefaultPlane())))
+                .toList();
+    }
+
+    @Test
+    void singleEventBelowCommonAncestor() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        PathObject region = createAnnotation(0, 0, 100);
+        PathObject left = createAnnotation(0, 0, 50);
+        PathObject right = createAnnotation(50, 0, 50);
+        hierarchy.addObject(region);
+        hierarchy.addObjectBelowParent(region, left, true);
+        hierarchy.addObjectBelowParent(region, right, true);
+        List<PathObject> leftDetections = createDetections(10, 10, 10);
+        leftDetections.forEach(detection -> hierarchy.addObjectBelowParent(left, detection, false));
+
+        List<PathObjectHierarchyEvent> events = new ArrayList<>();
+        hierarchy.addListener(events::add);
+        HierarchyBatch batch = new HierarchyBatch(hierarchy);
+        List<PathObject> rightDetections = createDetections(5, 60, 10);
+        batch.addAll(right, rightDetections);
+        batch.add(right, leftDetections.get(0));
+        batch.removeAll(leftDetections.subList(1, 3));
+        assertTrue(events.isEmpty());
+        assertEquals(10, left.getChildObjects().size());
+        batch.commit(this);
+
+        assertTrue(batch.isEmpty());
+        assertEquals(1, events.size());
+        assertEquals(PathObjectHierarchyEvent.HierarchyEventType.OTHER_STRUCTURE_CHANGE, events.getFirst().getEventType());
+        assertSame(this, events.getFirst().getSource());
+        assertSame(region, events.getFirst().getParentObject());
+        assertEquals(7, left.getChildObjects().size());
+        assertEquals(6, right.getChildObjects().size());
+        assertSame(right, leftDetections.get(0).getParent());
+        assertNull(leftDetections.get(1).getParent());
+        assertEquals(13, hierarchy.getDetectionObjects().size());
+    }
+
+    @Test
+    void emptyBatchFiresNothing() {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<PathObjectHierarchyEvent> events = new ArrayList<>();
+        hierarchy.addListener(events::add);
+        new HierarchyBatch(hierarchy).commit();
+        assertTrue(events.isEmpty());
+    }
+}
@@ -0,0 +1,238 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.objects.*;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the overlaps computed by {@link OverlappingDetections} are the same, whichever way they are saved
+ */
+class OverlappingDetectionsTest {
+    private static final ImagePlane PLANE = ImagePlane.getDefaultPlane();
+    private static final String CONTROL = "A";
+    private static final List<String> OTHERS = List.of("B", "C");
+    private static final int REGION_SIZE = 400;
+    // the regions are far enough from each other that the detections of one do not depend on those of the other
+    private static final int REGION_GAP = 100;
+
+    private record Channels(PathObjectHierarchy hierarchy, List<PathAnnotationObject> regions) {
+        AbstractDetections control() throws NoCellContainersFoundException {
+            return new ChannelDetections(CONTROL, this.hierarchy);
+        }
+
+        List<AbstractDetections> others() throws NoCellContainersFoundException {
+            List<AbstractDetections> others = new ArrayList<>();
+            for (String name: OTHERS)
+                others.add(new ChannelDetections(name, this.hierarchy));
+            return others;
+        }
+    }
+
+    private static void addContainer(PathObjectHierarchy hierarchy, PathObject region, String name,
+                                     Random random, int nCells, double cellSize) {
+        double x0 = region.getROI().getBoundsX(), y0 = region.getROI().getBoundsY();
+        PathObject container = PathObjects.createAnnotationObject(ROIs.createRectangleROI(x0, y0, REGION_SIZE, REGION_SIZE, PLANE));
+        container.setName(name+" cells");
+        hierarchy.addObjectBelowParent(region, container, false);
+        for (int i = 0; i < nCells; i++) {
+            double x = x0 + 10 + random.nextDouble()*(REGION_SIZE-20-cellSize);
+            double y = y0 + 10 + random.nextDouble()*(REGION_SIZE-20-cellSize);
+            hierarchy.addObjectBelowParent(container, PathObjects.createDetectionObject(
+                    ROIs.createRectangleROI(x, y, cellSize, cellSize, PLANE), ChannelDetections.createClassification(name)), false);
+        }
+    }
+
+    /**
+     * @return a hierarchy with two regions side by side, each with a container of detections for every channel.
+     * The same <code>seed</code> always gives the same hierarchy
+     */
+    private static Channels createChannels(long seed) {
+        Random random = new Random(seed);
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        List<PathAnnotationObject> regions = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            PathAnnotationObject region = (PathAnnotationObject) PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(r*(REGION_SIZE+REGION_GAP), 0, REGION_SIZE, REGION_SIZE, PLANE));
+            region.setName("Region "+r);
+            hierarchy.addObjectBelowParent(hierarchy.getRootObject(), region, false);
+            regions.add(region);
+            addContainer(hierarchy, region, CONTROL, random, 300, 8);
+            for (String other: OTHERS)
+                addContainer(hierarchy, region, other, random, 200, 6);
+        }
+        return new Channels(hierarchy, regions);
+    }
+
+    /**
+     * @return the region whose descendant is <code>o</code>
+     */
+    private static String getRegionName(PathObject o, Channels channels) {
+        for (PathObject parent = o.getParent(); parent != null; parent = parent.getParent())
+            if (channels.regions().contains(parent))
+                return parent.getName();
+        return null;
+    }
+
+    @Test
+    void referencesCountedAsCopies() throws NoCellContainersFoundException {
+        Channels copies = createChannels(211);
+        new OverlappingDetections(copies.control(), copies.others(), OverlappingDetections.Mode.COPIES, null, copies.hierarchy());
+        // for each "Num" column of an overlap, the number of copies in each region
+        Map<String, Map<String, Integer>> expected = new HashMap<>();
+        int nCopies = 0;
+        for (PathObject detection: copies.hierarchy().getDetectionObjects()) {
+            if (!detection.getPathClass().getName().contains(OverlappingDetections.OVERLAP_DELIMITER))
+                continue;
+            expected.computeIfAbsent("Num "+detection.getPathClass().getName(), col -> new HashMap<>())
+                    .merge(getRegionName(detection, copies), 1, Integer::sum);
+            nCopies++;
+        }
+        assertEquals(3, expected.size()); // A~B, A~C and A~B~C
+        assertTrue(expected.values().stream().allMatch(regionCounts -> regionCounts.size() == 2));
+
+        Channels references = createChannels(211);
+        AbstractDetections control = references.control();
+        List<AbstractDetections> others = references.others();
+        OverlappingDetections overlaps = new OverlappingDetections(control, others, OverlappingDetections.Mode.REFERENCES, null, references.hierarchy());
+        assertTrue(overlaps.isReferenceOnly());
+        assertEquals(0, overlaps.toStream().count());
+        // only the control detections overlapping with others have the measurement
+        assertEquals(nCopies, control.toStream()
+                .filter(cell -> cell.getMeasurements().containsKey(overlaps.getOverlapsMeasurementName()))
+                .count());
+
+        List<AbstractDetections> detections = new ArrayList<>(others);
+        detections.add(0, control);
+        detections.add(overlaps);
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        AtlasManager.getReferencedOverlapsCounts(detections).forEach((col, regionCounts) -> regionCounts.forEach((region, count) -> {
+            if (references.regions().contains(region))
+                counts.computeIfAbsent(col, c -> new HashMap<>()).put(region.getName(), count);
+        }));
+        assertEquals(expected, counts);
+
+        Map<String, Map<String, Integer>> visited = new HashMap<>();
+        overlaps.forEachOverlap((cell, classification) ->
+                visited.computeIfAbsent("Num "+classification.getName(), col -> new HashMap<>())
+                        .merge(getRegionName(cell, references), 1, Integer::sum));
+        assertEquals(expected, visited);
+    }
+
+    /**
+     * @return the copies of the control detections, in the order they have in their containers
+     */
+    private static List<PathObject> getCopies(OverlappingDetections overlaps, Channels channels) {
+        List<PathObject> copies = new ArrayList<>();
+        for (PathAnnotationObject region: channels.regions())
+            copies.addAll(overlaps.getDerivedContainer(region).orElseThrow().getChildObjects());
+        return copies;
+    }
+
+    @Test
+    void copiesInHierarchyOrder() throws NoCellContainersFoundException {
+        List<List<String>> runs = new ArrayList<>();
+        for (int run = 0; run < 2; run++) {
+            Channels channels = createChannels(223);
+            AbstractDetections control = channels.control();
+            OverlappingDetections overlaps = new OverlappingDetections(control, channels.others(), OverlappingDetections.Mode.COPIES, null, channels.hierarchy());
+            List<PathObject> copies = getCopies(overlaps, channels);
+            // the copies share the ROI of the detection they were copied from
+            Set<Object> copiedROIs = Collections.newSetFromMap(new IdentityHashMap<>());
+            copies.forEach(copy -> copiedROIs.add(copy.getROI()));
+            List<Object> expected = new ArrayList<>();
+            for (PathAnnotationObject container: control.getContainers())
+                for (PathObject cell: container.getChildObjects())
+                    if (copiedROIs.contains(cell.getROI()))
+                        expected.add(cell.getROI());
+            assertEquals(expected, copies.stream().map(PathObject::getROI).toList());
+            runs.add(copies.stream()
+                    .map(copy -> copy.getROI().getBoundsX()+","+copy.getROI().getBoundsY()+" "+copy.getPathClass())
+                    .toList());
+        }
+        assertFalse(runs.get(0).isEmpty());
+        assertEquals(runs.get(0), runs.get(1));
+    }
+
+    /**
+     * The copies and the metadata of the container of the overlaps in a region, right after they were computed.
+     * The containers are reused when the overlaps are computed again, so their state is copied
+     */
+    private record ComputedRegion(List<PathObject> copies, Map<String, String> metadata) {
+        static ComputedRegion of(PathAnnotationObject container) {
+            return new ComputedRegion(List.copyOf(container.getChildObjects()), Map.copyOf(container.getMetadata()));
+        }
+
+        /**
+         * @return true if none of the copies of <code>previous</code> was kept, and the overlaps were saved differently
+         */
+        boolean isRecomputedFrom(ComputedRegion previous) {
+            return !this.metadata.equals(previous.metadata) && Collections.disjoint(this.copies, previous.copies);
+        }
+    }
+
+    private static List<ComputedRegion> computeOverlaps(Channels channels, OverlappingDetections.Mode mode,
+                                                        RasterOverlaps raster) throws NoCellContainersFoundException {
+        OverlappingDetections overlaps = new OverlappingDetections(channels.control(), channels.others(), mode, raster, channels.hierarchy());
+        List<ComputedRegion> regions = new ArrayList<>();
+        for (PathAnnotationObject region: channels.regions())
+            regions.add(ComputedRegion.of(overlaps.getDerivedContainer(region).orElseThrow()));
+        return regions;
+    }
+
+    private static PathObject getContainer(PathObject region, String channel) {
+        return region.getChildObjects().stream()
+                .filter(o -> (channel+" cells").equals(o.getName()))
+                .findFirst().orElseThrow();
+    }
+
+    @Test
+    void unchangedContainersSkipped() throws NoCellContainersFoundException {
+        Channels channels = createChannels(227);
+        List<ComputedRegion> before = computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null);
+        assertTrue(before.stream().noneMatch(region -> region.copies().isEmpty()));
+        assertEquals(before, computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null));
+    }
+
+    @Test
+    void changedNeighboursRecomputed() throws NoCellContainersFoundException {
+        Channels channels = createChannels(229);
+        List<ComputedRegion> before = computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null);
+        // a detection of another channel is added only to the first region, on top of a control detection
+        PathObject region = channels.regions().get(0);
+        PathObject cell = getContainer(region, CONTROL).getChildObjects().iterator().next();
+        channels.hierarchy().addObjectBelowParent(getContainer(region, OTHERS.get(0)), PathObjects.createDetectionObject(
+                ROIs.createRectangleROI(cell.getROI().getBoundsX()+1, cell.getROI().getBoundsY()+1, 2, 2, PLANE),
+                ChannelDetections.createClassification(OTHERS.get(0))), false);
+        List<ComputedRegion> after = computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null);
+        assertTrue(after.get(0).isRecomputedFrom(before.get(0)));
+        assertTrue(after.get(0).copies().stream().anyMatch(copy -> copy.getROI() == cell.getROI()));
+        assertEquals(before.get(1), after.get(1));
+    }
+
+    @Test
+    void changedEngineRecomputed() throws NoCellContainersFoundException {
+        Channels channels = createChannels(233);
+        List<ComputedRegion> previous = computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null);
+        List<List<ComputedRegion>> runs = List.of(
+                computeOverlaps(channels, OverlappingDetections.Mode.REFERENCES, null),
+                computeOverlaps(channels, OverlappingDetections.Mode.COPIES, null),
+                computeOverlaps(channels, OverlappingDetections.Mode.COPIES, new RasterOverlaps(1)),
+                computeOverlaps(channels, OverlappingDetections.Mode.REFERENCES, new RasterOverlaps(1)),
+                computeOverlaps(channels, OverlappingDetections.Mode.REFERENCES, new RasterOverlaps(2)));
+        for (List<ComputedRegion> regions: runs) {
+            for (int r = 0; r < regions.size(); r++)
+                assertTrue(regions.get(r).isRecomputedFrom(previous.get(r)));
+            previous = regions;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import qupath.lib.objects.*;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.*;
+import qupath.lib.roi.interfaces.ROI;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class PackedBoundingBoxHierarchyTest {
+    private static PathObject createObject(double x, double y, double w, double h) {
+        ROI roi = ROIs.createRectangleROI(x, y, w, h, ImagePlane.getDefaultPlane());
+        return PathObjects.createDetectionObject(roi);
+    }
+
+    private static IntStream range(int start, int end, int step) {
+        return IntStream.range(0, (end-start)/step).map(x -> start+x*step);
+    }
+
+    private static Stream<PathObject> createObjectGrid(int width, int height, int size) {
+        Stream<Integer> xs = range(0,width,size).boxed();
+        return xs.flatMap(x -> range(0,height,size).mapToObj(y -> createObject(x,y,size,size)));
+    }
+
+    private static List<PathObject> createRandomObjects(int n, long seed) {
+        Random random = new Random(seed);
+        return IntStream.range(0, n)
+                .mapToObj(i -> createObject(random.nextDouble()*1000, random.nextDouble()*1000, 1+random.nextDouble()*20, 1+random.nextDouble()*20))
+                .toList();
+    }
+
+    @Test
+    void zeroDepth() {
+        List<PathObject> objects = List.of(mock(PathObject.class));
+        Throwable e = assertThrows(IllegalArgumentException.class,
+                () -> new PackedBoundingBoxHierarchy(objects, 0));
+        assertEquals("maxDepth must be >0. Instead got maxDepth=0", e.getMessage());
+    }
+
+    @Test
+    void emptyObjects() {
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(new ArrayList<>(), 6);
+        PathObject object = mock(PathObject.class);
+
+        assertTrue(bbh.isEmpty());
+        assertNull(bbh.getOverlappingObject(object));
+        assertTrue(bbh.toStream().toList().isEmpty());
+        assertTrue(bbh.getBox().isEmpty());
+        assertFalse(bbh.contains(object));
+        assertEquals(-1, bbh.getDepth());
+    }
+
+    @Test
+    void oneEmptyObject() {
+        ROI pointROI = ROIs.createPointsROI(1, 1, ImagePlane.getDefaultPlane());
+        PathObject empty = PathObjects.createAnnotationObject(pointROI);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(List.of(empty));
+
+        assertTrue(bbh.contains(empty));
+        assertEquals(1, bbh.getDepth());
+        assertEquals(empty, bbh.getOverlappingObject(createObject(0, 0, 2, 2)));
+        assertEquals(empty, bbh.getOverlappingObject(createObject(1, 1, 0, 0)));
+        assertNull(bbh.getOverlappingObject(createObject(-1, 0, 2, 2)));
+        assertNull(bbh.getOverlappingObject(createObject(0, -2, 2, 2)));
+    }
+
+    @Test
+    void twoNearNonOverlappingObjects() {
+        PathObject leftPO = createObject(-10, -10, 10, 10);
+        PathObject rightPO = createObject(0, -10, 10, 10);
+        Collection<PathObject> objects = List.of(leftPO, rightPO);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 10);
+
+        assertEquals(new Rectangle(-10, -10, 20, 10), bbh.getBox());
+        assertEquals(1, bbh.getDepth());
+        assertEquals(new HashSet<>(objects), bbh.toStream().collect(Collectors.toSet()));
+        assertNull(bbh.getOverlappingObject(createObject(-2, -4, 4, 2)));
+        assertEquals(leftPO, bbh.getOverlappingObject(createObject(-5.5, -10, 10.9, 10)));
+        assertTrue(objects.contains(bbh.getOverlappingObject(createObject(-10, -10, 20, 20))));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 4, 5, 6, 7, 8})
+    void squareObjectGrid(int depth) {
+        int n = (int) Math.pow(2, depth);
+        int size = 1;
+        Collection<PathObject> objects = createObjectGrid(n, n, size).toList();
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 10);
+
+        assertTrue(objects.stream().allMatch(bbh::contains));
+        assertEquals(depth, bbh.getDepth());
+        assertEquals(objects.size(), bbh.size());
+        assertEquals(new Rectangle(0, 0, n*size, n*size), bbh.getBox());
+        assertEquals(new HashSet<>(objects), bbh.toStream().collect(Collectors.toSet()));
+        ROI bottomLeftCorner = bbh.getOverlappingObject(createObject(0,0, size, size)).getROI();
+        assertEquals(bottomLeftCorner.getCentroidX(), (double) size /2);
+        assertEquals(bottomLeftCorner.getCentroidY(), (double) size /2);
+    }
+
+    @Test
+    void aboveMaxDepth() {
+        int maxDepth = 6;
+        int n = (int) Math.pow(2, 10);
+        Collection<PathObject> objects = createObjectGrid(n, 1, 1).toList();
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, maxDepth);
+
+        assertEquals(maxDepth, bbh.getDepth());
+        assertEquals(new HashSet<>(objects), bbh.toStream().collect(Collectors.toSet()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 6, 10})
+    void sameAsBoundingBoxHierarchy(int maxDepth) {
+        List<PathObject> objects = createRandomObjects(2_000, 42);
+        BoundingBoxHierarchy bbh = new BoundingBoxHierarchy(objects, maxDepth);
+        PackedBoundingBoxHierarchy packed = new PackedBoundingBoxHierarchy(objects, maxDepth);
+
+        assertEquals(bbh.getDepth(), packed.getDepth());
+        assertEquals(bbh.getBox(), packed.getBox());
+        assertEquals(bbh.toStream().toList(), packed.toStream().toList());
+        for (PathObject query: createRandomObjects(500, 7)) {
+            assertEquals(bbh.getOverlappingObject(query), packed.getOverlappingObject(query));
+            assertEquals(bbh.contains(query), packed.contains(query));
+        }
+        assertTrue(objects.stream().allMatch(packed::contains));
+    }
+
+    @Test
+    void zeroLeafSize() {
+        List<PathObject> objects = List.of(mock(PathObject.class));
+        Throwable e = assertThrows(IllegalArgumentException.class,
+                () -> new PackedBoundingBoxHierarchy(objects, 6, 0));
+        assertEquals("leafSize must be >0. Instead got leafSize=0", e.getMessage());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4, 8, 64})
+    void adaptiveLeafSize(int leafSize) {
+        List<PathObject> objects = createRandomObjects(5_000, 1);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, leafSize);
+        PackedBoundingBoxHierarchy fixedDepth = new PackedBoundingBoxHierarchy(objects, 32);
+
+        assertEquals(new HashSet<>(objects), bbh.toStream().collect(Collectors.toSet()));
+        assertTrue(bbh.getDepth() <= fixedDepth.getDepth());
+        assertTrue(objects.stream().allMatch(bbh::contains));
+        for (PathObject query: createRandomObjects(500, 3)) {
+            PathObject expected = fixedDepth.getOverlappingObject(query);
+            PathObject overlap = bbh.getOverlappingObject(query);
+            if (expected == null)
+                assertNull(overlap);
+            else
+                assertTrue(query.getROI().contains(overlap.getROI().getCentroidX(), overlap.getROI().getCentroidY()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 8})
+    void parallelSameAsSerial(int leafSize) {
+        List<PathObject> objects = createRandomObjects(50_000, 5);
+        PackedBoundingBoxHierarchy serial = new PackedBoundingBoxHierarchy(objects, 32, leafSize, Integer.MAX_VALUE);
+        PackedBoundingBoxHierarchy parallel = new PackedBoundingBoxHierarchy(objects, 32, leafSize, 1_000);
+
+        assertEquals(serial.getDepth(), parallel.getDepth());
+        assertEquals(serial.getNodesCount(), parallel.getNodesCount());
+        for (int node = 0; node < serial.getNodesCount(); node++) {
+            assertEquals(serial.getNodeBox(node), parallel.getNodeBox(node));
+            assertEquals(serial.getChildrenCount(node), parallel.getChildrenCount(node));
+            if (serial.getChildrenCount(node) > 0)
+                assertEquals(serial.getFirstChild(node), parallel.getFirstChild(node));
+            assertEquals(serial.getFirstObject(node), parallel.getFirstObject(node));
+            assertEquals(serial.getObjectsCount(node), parallel.getObjectsCount(node));
+        }
+        assertEquals(serial.toStream().toList(), parallel.toStream().toList());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 8, 64})
+    void batchSameAsSingleQueries(int leafSize) {
+        List<PathObject> objects = createRandomObjects(20_000, 13);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, leafSize);
+        List<PathObject> queries = new ArrayList<>(createRandomObjects(5_000, 17));
+        queries.addAll(objects.subList(0, 1_000));
+        queries.add(createObject(500, 500, 0, 0));
+
+        PathObject[] overlaps = bbh.getOverlappingObjects(queries);
+        boolean[] contained = bbh.contains(queries);
+        assertEquals(queries.size(), overlaps.length);
+        assertEquals(queries.size(), contained.length);
+        for (int i = 0; i < queries.size(); i++) {
+            assertSame(bbh.getOverlappingObject(queries.get(i)), overlaps[i]);
+            assertEquals(bbh.contains(queries.get(i)), contained[i]);
+        }
+        assertEquals(queries.size(), new PackedBoundingBoxHierarchy(List.of(), 6).getOverlappingObjects(queries).length);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 8})
+    void insertAndRemove(int leafSize) {
+        List<PathObject> objects = createRandomObjects(6_000, 19);
+        Set<PathObject> current = new HashSet<>(objects.subList(0, 2_000));
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(current, 32, leafSize);
+        Random random = new Random(23);
+        for (int i = 0; i < 5_000; i++) {
+            PathObject object = objects.get(random.nextInt(objects.size()));
+            if (current.remove(object))
+                assertTrue(bbh.remove(object));
+            else {
+                assertTrue(bbh.insert(object));
+                current.add(object);
+            }
+        }
+        PackedBoundingBoxHierarchy rebuilt = new PackedBoundingBoxHierarchy(current, 32, leafSize);
+
+        assertEquals(current.size(), bbh.size());
+        assertEquals(current, bbh.toStream().collect(Collectors.toSet()));
+        assertTrue(objects.stream().allMatch(object -> bbh.contains(object) == current.contains(object)));
+        assertFalse(bbh.insert(current.iterator().next()));
+        for (PathObject query: createRandomObjects(500, 29)) {
+            PathObject expected = rebuilt.getOverlappingObject(query);
+            PathObject overlap = bbh.getOverlappingObject(query);
+            if (expected == null)
+                assertNull(overlap);
+            else
+                assertTrue(query.getROI().contains(overlap.getROI().getCentroidX(), overlap.getROI().getCentroidY()));
+        }
+        bbh.rebalance();
+        assertEquals(rebuilt.getDepth(), bbh.getDepth());
+        assertEquals(rebuilt.getBox(), bbh.getBox());
+    }
+
+    @Test
+    void removeAll() {
+        List<PathObject> objects = createRandomObjects(100, 31);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, 8);
+
+        assertFalse(bbh.remove(createObject(0, 0, 1, 1)));
+        assertTrue(objects.stream().allMatch(bbh::remove));
+        assertTrue(bbh.isEmpty());
+        assertEquals(-1, bbh.getDepth());
+        assertTrue(bbh.getBox().isEmpty());
+        assertNull(bbh.getOverlappingObject(createObject(0, 0, 1000, 1000)));
+        assertTrue(bbh.insert(objects.getFirst()));
+        assertEquals(List.of(objects.getFirst()), bbh.toStream().toList());
+    }
+
+    private static double centroidDistance(PathObject object, double x, double y) {
+        return Math.hypot(object.getROI().getCentroidX()-x, object.getROI().getCentroidY()-y);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 8})
+    void nearestNeighbours(int leafSize) {
+        List<PathObject> objects = createRandomObjects(5_000, 37);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, leafSize);
+        PackedBoundingBoxHierarchy.Neighbours neighbours = new PackedBoundingBoxHierarchy.Neighbours();
+        Random random = new Random(41);
+        for (int i = 0; i < 200; i++) {
+            double x = random.nextDouble()*1200-100, y = random.nextDouble()*1200-100;
+            int k = 1+random.nextInt(10);
+            double[] expected = objects.stream().mapToDouble(o -> centroidDistance(o, x, y)).sorted().limit(k).toArray();
+            bbh.nearest(x, y, k, neighbours);
+            assertEquals(k, neighbours.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(expected[j], neighbours.getDistance(j));
+                assertEquals(expected[j], centroidDistance(neighbours.getObject(j), x, y));
+            }
+
+            double radius = random.nextDouble()*50;
+            Set<PathObject> inside = objects.stream().filter(o -> centroidDistance(o, x, y) <= radius).collect(Collectors.toSet());
+            bbh.withinRadius(x, y, radius, neighbours);
+            assertEquals(inside.size(), neighbours.size());
+            assertEquals(inside, IntStream.range(0, neighbours.size()).mapToObj(neighbours::getObject).collect(Collectors.toSet()));
+        }
+        assertEquals(0, new PackedBoundingBoxHierarchy(List.of()).nearest(0, 0, 1).size());
+        assertThrows(IllegalArgumentException.class, () -> bbh.nearest(0, 0, 0));
+    }
+
+    @Test
+    void nearestNeighbourDistances() {
+        List<PathObject> objects = createRandomObjects(1_000, 43);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, 8);
+        double[] distances = bbh.nearestNeighbourDistances();
+        List<PathObject> order = bbh.toStream().toList();
+
+        assertEquals(objects.size(), distances.length);
+        for (int i = 0; i < order.size(); i++) {
+            PathObject object = order.get(i);
+            double expected = objects.stream()
+                    .filter(other -> other != object)
+                    .mapToDouble(other -> centroidDistance(other, object.getROI().getCentroidX(), object.getROI().getCentroidY()))
+                    .min().orElseThrow();
+            assertEquals(expected, distances[i]);
+        }
+        assertTrue(Double.isNaN(new PackedBoundingBoxHierarchy(objects.subList(0, 1)).nearestNeighbourDistances()[0]));
+    }
+
+    @Test
+    void visitOverlaps() {
+        List<PathObject> objects = createRandomObjects(5_000, 47);
+        PackedBoundingBoxHierarchy packed = new PackedBoundingBoxHierarchy(objects, 32, 8);
+        BoundingBoxHierarchy bbh = new BoundingBoxHierarchy(objects, 10);
+        OverlapQuery query = new OverlapQuery();
+        for (PathObject object: createRandomObjects(200, 53)) {
+            ROI roi = object.getROI();
+            Set<PathObject> expected = objects.stream()
+                    .filter(o -> roi.contains(o.getROI().getCentroidX(), o.getROI().getCentroidY()))
+                    .collect(Collectors.toSet());
+            for (BoundingBox box: List.of(packed, bbh)) {
+                Set<PathObject> visited = new HashSet<>();
+                assertTrue(box.visitOverlaps(query.set(object), (o, x, y) -> visited.add(o)));
+                assertEquals(expected, visited);
+                if (expected.size() > 1) {
+                    List<PathObject> first = new ArrayList<>();
+                    assertFalse(box.visitOverlaps(query, (o, x, y) -> !first.add(o)));
+                    assertEquals(1, first.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    void overlappingTags() {
+        List<PathObject> objects = createRandomObjects(20_000, 59);
+        Map<PathObject, Integer> tags = new IdentityHashMap<>();
+        for (int i = 0; i < objects.size(); i++)
+            tags.put(objects.get(i), 1 << (i % 5));
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, 8);
+        List<PathObject> queries = createRandomObjects(2_000, 61);
+
+        int[] found = bbh.getOverlappingTags(queries, tags::get, 0b11111);
+        for (int q = 0; q < queries.size(); q++) {
+            ROI roi = queries.get(q).getROI();
+            int expected = objects.stream()
+                    .filter(o -> roi.contains(o.getROI().getCentroidX(), o.getROI().getCentroidY()))
+                    .mapToInt(tags::get)
+                    .reduce(0, (t1, t2) -> t1 | t2);
+            assertEquals(expected, found[q]);
+        }
+    }
+
+    @Test
+    void visitInside() {
+        List<PathObject> objects = createRandomObjects(5_000, 59);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, 8);
+        for (PathObject object: createRandomObjects(200, 61)) {
+            ROI box = object.getROI();
+            Set<PathObject> expected = objects.stream()
+                    .filter(o -> {
+                        ROI roi = o.getROI();
+                        return roi.getBoundsX() >= box.getBoundsX() && roi.getBoundsY() >= box.getBoundsY()
+                                && roi.getBoundsX()+roi.getBoundsWidth() <= box.getBoundsX()+box.getBoundsWidth()
+                                && roi.getBoundsY()+roi.getBoundsHeight() <= box.getBoundsY()+box.getBoundsHeight();
+                    })
+                    .collect(Collectors.toSet());
+            Set<PathObject> visited = new HashSet<>();
+            assertTrue(bbh.visitInside(box.getBoundsX(), box.getBoundsY(), box.getBoundsWidth(), box.getBoundsHeight(), (o, x, y) -> visited.add(o)));
+            assertEquals(expected, visited);
+        }
+    }
+
+    @Test
+    void writeAndRead(@TempDir Path dir) throws IOException {
+        List<PathObject> objects = createRandomObjects(5_000, 67);
+        Path file = dir.resolve("index.bbh");
+        PackedBoundingBoxHierarchy built = SpatialIndexCache.loadOrBuild(file, objects, 32, 8);
+        assertFalse(Files.exists(file)); // only saved when asked
+        assertTrue(SpatialIndexCache.save(file, built));
+        assertTrue(Files.isRegularFile(file));
+
+        List<PathObject> shuffled = new ArrayList<>(objects);
+        Collections.shuffle(shuffled, new Random(71));
+        SpatialIndexCache.Fingerprint fingerprint = SpatialIndexCache.Fingerprint.of(shuffled);
+        assertEquals(SpatialIndexCache.Fingerprint.of(objects), fingerprint);
+        PackedBoundingBoxHierarchy read = PackedBoundingBoxHierarchy.read(file, fingerprint, shuffled, 32, 8);
+        assertNotNull(read);
+        assertEquals(built.toStream().toList(), read.toStream().toList());
+        assertEquals(built.getBox(), read.getBox());
+        assertEquals(built.getDepth(), read.getDepth());
+        List<PathObject> queries = createRandomObjects(500, 73);
+        assertArrayEquals(built.getOverlappingObjects(queries), read.getOverlappingObjects(queries));
+
+        // a different leaf size or different objects do not match
+        assertNull(PackedBoundingBoxHierarchy.read(file, fingerprint, shuffled, 32, 4));
+        List<PathObject> fewer = objects.subList(1, objects.size());
+        assertNull(PackedBoundingBoxHierarchy.read(file, SpatialIndexCache.Fingerprint.of(fewer), fewer, 32, 8));
+        PackedBoundingBoxHierarchy rebuilt = SpatialIndexCache.loadOrBuild(file, fewer, 32, 8);
+        assertEquals(fewer.size(), rebuilt.size());
+        assertNull(PackedBoundingBoxHierarchy.read(file, SpatialIndexCache.Fingerprint.of(fewer), fewer, 32, 8));
+        assertTrue(SpatialIndexCache.save(file, rebuilt));
+        assertNotNull(PackedBoundingBoxHierarchy.read(file, SpatialIndexCache.Fingerprint.of(fewer), fewer, 32, 8));
+    }
+
+    @Test
+    void writeAfterChanges(@TempDir Path dir) throws IOException {
+        List<PathObject> objects = createRandomObjects(4_300, 79);
+        // too few changes for the hierarchy to be rebalanced, so that the removed and inserted objects leave empty slots
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects.subList(0, 4_000), 32, 8);
+        for (PathObject object: objects.subList(4_000, objects.size()))
+            bbh.insert(object);
+        for (PathObject object: objects.subList(0, 300))
+            bbh.remove(object);
+        List<PathObject> before = bbh.toStream().toList();
+        Path file = dir.resolve("index.bbh");
+        assertTrue(SpatialIndexCache.save(file, bbh));
+        // the hierarchy is written compacted, without being rebalanced
+        assertEquals(before, bbh.toStream().toList());
+
+        List<PathObject> remaining = objects.subList(300, objects.size());
+        PackedBoundingBoxHierarchy read = PackedBoundingBoxHierarchy.read(file, SpatialIndexCache.Fingerprint.of(remaining), remaining, 32, 8);
+        assertNotNull(read);
+        assertEquals(before, read.toStream().toList());
+        assertEquals(bbh.getBox(), read.getBox());
+        List<PathObject> queries = createRandomObjects(500, 83);
+        assertArrayEquals(bbh.getOverlappingObjects(queries), read.getOverlappingObjects(queries));
+        assertArrayEquals(bbh.getOverlappingObjects(remaining), read.getOverlappingObjects(remaining));
+    }
+}
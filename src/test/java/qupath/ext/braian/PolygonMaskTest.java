@@ -0,0 +1,57 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolygonMaskTest {
+    private static ROI createStar(int nVertices, long seed) {
+        Random random = new Random(seed);
+        double[] xs = new double[nVertices];
+        double[] ys = new double[nVertices];
+        for (int i = 0; i < nVertices; i++) {
+            double angle = 2*Math.PI*i/nVertices;
+            double radius = 20+random.nextDouble()*30;
+            xs[i] = Math.round(50+radius*Math.cos(angle));
+            ys[i] = Math.round(50+radius*Math.sin(angle));
+        }
+        return ROIs.createPolygonROI(xs, ys, ImagePlane.getDefaultPlane());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {32, 100, 500})
+    void sameAsROIContains(int nVertices) {
+        ROI star = createStar(nVertices, nVertices);
+        PolygonMask mask = new PolygonMask().reset(star);
+        Random random = new Random(1);
+        for (int i = 0; i < 20_000; i++) {
+            // integer coordinates often lay exactly on the vertices or on the edges
+            double x = i % 2 == 0 ? random.nextInt(110)-5 : random.nextDouble()*110-5;
+            double y = i % 2 == 0 ? random.nextInt(110)-5 : random.nextDouble()*110-5;
+            assertEquals(star.contains(x, y), mask.contains(x, y), "("+x+", "+y+")");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {32, 100})
+    void reusedMask(int nVertices) {
+        PolygonMask mask = new PolygonMask();
+        for (long seed = 0; seed < 5; seed++) {
+            ROI star = createStar(nVertices, seed);
+            mask.reset(star);
+            for (int x = 0; x < 100; x++)
+                for (int y = 0; y < 100; y++)
+                    assertEquals(star.contains(x, y), mask.contains(x, y));
+        }
+    }
+}
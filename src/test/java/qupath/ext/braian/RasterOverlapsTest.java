@@ -0,0 +1,139 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import qupath.lib.objects.*;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryROI;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the label map of {@link RasterOverlaps} with the geometric test of {@link MultiChannelIndex}.
+ * At downsample 1, and with the centroids of the other detections at the centre of the pixels, the two must be identical
+ */
+class RasterOverlapsTest {
+    private static final ImagePlane PLANE = ImagePlane.getDefaultPlane();
+
+    /**
+     * @return the coordinates of a closed, star-shaped and possibly concave ring, whose vertices are between
+     * <code>minRadius</code> and <code>maxRadius</code> away from (cx, cy)
+     */
+    private static Coordinate[] createRing(Random random, double cx, double cy, double minRadius, double maxRadius) {
+        int n = 3 + random.nextInt(10);
+        Coordinate[] ring = new Coordinate[n+1];
+        for (int i = 0; i < n; i++) {
+            double angle = 2*Math.PI * (i + .8*random.nextDouble()) / n;
+            double radius = minRadius + (maxRadius-minRadius) * random.nextDouble();
+            ring[i] = new Coordinate(cx + radius*Math.cos(angle), cy + radius*Math.sin(angle));
+        }
+        ring[n] = ring[0];
+        return ring;
+    }
+
+    private static PathObject createPolygonCell(Random random, double cx, double cy, double radius) {
+        Coordinate[] ring = createRing(random, cx, cy, .3*radius, radius);
+        double[] xs = new double[ring.length-1], ys = new double[ring.length-1];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = ring[i].x;
+            ys[i] = ring[i].y;
+        }
+        return PathObjects.createDetectionObject(ROIs.createPolygonROI(xs, ys, PLANE));
+    }
+
+    /**
+     * @return a cell made of two polygons, each with a hole
+     */
+    private static PathObject createMultiPolygonCell(Random random, double cx, double cy, double radius) {
+        GeometryFactory factory = GeometryTools.getDefaultFactory();
+        Polygon[] polygons = new Polygon[2];
+        for (int i = 0; i < polygons.length; i++) {
+            double x = cx + (2*i-1) * 1.1*radius;
+            LinearRing shell = factory.createLinearRing(createRing(random, x, cy, .6*radius, radius));
+            LinearRing hole = factory.createLinearRing(createRing(random, x, cy, .1*radius, .5*radius));
+            polygons[i] = factory.createPolygon(shell, new LinearRing[] {hole});
+        }
+        ROI roi = GeometryTools.geometryToROI(factory.createMultiPolygon(polygons), PLANE);
+        assertInstanceOf(GeometryROI.class, roi);
+        return PathObjects.createDetectionObject(roi);
+    }
+
+    /**
+     * @return the detections of a channel, one every <code>step</code> pixels of a square image, centred on the pixels
+     */
+    private static AbstractDetections createChannel(PathObjectHierarchy hierarchy, String name, int size, int step, int offset)
+            throws NoCellContainersFoundException {
+        PathObject container = PathObjects.createAnnotationObject(ROIs.createRectangleROI(-1, -1, size+2, size+2, PLANE));
+        container.setName(name+" cells");
+        hierarchy.addObjectBelowParent(hierarchy.getRootObject(), container, false);
+        for (int y = offset; y < size; y += step)
+            for (int x = offset; x < size; x += step)
+                hierarchy.addObjectBelowParent(container, PathObjects.createDetectionObject(
+                        ROIs.createRectangleROI(x, y, 1, 1, PLANE), ChannelDetections.createClassification(name)), false);
+        return new ChannelDetections(name, hierarchy);
+    }
+
+    private static List<AbstractDetections> createChannels(int size) throws NoCellContainersFoundException {
+        PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+        return List.of(
+                createChannel(hierarchy, "A", size, 1, 0),
+                createChannel(hierarchy, "B", size, 3, 1),
+                createChannel(hierarchy, "C", size, 7, 2));
+    }
+
+    private static void assertSameAsGeometric(List<PathObject> cells, List<AbstractDetections> others, int tileSize) {
+        int[] expected = new MultiChannelIndex(others).getOverlappingMasks(cells);
+        int[] masks = new RasterOverlaps(1, tileSize).computeMasks(cells, others);
+        assertArrayEquals(expected, masks);
+        assertTrue(Arrays.stream(masks).anyMatch(mask -> mask == 0b111));
+    }
+
+    @Test
+    void randomPolygons() throws NoCellContainersFoundException {
+        Random random = new Random(101);
+        List<AbstractDetections> others = createChannels(600);
+        // the cells overlap each other, so that some pixels are shared
+        List<PathObject> cells = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            cells.add(createPolygonCell(random, random.nextDouble()*600, random.nextDouble()*600, 3+random.nextDouble()*30));
+        assertSameAsGeometric(cells, others, 64);
+    }
+
+    @Test
+    void cellsOnTileBorders() throws NoCellContainersFoundException {
+        Random random = new Random(103);
+        int tileSize = 32;
+        List<AbstractDetections> others = createChannels(10*tileSize);
+        List<PathObject> cells = new ArrayList<>();
+        for (int j = 1; j < 10; j++)
+            for (int i = 1; i < 10; i++) {
+                // on the corner of four tiles, and across the border between two tiles
+                cells.add(createPolygonCell(random, i*tileSize + random.nextDouble()-.5, j*tileSize + random.nextDouble()-.5, 12));
+                cells.add(createPolygonCell(random, i*tileSize + random.nextDouble()-.5, (j+.5)*tileSize, 6));
+            }
+        assertSameAsGeometric(cells, others, tileSize);
+    }
+
+    @Test
+    void multiPolygonsWithHoles() throws NoCellContainersFoundException {
+        Random random = new Random(107);
+        List<AbstractDetections> others = createChannels(600);
+        List<PathObject> cells = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            cells.add(createMultiPolygonCell(random, 50+random.nextDouble()*500, 50+random.nextDouble()*500, 5+random.nextDouble()*20));
+        assertSameAsGeometric(cells, others, 64);
+    }
+}
@@ -0,0 +1,148 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that {@link SharedTilesServer} decodes each region once for all its readers, and keeps it only as long as needed
+ */
+class SharedTilesServerTest {
+    private static final int TILE_SIZE = 10;
+    // the bytes of a tile of TYPE_BYTE_GRAY
+    private static final long TILE_BYTES = TILE_SIZE*TILE_SIZE;
+
+    private static RegionRequest createRequest(int i) {
+        return RegionRequest.createInstance("stub", 1, i*TILE_SIZE, 0, TILE_SIZE, TILE_SIZE);
+    }
+
+    private static BufferedImage createTile(RegionRequest request) {
+        return new BufferedImage(request.getWidth(), request.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    /**
+     * @param read how the server reads each region
+     */
+    @SuppressWarnings("unchecked")
+    private static ImageServer<BufferedImage> createServer(Answer<BufferedImage> read) throws IOException {
+        ImageServer<BufferedImage> server = mock(ImageServer.class);
+        when(server.readRegion(any(RegionRequest.class))).thenAnswer(read);
+        return server;
+    }
+
+    private static ImageServer<BufferedImage> createServer() throws IOException {
+        return createServer(invocation -> createTile(invocation.getArgument(0)));
+    }
+
+    @Test
+    void oneDecodeForAllReaders() throws IOException {
+        ImageServer<BufferedImage> server = createServer();
+        SharedTilesServer shared = new SharedTilesServer(server, 3, SharedTilesServer.DEFAULT_MAX_BYTES);
+        RegionRequest request = createRequest(0);
+        BufferedImage tile = shared.readRegion(request);
+        assertSame(tile, shared.readRegion(request));
+        assertSame(tile, shared.readRegion(request));
+        verify(server, times(1)).readRegion(request);
+        assertArrayEquals(new long[] {1, 2}, shared.getReadCounts());
+    }
+
+    @Test
+    void droppedAfterLastReader() throws IOException {
+        ImageServer<BufferedImage> server = createServer();
+        SharedTilesServer shared = new SharedTilesServer(server, 2, SharedTilesServer.DEFAULT_MAX_BYTES);
+        RegionRequest request = createRequest(0);
+        BufferedImage tile = shared.readRegion(request);
+        assertSame(tile, shared.readRegion(request));
+        // a third request comes after all the readers had the tile
+        assertNotSame(tile, shared.readRegion(request));
+        verify(server, times(2)).readRegion(request);
+    }
+
+    @Test
+    void oldestTilesTrimmed() throws IOException {
+        ImageServer<BufferedImage> server = createServer();
+        // only one tile can be kept at a time
+        SharedTilesServer shared = new SharedTilesServer(server, 2, TILE_BYTES);
+        RegionRequest first = createRequest(0), second = createRequest(1);
+        shared.readRegion(first);
+        shared.readRegion(second);
+        shared.readRegion(second);
+        shared.readRegion(first);
+        verify(server, times(2)).readRegion(first);
+        verify(server, times(1)).readRegion(second);
+    }
+
+    @Test
+    void concurrentReadersWaitForOneRead() throws Exception {
+        int nReaders = 4;
+        CountDownLatch decoding = new CountDownLatch(1);
+        ImageServer<BufferedImage> server = createServer(invocation -> {
+            assertTrue(decoding.await(10, TimeUnit.SECONDS));
+            return createTile(invocation.getArgument(0));
+        });
+        SharedTilesServer shared = new SharedTilesServer(server, nReaders, SharedTilesServer.DEFAULT_MAX_BYTES);
+        RegionRequest request = createRequest(0);
+        List<BufferedImage> tiles = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < nReaders; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    tiles.add(shared.readRegion(request));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        // the decoding ends only once all the readers requested the tile
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Arrays.stream(shared.getReadCounts()).sum() < nReaders && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        decoding.countDown();
+        for (Thread reader: readers)
+            reader.join();
+        verify(server, times(1)).readRegion(request);
+        assertEquals(nReaders, tiles.size());
+        assertTrue(tiles.stream().allMatch(tile -> tile == tiles.get(0)));
+    }
+
+    @Test
+    void readErrorGivenToAllReaders() throws IOException {
+        ImageServer<BufferedImage> server = createServer(invocation -> {
+            throw new IOException("unreadable");
+        });
+        SharedTilesServer shared = new SharedTilesServer(server, 2, SharedTilesServer.DEFAULT_MAX_BYTES);
+        RegionRequest request = createRequest(0);
+        assertThrows(IOException.class, () -> shared.readRegion(request));
+        assertThrows(IOException.class, () -> shared.readRegion(request));
+        verify(server, times(1)).readRegion(request);
+    }
+
+    @Test
+    void clear() throws IOException {
+        ImageServer<BufferedImage> server = createServer();
+        SharedTilesServer shared = new SharedTilesServer(server, 2, SharedTilesServer.DEFAULT_MAX_BYTES);
+        RegionRequest request = createRequest(0);
+        BufferedImage tile = shared.readRegion(request);
+        assertArrayEquals(new long[] {1, 0}, shared.clear());
+        // the tile was not yet read by the second reader, but it was dropped
+        assertNotSame(tile, shared.readRegion(request));
+        verify(server, times(2)).readRegion(request);
+        assertArrayEquals(new long[] {2, 0}, shared.getReadCounts());
+    }
+}
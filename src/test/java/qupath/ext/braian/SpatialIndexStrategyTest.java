@@ -0,0 +1,118 @@
+// SPDX-FileCopyrightText: 2024 Carlo Castoldi <carlo.castoldi@outlook.com>
+//
+// SPDX-License-Identifier: AGPL-3.0-or-later
+
+package qupath.ext.braian;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import qupath.lib.objects.*;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.*;
+import qupath.lib.roi.interfaces.ROI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpatialIndexStrategyTest {
+    private static List<PathObject> createRandomObjects(int n, long seed) {
+        Random random = new Random(seed);
+        return IntStream.range(0, n)
+                .mapToObj(i -> {
+                    ROI roi = ROIs.createRectangleROI(random.nextDouble()*1000, random.nextDouble()*1000,
+                            1+random.nextDouble()*20, 1+random.nextDouble()*20, ImagePlane.getDefaultPlane());
+                    return PathObjects.createDetectionObject(roi);
+                })
+                .toList();
+    }
+
+    private static Set<PathObject> overlaps(BoundingBox index, PathObject query) {
+        Set<PathObject> visited = new HashSet<>();
+        index.visitOverlaps(new OverlapQuery(query), (o, x, y) -> visited.add(o));
+        return visited;
+    }
+
+    @ParameterizedTest
+    @EnumSource(SpatialIndexStrategy.class)
+    void sameOverlapsAsBruteForce(SpatialIndexStrategy strategy) {
+        List<PathObject> objects = createRandomObjects(5_000, 79);
+        SpatialIndex index = strategy.build(objects);
+
+        assertEquals(objects.size(), index.size());
+        assertTrue(objects.stream().allMatch(index::contains));
+        for (PathObject query: createRandomObjects(300, 83)) {
+            ROI roi = query.getROI();
+            Set<PathObject> expected = objects.stream()
+                    .filter(o -> roi.contains(o.getROI().getCentroidX(), o.getROI().getCentroidY()))
+                    .collect(Collectors.toSet());
+            assertEquals(expected, overlaps(index, query));
+            Optional<PathObject> closest = index.getOverlappingObjectIfPresent(query);
+            assertEquals(expected.isEmpty(), closest.isEmpty());
+            closest.ifPresent(overlap -> {
+                double distance = Math.hypot(overlap.getROI().getCentroidX()-roi.getCentroidX(), overlap.getROI().getCentroidY()-roi.getCentroidY());
+                assertTrue(expected.stream().allMatch(o -> distance <= Math.hypot(o.getROI().getCentroidX()-roi.getCentroidX(), o.getROI().getCentroidY()-roi.getCentroidY())));
+            });
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(SpatialIndexStrategy.class)
+    void insertAndRemove(SpatialIndexStrategy strategy) {
+        List<PathObject> objects = createRandomObjects(6_000, 89);
+        Set<PathObject> current = new HashSet<>(objects.subList(0, 2_000));
+        SpatialIndex index = strategy.build(current);
+        Random random = new Random(97);
+        for (int i = 0; i < 5_000; i++) {
+            PathObject object = objects.get(random.nextInt(objects.size()));
+            if (current.remove(object))
+                assertTrue(index.remove(object));
+            else {
+                assertTrue(index.insert(object));
+                current.add(object);
+            }
+        }
+
+        assertEquals(current.size(), index.size());
+        assertEquals(current, index.toStream().collect(Collectors.toSet()));
+        assertTrue(objects.stream().allMatch(object -> index.contains(object) == current.contains(object)));
+        assertFalse(index.insert(current.iterator().next()));
+        SpatialIndex rebuilt = strategy.build(current);
+        for (PathObject query: createRandomObjects(300, 101))
+            assertEquals(overlaps(rebuilt, query), overlaps(index, query));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SpatialIndexStrategy.class)
+    void emptyIndex(SpatialIndexStrategy strategy) {
+        SpatialIndex index = strategy.build(List.of());
+        PathObject object = createRandomObjects(1, 103).getFirst();
+
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.getDepth());
+        assertTrue(index.getOverlappingObjectIfPresent(object).isEmpty());
+        assertFalse(index.remove(object));
+        assertTrue(index.insert(object));
+        assertTrue(index.contains(object));
+        assertEquals(Optional.of(object), index.getOverlappingObjectIfPresent(object));
+    }
+
+    @Test
+    void tilesAreBuiltLazily() {
+        List<PathObject> objects = createRandomObjects(5_000, 107);
+        PackedBoundingBoxHierarchy bbh = new PackedBoundingBoxHierarchy(objects, 32, 8);
+        // 10x10 tiles of ~50 objects each, and at most ~4 of them built at the same time
+        TiledSpatialIndex tiled = new TiledSpatialIndex(objects, 100, 200);
+
+        assertEquals(0, tiled.getBuiltTilesCount());
+        assertEquals(objects.size(), tiled.toStream().count());
+        assertEquals(0, tiled.getBuiltTilesCount());
+        for (PathObject query: createRandomObjects(300, 109)) {
+            assertEquals(overlaps(bbh, query), overlaps(tiled, query));
+            assertTrue(tiled.getBuiltTilesCount() <= 8);
+        }
+    }
+}